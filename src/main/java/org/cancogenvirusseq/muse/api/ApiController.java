@@ -35,6 +35,7 @@ import org.cancogenvirusseq.muse.api.model.*;
 import org.cancogenvirusseq.muse.exceptions.MuseBaseException;
 import org.cancogenvirusseq.muse.service.DownloadsService;
 import org.cancogenvirusseq.muse.service.SubmissionService;
+import org.cancogenvirusseq.muse.service.UploadQueueService;
 import org.cancogenvirusseq.muse.service.UploadService;
 import org.cancogenvirusseq.muse.utils.SecurityContextWrapper;
 import org.springframework.core.io.buffer.DataBuffer;
@@ -61,6 +62,7 @@ public class ApiController implements ApiDefinition {
 
   private final SubmissionService submissionService;
   private final UploadService uploadService;
+  private final UploadQueueService uploadQueueService;
   private final DownloadsService downloadsService;
 
   private static final String CONTENT_DISPOSITION_HEADER = "Content-Disposition";
@@ -99,6 +101,12 @@ public class ApiController implements ApiDefinition {
         .transform(this::listResponseTransform);
   }
 
+  public Mono<UploadDTO> resumeUpload(@NonNull UUID uploadId) {
+    return SecurityContextWrapper.forMono(uploadQueueService::resume)
+        .apply(uploadId)
+        .map(UploadDTO::fromDAO);
+  }
+
   public Flux<UploadDTO> streamUploads(String accessToken, UUID submissionId) {
     return SecurityContextWrapper.forFlux(uploadService::getUploadStream)
         .apply(submissionId)
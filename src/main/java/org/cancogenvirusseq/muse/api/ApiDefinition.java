@@ -181,6 +181,30 @@ public interface ApiDefinition {
           @RequestParam(value = "submissionId", required = false)
           UUID submissionId);
 
+  @ApiOperation(
+      value =
+          "Resume an upload that failed after being submitted to song, it is processed again from where it left off",
+      nickname = "Resume Upload",
+      response = UploadDTO.class,
+      tags = "Muse")
+  @ApiResponses(
+      value = {
+        @ApiResponse(code = 200, message = "", response = UploadDTO.class),
+        @ApiResponse(code = 401, message = UNAUTHORIZED_MSG, response = ErrorResponse.class),
+        @ApiResponse(code = 403, message = FORBIDDEN_MSG, response = ErrorResponse.class),
+        @ApiResponse(
+            code = 409,
+            message = "The upload can't be resumed.",
+            response = ErrorResponse.class),
+        @ApiResponse(code = 500, message = UNKNOWN_MSG, response = ErrorResponse.class)
+      })
+  @RequestMapping(
+      value = "/uploads/{uploadId}/resume",
+      produces = MediaType.APPLICATION_JSON_VALUE,
+      method = RequestMethod.POST)
+  @HasReadWriteAccess
+  Mono<UploadDTO> resumeUpload(@PathVariable("uploadId") UUID uploadId);
+
   @ApiOperation(
       value = "Stream Uploads",
       nickname = "Stream Uploads",
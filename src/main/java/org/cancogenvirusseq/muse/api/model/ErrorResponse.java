@@ -44,6 +44,7 @@ public class ErrorResponse {
   public static ResponseEntity<ErrorResponse> errorResponseEntity(MuseBaseException ex) {
     return new ResponseEntity<>(
         new ErrorResponse(ex.getStatusCode(), ex.getMessage(), ex.getErrorInfo()),
+        ex.getHeaders(),
         ex.getStatusCode());
   }
 }
@@ -0,0 +1,195 @@
+package org.cancogenvirusseq.muse.components;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import lombok.NonNull;
+import lombok.val;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+/**
+ * Limits how many calls run at once, adjusting the limit to how the called service behaves (AIMD).
+ * Each call that succeeds while the limit is being used raises the limit by about one per limit
+ * calls (additive increase), each call that fails with an overload error or takes longer than
+ * latencyTolerance times the smoothed latency of past calls cuts it by backoffRatio (multiplicative
+ * decrease). The limit always stays between floor and ceiling. Calls of very different cost (ex.
+ * metadata lookups and file uploads) should each have their own limiter, as a slow call is only
+ * slow compared to calls like it.
+ *
+ * <p>Calls over the limit wait, in order, for a running call to finish.
+ */
+public class AdaptiveConcurrencyLimiter {
+  // weight of each new sample in the smoothed latency
+  private static final double LATENCY_SMOOTHING = 0.05;
+
+  private final int floor;
+  private final int ceiling;
+  private final double backoffRatio;
+  private final double latencyTolerance;
+  private final Predicate<Throwable> isOverloaded;
+
+  private final Queue<Waiter> waiters = new ArrayDeque<>();
+
+  private double limit;
+  private int inFlight = 0;
+  private double smoothedLatencyNanos = 0;
+
+  /**
+   * @param initialLimit - limit to start at
+   * @param floor - lowest the limit can go, at least 1
+   * @param ceiling - highest the limit can go
+   * @param backoffRatio - limit is multiplied by this when a call is dropped, between 0 and 1
+   * @param latencyTolerance - calls slower than this multiple of the smoothed latency are dropped,
+   *     0 to only back off on overload errors (ex. calls whose latency depends on their size)
+   * @param isOverloaded - errors that mean the called service is overloaded (ex. timeouts, 5xx),
+   *     any other error is not taken into account
+   */
+  public AdaptiveConcurrencyLimiter(
+      int initialLimit,
+      int floor,
+      int ceiling,
+      double backoffRatio,
+      double latencyTolerance,
+      @NonNull Predicate<Throwable> isOverloaded) {
+    if (floor < 1 || ceiling < floor) {
+      throw new IllegalArgumentException("Limiter floor must be at least 1 and at most ceiling");
+    }
+    if (backoffRatio <= 0 || backoffRatio >= 1) {
+      throw new IllegalArgumentException("Limiter backoff ratio must be between 0 and 1");
+    }
+
+    this.floor = floor;
+    this.ceiling = ceiling;
+    this.backoffRatio = backoffRatio;
+    this.latencyTolerance = latencyTolerance;
+    this.isOverloaded = isOverloaded;
+    this.limit = Math.max(floor, Math.min(ceiling, initialLimit));
+  }
+
+  /**
+   * Run the call once there is room for it under the limit
+   *
+   * @param call - supplies the call, only invoked once there is room
+   * @return result of the call
+   */
+  public <T> Mono<T> limit(Supplier<? extends Mono<T>> call) {
+    return Mono.<Permit>create(this::acquire)
+        .flatMap(
+            permit ->
+                Mono.<T>defer(call)
+                    .doOnSuccess(value -> permit.release(false))
+                    .doOnError(throwable -> permit.release(isOverloaded.test(throwable)))
+                    .doOnCancel(permit::cancel));
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public synchronized int getWaiting() {
+    return waiters.size();
+  }
+
+  private void acquire(MonoSink<Permit> sink) {
+    val waiter = new Waiter(sink);
+    Permit permit = null;
+
+    synchronized (this) {
+      if (inFlight < (int) limit && waiters.isEmpty()) {
+        inFlight++;
+        permit = new Permit();
+      } else {
+        waiters.add(waiter);
+      }
+    }
+
+    if (permit != null) {
+      sink.success(permit);
+      return;
+    }
+
+    sink.onCancel(
+        () -> {
+          Permit granted;
+          synchronized (this) {
+            granted = waiters.remove(waiter) ? null : waiter.permit;
+          }
+          // granted just as it was cancelled, hand the permit back
+          if (granted != null) {
+            granted.cancel();
+          }
+        });
+  }
+
+  private void onRelease(long latencyNanos, boolean dropped, boolean sampled) {
+    val granted = new ArrayList<Waiter>();
+
+    synchronized (this) {
+      inFlight--;
+
+      if (sampled) {
+        if (dropped
+            || latencyTolerance > 0
+                && smoothedLatencyNanos > 0
+                && latencyNanos > smoothedLatencyNanos * latencyTolerance) {
+          limit = Math.max(floor, limit * backoffRatio);
+        } else {
+          // only grow the limit while it is being used
+          if ((inFlight + 1) * 2 >= limit) {
+            limit = Math.min(ceiling, limit + 1 / limit);
+          }
+          smoothedLatencyNanos =
+              smoothedLatencyNanos == 0
+                  ? latencyNanos
+                  : smoothedLatencyNanos * (1 - LATENCY_SMOOTHING)
+                      + latencyNanos * LATENCY_SMOOTHING;
+        }
+      }
+
+      while (inFlight < (int) limit && !waiters.isEmpty()) {
+        val waiter = waiters.poll();
+        inFlight++;
+        waiter.permit = new Permit();
+        granted.add(waiter);
+      }
+    }
+
+    granted.forEach(waiter -> waiter.sink.success(waiter.permit));
+  }
+
+  private static class Waiter {
+    private final MonoSink<Permit> sink;
+    private Permit permit;
+
+    private Waiter(MonoSink<Permit> sink) {
+      this.sink = sink;
+    }
+  }
+
+  /** Room for a single call, given back exactly once */
+  private class Permit {
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    void release(boolean dropped) {
+      if (released.compareAndSet(false, true)) {
+        onRelease(System.nanoTime() - startNanos, dropped, true);
+      }
+    }
+
+    /** Cancelled calls say nothing about the called service */
+    void cancel() {
+      if (released.compareAndSet(false, true)) {
+        onRelease(0, false, false);
+      }
+    }
+  }
+}
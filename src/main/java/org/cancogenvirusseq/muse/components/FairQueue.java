@@ -0,0 +1,140 @@
+package org.cancogenvirusseq.muse.components;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import lombok.NonNull;
+import lombok.val;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+/**
+ * Queue with a sub-queue per key (ex. study) dispatched by weighted round robin, instead of first
+ * in first out. Keys take turns and on its turn each key has up to its weight of items dispatched,
+ * so a key with thousands of items queued only delays the items of the other keys by its weight. A
+ * key whose sub-queue empties gives up the rest of its turn and starts over when next offered.
+ *
+ * <p>Items are only dispatched as they are requested, so the order is decided as late as possible.
+ */
+public class FairQueue<T> {
+  private final Function<T, String> keyFunction;
+  private final ToIntFunction<String> weightFunction;
+
+  // keys with items queued, the head is the key whose turn it is
+  private final ArrayDeque<String> turns = new ArrayDeque<>();
+  private final Map<String, Queue<T>> queues = new HashMap<>();
+  private final AtomicInteger wip = new AtomicInteger();
+
+  private int remainingTurn = 0;
+  private long requested = 0;
+  private FluxSink<T> sink;
+
+  /**
+   * @param keyFunction - key of the sub-queue an item belongs to
+   * @param weightFunction - items dispatched from a key's sub-queue on each of its turns, at least
+   *     1
+   */
+  public FairQueue(
+      @NonNull Function<T, String> keyFunction, @NonNull ToIntFunction<String> weightFunction) {
+    this.keyFunction = keyFunction;
+    this.weightFunction = weightFunction;
+  }
+
+  public void offer(T item) {
+    val key = keyFunction.apply(item);
+    synchronized (this) {
+      queues
+          .computeIfAbsent(
+              key,
+              newKey -> {
+                turns.addLast(newKey);
+                return new ArrayDeque<>();
+              })
+          .add(item);
+    }
+    drain();
+  }
+
+  /** @return the dispatched items, a queue can only be subscribed to once */
+  public Flux<T> asFlux() {
+    return Flux.create(
+        fluxSink -> {
+          synchronized (this) {
+            if (sink != null) {
+              fluxSink.error(new IllegalStateException("FairQueue allows only one subscriber"));
+              return;
+            }
+            sink = fluxSink;
+          }
+          fluxSink.onRequest(
+              n -> {
+                synchronized (this) {
+                  requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+                }
+                drain();
+              });
+        });
+  }
+
+  /** @return items queued under the key */
+  public synchronized int size(String key) {
+    val queue = queues.get(key);
+    return queue == null ? 0 : queue.size();
+  }
+
+  /** @return items queued under all keys */
+  public synchronized int size() {
+    return queues.values().stream().mapToInt(Queue::size).sum();
+  }
+
+  private void drain() {
+    if (wip.getAndIncrement() != 0) {
+      return;
+    }
+
+    int missed = 1;
+    do {
+      while (true) {
+        final T next;
+        final FluxSink<T> currentSink;
+        synchronized (this) {
+          if (sink == null || requested == 0 || turns.isEmpty()) {
+            break;
+          }
+          next = poll();
+          requested--;
+          currentSink = sink;
+        }
+        currentSink.next(next);
+      }
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  /** Next item of the key whose turn it is, must hold the lock and have a key with items queued */
+  private T poll() {
+    val key = turns.peekFirst();
+    val queue = queues.get(key);
+
+    if (remainingTurn == 0) {
+      remainingTurn = Math.max(1, weightFunction.applyAsInt(key));
+    }
+
+    val item = queue.poll();
+    remainingTurn--;
+
+    if (queue.isEmpty()) {
+      queues.remove(key);
+      turns.pollFirst();
+      remainingTurn = 0;
+    } else if (remainingTurn == 0) {
+      turns.addLast(turns.pollFirst());
+    }
+
+    return item;
+  }
+}
@@ -3,20 +3,30 @@ package org.cancogenvirusseq.muse.components;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.Optional;
+import java.security.MessageDigest;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
+import org.cancogenvirusseq.muse.model.SpooledFile;
 import org.cancogenvirusseq.muse.model.SubmissionFile;
+import org.cancogenvirusseq.muse.model.SubmissionFileContent;
 import org.cancogenvirusseq.muse.model.SubmissionUpload;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuple2;
 
 @Slf4j
 public class FastaFileProcessor {
   public static final String FASTA_TYPE = "FASTA";
   public static final String FASTA_FILE_EXTENSION = ".fasta";
 
+  // spooled files are mapped at most this many bytes at a time
+  private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
   /**
    * Processing submission files into a map of isolateFilename => SubmissionFile
    *
@@ -29,45 +39,103 @@ public class FastaFileProcessor {
 
     val fastaHeaderToSubmissionFile = new ConcurrentHashMap<String, SubmissionFile>();
 
-    Arrays.stream(submissionUpload.getContent().split("(?=>)"))
-        .filter(
-            sampleData ->
-                sampleData != null && !sampleData.trim().equals("") && sampleData.startsWith(">"))
-        .map(String::trim)
-        .forEach(
-            fc -> {
-              val fastaHeaderOpt = extractFastaHeader(fc);
-              if (fastaHeaderOpt.isEmpty()) {
-                return;
-              }
-
-              val submissionFile =
-                  SubmissionFile.builder()
-                      .fileExtension(FASTA_FILE_EXTENSION)
-                      .fileSize(fc.length())
-                      .fileMd5sum(md5(fc).toString())
-                      .content(fc)
-                      .dataType(FASTA_TYPE)
-                      .fileType(FASTA_TYPE)
-                      .submittedFileName(submissionUpload.getFilename())
-                      .build();
-
-              fastaHeaderToSubmissionFile.put(fastaHeaderOpt.get(), submissionFile);
-            });
+    new FastaSampleScanner(submissionUpload.getFilename())
+        .scan(submissionUpload.getContent(), fastaHeaderToSubmissionFile::put);
 
     log.info("Processed fasta file chunk");
     return fastaHeaderToSubmissionFile;
   }
 
-  public static Optional<String> extractFastaHeader(String sampleContent) {
-    // get index of first new line
-    val fastaHeaderEndNewlineIndex = sampleContent.indexOf("\n");
-    if (fastaHeaderEndNewlineIndex == -1) {
-      return Optional.empty();
-    }
+  /**
+   * Streaming counterpart to processFileStrContent, samples are decoded as the file content arrives
+   * so that only the sample currently being read is held in memory (not the entire file)
+   *
+   * @param content - raw (unzipped) content of the fasta file
+   * @param submittedFileName - original filename of the fasta file
+   * @return flux of fastaHeader => SubmissionFile, in file order
+   */
+  public static Flux<Tuple2<String, SubmissionFile>> processFileContent(
+      Flux<DataBuffer> content, String submittedFileName) {
+    return Flux.defer(
+        () -> {
+          val decoder = new FastaRecordDecoder(submittedFileName);
+          return content
+              .concatMapIterable(decoder::decode)
+              .concatWith(Flux.defer(() -> Flux.fromIterable(decoder.complete())))
+              .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+        });
+  }
+
+  /**
+   * Counterpart to processFileContent for a fasta file that has been spooled to disk, the file is
+   * scanned through memory-mapped windows and each SubmissionFile references its sample in the
+   * spooled file instead of holding it in memory
+   *
+   * @param spooledFile - fully written spooled fasta file
+   * @param submittedFileName - original filename of the fasta file
+   * @return flux of fastaHeader => SubmissionFile, in file order
+   */
+  public static Flux<Tuple2<String, SubmissionFile>> processSpooledFileContent(
+      SpooledFile spooledFile, String submittedFileName) {
+    return Flux.defer(
+            () -> {
+              val scanner = new SpooledFastaScanner(spooledFile, submittedFileName);
+              val fileSize = size(spooledFile);
+              return Flux.range(
+                      0, Math.toIntExact((fileSize + MAP_WINDOW_SIZE - 1) / MAP_WINDOW_SIZE))
+                  .concatMapIterable(
+                      window ->
+                          scanWindow(scanner, spooledFile, window * MAP_WINDOW_SIZE, fileSize))
+                  .concatWith(Flux.defer(() -> Flux.fromIterable(complete(scanner))));
+            })
+        // mapping and reading the spooled file is blocking io
+        .subscribeOn(Schedulers.boundedElastic());
+  }
+
+  @SneakyThrows
+  private static long size(SpooledFile spooledFile) {
+    return spooledFile.size();
+  }
+
+  @SneakyThrows
+  private static List<Tuple2<String, SubmissionFile>> scanWindow(
+      SpooledFastaScanner scanner, SpooledFile spooledFile, long windowPosition, long fileSize) {
+    return scanner.scan(
+        windowPosition,
+        spooledFile.map(windowPosition, Math.min(MAP_WINDOW_SIZE, fileSize - windowPosition)));
+  }
 
-    // fasta header is substring from after ">" char to new line (not including)
-    return Optional.of(sampleContent.substring(1, fastaHeaderEndNewlineIndex).trim());
+  @SneakyThrows
+  private static List<Tuple2<String, SubmissionFile>> complete(SpooledFastaScanner scanner) {
+    return scanner.complete();
+  }
+
+  static SubmissionFile buildSubmissionFile(String sampleContent, String submittedFileName) {
+    return buildSubmissionFile(
+        SubmissionFileContent.of(sampleContent), md5(sampleContent).toString(), submittedFileName);
+  }
+
+  static SubmissionFile buildSubmissionFile(
+      SubmissionFileContent sampleContent, String md5, String submittedFileName) {
+    return buildSubmissionFile(sampleContent, sampleContent.getSize(), md5, submittedFileName);
+  }
+
+  static SubmissionFile buildSubmissionFile(
+      SubmissionFileContent sampleContent, long fileSize, String md5, String submittedFileName) {
+    return SubmissionFile.builder()
+        .fileExtension(FASTA_FILE_EXTENSION)
+        .fileSize(Math.toIntExact(fileSize))
+        .fileMd5sum(md5)
+        .content(sampleContent)
+        .dataType(FASTA_TYPE)
+        .fileType(FASTA_TYPE)
+        .submittedFileName(submittedFileName)
+        .build();
+  }
+
+  @SneakyThrows
+  static MessageDigest newMd5Digest() {
+    return MessageDigest.getInstance("MD5");
   }
 
   @SneakyThrows
@@ -0,0 +1,152 @@
+package org.cancogenvirusseq.muse.components;
+
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.buildSubmissionFile;
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.newMd5Digest;
+
+import com.google.common.hash.HashCode;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+import org.cancogenvirusseq.muse.model.SubmissionFile;
+import org.cancogenvirusseq.muse.model.SubmissionFileContent;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+/**
+ * Stateful decoder that is fed the raw bytes of a single fasta file in whatever chunks they arrive
+ * and returns each sample (fastaHeader => SubmissionFile) as soon as the next header, or the end of
+ * the file, is reached. Only the sample currently being read is held in memory.
+ *
+ * <p>A sample starts at every '>', wherever it is in a line, and anything before the first sample
+ * is ignored. Samples are trimmed and only kept if they have a header line, the same as {@link
+ * FastaFileProcessor#processFileStrContent}.
+ */
+@RequiredArgsConstructor
+class FastaRecordDecoder {
+  private static final byte HEADER_START = '>';
+  private static final byte NEW_LINE = '\n';
+  private static final int INITIAL_RECORD_CAPACITY = 64 * 1024;
+
+  private final String submittedFileName;
+
+  private final MessageDigest md5 = newMd5Digest();
+
+  private byte[] record = new byte[INITIAL_RECORD_CAPACITY];
+  private int recordLength = 0;
+  private boolean inRecord = false;
+
+  // positions within the record, trailing whitespace is only hashed once followed by content
+  private int headerEnd;
+  private int contentEnd;
+  private int hashedTo;
+
+  /**
+   * Consume a chunk of the file, the chunk is released once read.
+   *
+   * @param dataBuffer - next chunk of the file
+   * @return samples completed by this chunk, in file order
+   */
+  List<Tuple2<String, SubmissionFile>> decode(DataBuffer dataBuffer) {
+    try {
+      val completed = new ArrayList<Tuple2<String, SubmissionFile>>();
+      val byteBuffer = dataBuffer.asByteBuffer();
+      val end = byteBuffer.limit();
+
+      int segmentStart = byteBuffer.position();
+      for (int i = segmentStart; i < end; i++) {
+        val b = byteBuffer.get(i);
+        if (b == HEADER_START) {
+          // new sample begins, everything up until here belongs to the previous one
+          if (inRecord) {
+            append(byteBuffer.duplicate(), segmentStart, i);
+            completeRecord(completed);
+          }
+          inRecord = true;
+          segmentStart = i;
+          headerEnd = -1;
+          // the '>' itself is content
+          contentEnd = 1;
+          hashedTo = 0;
+        } else if (inRecord) {
+          val recordPosition = recordLength + i - segmentStart;
+          if (b == NEW_LINE && headerEnd == -1) {
+            headerEnd = recordPosition;
+          }
+          // trailing whitespace is trimmed (same definition as String::trim)
+          if ((b & 0xff) > ' ') {
+            contentEnd = recordPosition + 1;
+          }
+        }
+      }
+
+      if (inRecord) {
+        append(byteBuffer.duplicate(), segmentStart, end);
+        hashContent();
+      }
+
+      return completed;
+    } finally {
+      DataBufferUtils.release(dataBuffer);
+    }
+  }
+
+  /**
+   * Signal the end of the file
+   *
+   * @return the final sample if there is one
+   */
+  List<Tuple2<String, SubmissionFile>> complete() {
+    val completed = new ArrayList<Tuple2<String, SubmissionFile>>(1);
+    if (inRecord) {
+      completeRecord(completed);
+      inRecord = false;
+    }
+    return completed;
+  }
+
+  private void append(ByteBuffer source, int from, int to) {
+    val length = to - from;
+    if (recordLength + length > record.length) {
+      record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + length));
+    }
+    source.limit(to).position(from);
+    source.get(record, recordLength, length);
+    recordLength += length;
+  }
+
+  /** Hash the record content confirmed so far, it is not looked at again once the record ends */
+  private void hashContent() {
+    if (contentEnd > hashedTo) {
+      md5.update(record, hashedTo, contentEnd - hashedTo);
+      hashedTo = contentEnd;
+    }
+  }
+
+  private void completeRecord(List<Tuple2<String, SubmissionFile>> completed) {
+    // samples without a new line after the header, once trimmed, are dropped
+    if (headerEnd != -1 && headerEnd < contentEnd) {
+      hashContent();
+
+      // fasta header is from after ">" char to new line (not including)
+      val fastaHeader = new String(record, 1, headerEnd - 1, StandardCharsets.UTF_8).trim();
+      completed.add(
+          Tuples.of(
+              fastaHeader,
+              buildSubmissionFile(
+                  SubmissionFileContent.of(Arrays.copyOf(record, contentEnd)),
+                  contentEnd,
+                  HashCode.fromBytes(md5.digest()).toString(),
+                  submittedFileName)));
+    }
+
+    md5.reset();
+    recordLength = 0;
+  }
+}
@@ -0,0 +1,198 @@
+package org.cancogenvirusseq.muse.components;
+
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.buildSubmissionFile;
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.newMd5Digest;
+
+import com.google.common.hash.HashCode;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import lombok.val;
+import org.cancogenvirusseq.muse.model.SubmissionFile;
+import org.cancogenvirusseq.muse.model.SubmissionFileContent;
+
+/**
+ * Single pass scanner over the content of a fasta file that is already in memory. Sample
+ * boundaries, the fasta header, size and md5 are all found in the same pass over the characters,
+ * and the only copies made are the header and the final (trimmed) content bytes of each sample.
+ *
+ * <p>A sample starts at every '>' and runs until the next one, trailing whitespace is trimmed and
+ * samples without a new line after the header are dropped. This matches the previous behaviour of
+ * splitting the file on a '(?=>)' lookahead.
+ */
+class FastaSampleScanner {
+  private static final char HEADER_START = '>';
+  private static final char NEW_LINE = '\n';
+
+  // confirmed sample content is encoded and hashed every this many chars, not all at the end
+  private static final int ENCODE_CHUNK_SIZE = 8 * 1024;
+
+  private final String submittedFileName;
+  private final Utf8Encoder encoder = new Utf8Encoder();
+
+  private int sampleStart;
+  private int headerEnd;
+  private int contentEnd;
+  private int encodedTo;
+
+  FastaSampleScanner(String submittedFileName) {
+    this.submittedFileName = submittedFileName;
+  }
+
+  /**
+   * Scan the file content
+   *
+   * @param content - entire content of the fasta file
+   * @param onSample - receives each fastaHeader and SubmissionFile, in file order
+   */
+  void scan(CharSequence content, BiConsumer<String, SubmissionFile> onSample) {
+    sampleStart = -1;
+    val length = content.length();
+
+    for (int i = 0; i < length; i++) {
+      val c = content.charAt(i);
+
+      if (c == HEADER_START) {
+        if (sampleStart != -1) {
+          completeSample(content, onSample);
+        }
+        sampleStart = i;
+        headerEnd = -1;
+        contentEnd = i + 1;
+        encodedTo = i;
+        encoder.reset();
+        continue;
+      }
+
+      if (sampleStart == -1) {
+        continue;
+      }
+
+      if (c == NEW_LINE && headerEnd == -1) {
+        headerEnd = i;
+      }
+
+      // trailing whitespace is trimmed (same definition as String::trim)
+      if (c > ' ') {
+        contentEnd = i + 1;
+        if (contentEnd - encodedTo >= ENCODE_CHUNK_SIZE) {
+          encoder.update(content, encodedTo, contentEnd);
+          encodedTo = contentEnd;
+        }
+      }
+    }
+
+    if (sampleStart != -1) {
+      completeSample(content, onSample);
+    }
+  }
+
+  private void completeSample(CharSequence content, BiConsumer<String, SubmissionFile> onSample) {
+    if (headerEnd == -1 || headerEnd >= contentEnd) {
+      return;
+    }
+
+    encoder.update(content, encodedTo, contentEnd);
+
+    // fasta header is from after ">" char to new line (not including)
+    val fastaHeader = content.subSequence(sampleStart + 1, headerEnd).toString().trim();
+    val md5 = encoder.digestHex();
+
+    onSample.accept(
+        fastaHeader,
+        buildSubmissionFile(
+            SubmissionFileContent.of(encoder.toByteArray()), md5, submittedFileName));
+  }
+
+  /**
+   * Encodes chars to UTF-8 into a reused buffer, hashing the bytes as they are written, so each
+   * sample's content is encoded once and only copied out as its final byte[]. Unpaired surrogates
+   * are encoded as '?', the same as String::getBytes.
+   */
+  private static class Utf8Encoder {
+    private static final byte REPLACEMENT = '?';
+
+    private final MessageDigest messageDigest = newMd5Digest();
+    private byte[] encoded = new byte[64 * 1024];
+    private int encodedLength = 0;
+    private char pendingHighSurrogate = 0;
+
+    void update(CharSequence chars, int from, int to) {
+      // worst case of 3 bytes per char plus a replaced surrogate from the previous update
+      ensureCapacity(encodedLength + (to - from) * 3 + 1);
+      val start = encodedLength;
+
+      for (int i = from; i < to; i++) {
+        val c = chars.charAt(i);
+
+        if (pendingHighSurrogate != 0) {
+          val highSurrogate = pendingHighSurrogate;
+          pendingHighSurrogate = 0;
+          if (Character.isLowSurrogate(c)) {
+            putCodePoint(Character.toCodePoint(highSurrogate, c));
+            continue;
+          }
+          encoded[encodedLength++] = REPLACEMENT;
+        }
+
+        if (c < 0x80) {
+          encoded[encodedLength++] = (byte) c;
+        } else if (Character.isHighSurrogate(c)) {
+          // may be completed by the first char of the next update
+          pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+          encoded[encodedLength++] = REPLACEMENT;
+        } else {
+          putCodePoint(c);
+        }
+      }
+
+      messageDigest.update(encoded, start, encodedLength - start);
+    }
+
+    String digestHex() {
+      completePendingSurrogate();
+      return HashCode.fromBytes(messageDigest.digest()).toString();
+    }
+
+    byte[] toByteArray() {
+      completePendingSurrogate();
+      return Arrays.copyOf(encoded, encodedLength);
+    }
+
+    void reset() {
+      messageDigest.reset();
+      encodedLength = 0;
+      pendingHighSurrogate = 0;
+    }
+
+    private void completePendingSurrogate() {
+      if (pendingHighSurrogate != 0) {
+        ensureCapacity(encodedLength + 1);
+        encoded[encodedLength++] = REPLACEMENT;
+        messageDigest.update(REPLACEMENT);
+        pendingHighSurrogate = 0;
+      }
+    }
+
+    private void putCodePoint(int codePoint) {
+      if (codePoint < 0x800) {
+        encoded[encodedLength++] = (byte) (0xc0 | (codePoint >> 6));
+      } else if (codePoint < 0x10000) {
+        encoded[encodedLength++] = (byte) (0xe0 | (codePoint >> 12));
+        encoded[encodedLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      } else {
+        encoded[encodedLength++] = (byte) (0xf0 | (codePoint >> 18));
+        encoded[encodedLength++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        encoded[encodedLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      }
+      encoded[encodedLength++] = (byte) (0x80 | (codePoint & 0x3f));
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > encoded.length) {
+        encoded = Arrays.copyOf(encoded, Math.max(encoded.length * 2, capacity));
+      }
+    }
+  }
+}
@@ -0,0 +1,309 @@
+package org.cancogenvirusseq.muse.components;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking gzip decompression of a stream of DataBuffers. Each compressed buffer is fed to an
+ * {@link Inflater} as it arrives and decompressed buffers are only produced as downstream requests
+ * them, so nothing blocks and only the compressed buffer being inflated and the next one are held
+ * at a time. Behaves like {@link java.util.zip.GZIPInputStream}: concatenated members are
+ * supported, trailing garbage after a complete member (including an incomplete member header) is
+ * ignored and the CRC32/size trailer of each member is verified.
+ */
+public class GzipInflater {
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int CM_DEFLATE = 8;
+  private static final int HEADER_FIXED_LENGTH = 10;
+  private static final int TRAILER_LENGTH = 8;
+
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private enum State {
+    HEADER,
+    DATA,
+    TRAILER,
+    TRAILING_GARBAGE
+  }
+
+  private final DataBufferFactory bufferFactory;
+  private final int bufferSize;
+
+  private final Inflater inflater = new Inflater(true);
+  private final CRC32 crc = new CRC32();
+  private final ByteArrayOutputStream headerOrTrailer = new ByteArrayOutputStream();
+
+  private State state = State.HEADER;
+  private boolean memberCompleted = false;
+
+  private DataBuffer input;
+  private ByteBuffer inputBytes;
+
+  private GzipInflater(DataBufferFactory bufferFactory, int bufferSize) {
+    this.bufferFactory = bufferFactory;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Decompress gzipped content
+   *
+   * @param compressed - gzipped content, each buffer is released once consumed
+   * @param bufferFactory - factory used to allocate the decompressed buffers (ideally pooled)
+   * @param bufferSize - size in bytes of each decompressed buffer
+   * @return flux of decompressed content, errors with a ZipException/EOFException if the content is
+   *     not valid gzip
+   */
+  public static Flux<DataBuffer> inflate(
+      Flux<DataBuffer> compressed, DataBufferFactory bufferFactory, int bufferSize) {
+    return Flux.using(
+        () -> new GzipInflater(bufferFactory, bufferSize),
+        gzipInflater ->
+            compressed
+                // one compressed buffer at a time, the next is only requested once it is being
+                // inflated
+                .concatMapIterable(gzipInflater::inflate, 1)
+                .concatWith(Mono.fromRunnable(gzipInflater::checkComplete))
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release),
+        GzipInflater::end);
+  }
+
+  /**
+   * Lazily decompress one compressed buffer, output buffers are only allocated as the returned
+   * Iterable is consumed.
+   */
+  private Iterable<DataBuffer> inflate(DataBuffer compressed) {
+    input = compressed;
+    inputBytes = compressed.asByteBuffer();
+
+    return () ->
+        new Iterator<>() {
+          private DataBuffer next;
+
+          @Override
+          public boolean hasNext() {
+            if (next == null) {
+              next = nextOutput();
+            }
+            return next != null;
+          }
+
+          @Override
+          public DataBuffer next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            val current = next;
+            next = null;
+            return current;
+          }
+        };
+  }
+
+  /** @return next decompressed buffer or null if the current input is exhausted */
+  @SneakyThrows
+  private DataBuffer nextOutput() {
+    while (input != null) {
+      switch (state) {
+        case HEADER:
+          if (!readHeader()) {
+            releaseInput();
+            break;
+          }
+          inflater.reset();
+          crc.reset();
+          state = State.DATA;
+          break;
+        case DATA:
+          if (inflater.needsInput()) {
+            if (!inputBytes.hasRemaining()) {
+              releaseInput();
+              break;
+            }
+            inflater.setInput(inputBytes);
+          }
+
+          val output = inflateToBuffer();
+          if (output != null) {
+            return output;
+          }
+
+          if (inflater.finished()) {
+            state = State.TRAILER;
+          } else if (inflater.needsDictionary()) {
+            throw new ZipException("Unexpected preset dictionary in gzip content");
+          }
+          break;
+        case TRAILER:
+          if (!readTrailer()) {
+            releaseInput();
+            break;
+          }
+          // another member may follow, in this buffer or the next
+          memberCompleted = true;
+          state = State.HEADER;
+          break;
+        case TRAILING_GARBAGE:
+          inputBytes.position(inputBytes.limit());
+          releaseInput();
+          break;
+      }
+    }
+
+    return null;
+  }
+
+  private DataBuffer inflateToBuffer() throws DataFormatException {
+    val output = bufferFactory.allocateBuffer(bufferSize);
+    try {
+      val outputBytes = output.asByteBuffer(0, bufferSize);
+      val inflated = inflater.inflate(outputBytes);
+      if (inflated == 0) {
+        DataBufferUtils.release(output);
+        return null;
+      }
+
+      outputBytes.flip();
+      crc.update(outputBytes);
+      output.writePosition(inflated);
+      return output;
+    } catch (DataFormatException | RuntimeException e) {
+      DataBufferUtils.release(output);
+      throw e;
+    }
+  }
+
+  /** @return true once a complete member header has been read */
+  private boolean readHeader() throws ZipException {
+    while (inputBytes.hasRemaining()) {
+      headerOrTrailer.write(inputBytes.get());
+
+      val header = headerOrTrailer.toByteArray();
+      if (header.length == 2 && readUnsignedShort(header, 0) != GZIP_MAGIC) {
+        if (memberCompleted) {
+          // same as GZIPInputStream, anything after a complete member that isn't gzip is ignored
+          state = State.TRAILING_GARBAGE;
+          headerOrTrailer.reset();
+          return false;
+        }
+        throw new ZipException("Not in GZIP format");
+      }
+
+      if (isCompleteHeader(header)) {
+        if ((header[2] & 0xff) != CM_DEFLATE) {
+          throw new ZipException("Unsupported compression method");
+        }
+        headerOrTrailer.reset();
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static boolean isCompleteHeader(byte[] header) {
+    if (header.length < HEADER_FIXED_LENGTH) {
+      return false;
+    }
+
+    val flags = header[3] & 0xff;
+    int position = HEADER_FIXED_LENGTH;
+
+    if ((flags & FEXTRA) == FEXTRA) {
+      if (header.length < position + 2) {
+        return false;
+      }
+      position += 2 + readUnsignedShort(header, position);
+    }
+    if ((flags & FNAME) == FNAME) {
+      position = skipZeroTerminated(header, position);
+    }
+    if ((flags & FCOMMENT) == FCOMMENT) {
+      position = skipZeroTerminated(header, position);
+    }
+    if ((flags & FHCRC) == FHCRC) {
+      position += 2;
+    }
+
+    return position != -1 && header.length == position;
+  }
+
+  /** @return true once the member trailer has been read and verified */
+  private boolean readTrailer() throws ZipException {
+    while (inputBytes.hasRemaining() && headerOrTrailer.size() < TRAILER_LENGTH) {
+      headerOrTrailer.write(inputBytes.get());
+    }
+
+    if (headerOrTrailer.size() < TRAILER_LENGTH) {
+      return false;
+    }
+
+    val trailer = headerOrTrailer.toByteArray();
+    headerOrTrailer.reset();
+
+    if (readUnsignedInt(trailer, 0) != crc.getValue()
+        || readUnsignedInt(trailer, 4) != (inflater.getBytesWritten() & 0xffffffffL)) {
+      throw new ZipException("Corrupt GZIP trailer");
+    }
+
+    return true;
+  }
+
+  @SneakyThrows
+  private void checkComplete() {
+    // same as GZIPInputStream, a member header cut short after a complete member is the end of the
+    // content, anything cut short in the data or trailer is not
+    if (!memberCompleted || state == State.DATA || state == State.TRAILER) {
+      throw new EOFException("Unexpected end of GZIP input");
+    }
+  }
+
+  private void releaseInput() {
+    if (input != null) {
+      DataBufferUtils.release(input);
+      input = null;
+      inputBytes = null;
+    }
+  }
+
+  private void end() {
+    releaseInput();
+    inflater.end();
+  }
+
+  private static int skipZeroTerminated(byte[] header, int from) {
+    if (from == -1) {
+      return -1;
+    }
+    for (int i = from; i < header.length; i++) {
+      if (header[i] == 0) {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  private static int readUnsignedShort(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8);
+  }
+
+  private static long readUnsignedInt(byte[] bytes, int offset) {
+    return ((long) readUnsignedShort(bytes, offset + 2) << 16) | readUnsignedShort(bytes, offset);
+  }
+}
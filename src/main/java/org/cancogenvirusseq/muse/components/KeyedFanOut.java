@@ -0,0 +1,79 @@
+package org.cancogenvirusseq.muse.components;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.val;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+/**
+ * Fan-out of items to the subscribers of their key (ex. user id). Subscribers are indexed by key,
+ * so publishing an item only costs a lookup and one delivery per subscriber of its key, whatever
+ * the number of subscribers of other keys.
+ *
+ * <p>Each subscriber has its own buffer of up to bufferSize items, once full the oldest item is
+ * dropped to make room, so a slow subscriber only ever loses its own items and never holds up
+ * publishing or the other subscribers.
+ */
+public class KeyedFanOut<K, T> {
+  private final int bufferSize;
+
+  private final Map<K, Set<FluxSink<T>>> subscribers = new ConcurrentHashMap<>();
+  private final AtomicInteger subscriberCount = new AtomicInteger();
+
+  /** @param bufferSize - max items held for a subscriber that isn't keeping up */
+  public KeyedFanOut(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  /** @return items published with the key from when subscribed, until cancelled */
+  public Flux<T> subscribe(K key) {
+    return Flux.<T>create(
+            sink -> {
+              // added within compute so it can't race the removal of the key's last subscriber
+              subscribers.compute(
+                  key,
+                  (existingKey, keySubscribers) -> {
+                    val updated =
+                        keySubscribers == null
+                            ? ConcurrentHashMap.<FluxSink<T>>newKeySet()
+                            : keySubscribers;
+                    updated.add(sink);
+                    return updated;
+                  });
+              subscriberCount.incrementAndGet();
+              sink.onDispose(() -> unsubscribe(key, sink));
+            })
+        .onBackpressureBuffer(bufferSize, dropped -> {}, BufferOverflowStrategy.DROP_OLDEST);
+  }
+
+  public void publish(K key, T item) {
+    val keySubscribers = subscribers.get(key);
+    if (keySubscribers != null) {
+      keySubscribers.forEach(sink -> sink.next(item));
+    }
+  }
+
+  /** @return true if anyone is subscribed to any key */
+  public boolean hasSubscribers() {
+    return subscriberCount.get() > 0;
+  }
+
+  public int getSubscriberCount() {
+    return subscriberCount.get();
+  }
+
+  private void unsubscribe(K key, FluxSink<T> sink) {
+    subscribers.computeIfPresent(
+        key,
+        (existingKey, keySubscribers) -> {
+          keySubscribers.remove(sink);
+          // the key is dropped along with its last subscriber
+          return keySubscribers.isEmpty() ? null : keySubscribers;
+        });
+    subscriberCount.decrementAndGet();
+  }
+}
@@ -5,80 +5,161 @@ import static java.util.stream.Collectors.toUnmodifiableList;
 import static org.cancogenvirusseq.muse.utils.AnalysisPayloadUtils.*;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-
+import com.google.common.collect.Lists;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
 import java.util.function.BinaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import javax.annotation.PreDestroy;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
-import org.apache.commons.text.StringSubstitutor;
-import org.apache.commons.text.lookup.StringLookup;
 import org.cancogenvirusseq.muse.config.MuseAppConfig;
+import org.cancogenvirusseq.muse.config.SubmissionProperties;
 import org.cancogenvirusseq.muse.exceptions.submission.FoundInvalidFilesException;
 import org.cancogenvirusseq.muse.exceptions.submission.MissingDataException;
 import org.cancogenvirusseq.muse.model.SubmissionBundle;
 import org.cancogenvirusseq.muse.model.SubmissionFile;
 import org.cancogenvirusseq.muse.model.UploadRequest;
-import org.cancogenvirusseq.muse.utils.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.security.access.method.P;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 @Slf4j
 @Component
 public class PayloadFileMapper {
-  private final String payloadJsonTemplate;
+  private static final String DEFAULT_MULTI_TAG_DELIMITER = ";";
+
+  // records are mapped in chunks of at least this size, a few per thread
+  private static final int MIN_CHUNK_SIZE = 256;
+  private static final int CHUNKS_PER_THREAD = 4;
 
-  private static String multiTagDelimiter;
-  private static List<String> columnKeys;
+  private final PayloadTemplate payloadTemplate;
 
+  // bundles with at least this many records are mapped in parallel on the mappingScheduler
+  private final int parallelMappingThreshold;
+  private final int mappingParallelism;
+  private final Scheduler mappingScheduler;
 
-  @Value("${tsv.columnKeys:''}")
-  public void setColumnKeys(List<String> keys) {
-    columnKeys = keys;
+  @Autowired
+  public PayloadFileMapper(
+      MuseAppConfig config,
+      SubmissionProperties submissionProperties,
+      @Value("${tsv.columnKeys:''}") List<String> columnKeys,
+      @Value("${tsv.multiTagDelimiter}") String multiTagDelimiter) {
+    this(
+        config.getPayloadJsonTemplate(),
+        columnKeys,
+        multiTagDelimiter,
+        submissionProperties.getParallelMappingThreshold(),
+        submissionProperties.getMappingParallelism());
   }
 
-  @Value("${tsv.multiTagDelimiter}")
-  public void setMultiTagDelimiter(String delimiter) {
-    multiTagDelimiter = delimiter;
+  public PayloadFileMapper(String payloadJsonTemplate) {
+    this(payloadJsonTemplate, List.of(), DEFAULT_MULTI_TAG_DELIMITER);
   }
 
-  @Autowired
-  public PayloadFileMapper(MuseAppConfig config) {
-    this.payloadJsonTemplate = config.getPayloadJsonTemplate();
+  public PayloadFileMapper(
+      String payloadJsonTemplate, List<String> columnKeys, String multiTagDelimiter) {
+    this(payloadJsonTemplate, columnKeys, multiTagDelimiter, Integer.MAX_VALUE, 1);
   }
 
-  public PayloadFileMapper(String payloadJsonTemplate) {
-    this.payloadJsonTemplate = payloadJsonTemplate;
+  public PayloadFileMapper(
+      String payloadJsonTemplate,
+      List<String> columnKeys,
+      String multiTagDelimiter,
+      Integer parallelMappingThreshold,
+      Integer mappingParallelism) {
+    this.payloadTemplate = new PayloadTemplate(payloadJsonTemplate, columnKeys, multiTagDelimiter);
+    this.parallelMappingThreshold = parallelMappingThreshold;
+    this.mappingParallelism = mappingParallelism;
+    this.mappingScheduler =
+        mappingParallelism > 1
+            ? Schedulers.newParallel("payload-mapping", mappingParallelism)
+            : null;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (mappingScheduler != null) {
+      mappingScheduler.dispose();
+    }
   }
 
-  @SneakyThrows
   public Map<String, UploadRequest> submissionBundleToSubmissionRequests(
       SubmissionBundle submissionBundle) {
     log.info("Mapping payloads to files");
-
-    val invalidFiles = findFilesWithHeaderOnly(submissionBundle.getFiles());
-    if (invalidFiles.size() > 0) {
-      throw new FoundInvalidFilesException(invalidFiles);
-    }
+    checkForInvalidFiles(submissionBundle);
 
     val result =
         submissionBundle.getRecords().stream()
             .reduce(
                 new MapperReduceResult(),
-                accumulator(submissionBundle, payloadJsonTemplate),
+                accumulator(submissionBundle, payloadTemplate),
                 combiner());
 
+    return toSubmissionRequests(submissionBundle, result);
+  }
+
+  /**
+   * Same as submissionBundleToSubmissionRequests, but large bundles have their records split into
+   * chunks that are mapped in parallel on the mappingScheduler. Chunk results are combined in
+   * record order, so the result and any missing data errors are the same as mapping them
+   * sequentially.
+   */
+  public Mono<Map<String, UploadRequest>> mapSubmissionBundleToSubmissionRequests(
+      SubmissionBundle submissionBundle) {
+    val records = submissionBundle.getRecords();
+    if (mappingScheduler == null || records.size() < parallelMappingThreshold) {
+      return Mono.fromCallable(() -> submissionBundleToSubmissionRequests(submissionBundle));
+    }
+
+    val chunkSize =
+        Math.max(MIN_CHUNK_SIZE, records.size() / (mappingParallelism * CHUNKS_PER_THREAD) + 1);
+
+    return Mono.fromRunnable(
+            () -> {
+              log.info("Mapping {} payloads to files in parallel", records.size());
+              checkForInvalidFiles(submissionBundle);
+            })
+        .thenMany(Flux.fromIterable(Lists.partition(records, chunkSize)))
+        .flatMapSequential(
+            chunk ->
+                Mono.fromCallable(
+                        () ->
+                            chunk.stream()
+                                .reduce(
+                                    new MapperReduceResult(),
+                                    accumulator(submissionBundle, payloadTemplate),
+                                    combiner()))
+                    .subscribeOn(mappingScheduler),
+            mappingParallelism)
+        .reduce(combiner())
+        .defaultIfEmpty(new MapperReduceResult())
+        .map(result -> toSubmissionRequests(submissionBundle, result));
+  }
+
+  @SneakyThrows
+  private static void checkForInvalidFiles(SubmissionBundle submissionBundle) {
+    val invalidFiles = findFilesWithHeaderOnly(submissionBundle.getFiles());
+    if (invalidFiles.size() > 0) {
+      throw new FoundInvalidFilesException(invalidFiles);
+    }
+  }
+
+  @SneakyThrows
+  private static Map<String, UploadRequest> toSubmissionRequests(
+      SubmissionBundle submissionBundle, MapperReduceResult result) {
     val fastaHeaderInRecordMissingFile = result.getFastaHeaderInRecordMissingInFile();
 
     val fastaHeaderInFileMissingInTsv =
@@ -94,21 +175,37 @@ public class PayloadFileMapper {
     return result.getRecordsMapped();
   }
 
+  /**
+   * Index the records of a submission by fasta header, so that the samples of the molecular files
+   * can be joined to their records one at a time as they are decoded instead of once every file has
+   * been read into a SubmissionBundle
+   *
+   * @param records - validated records of the metadata file
+   * @param metadataFileNames - names of the submitted metadata files
+   * @return index to join samples against
+   */
+  public RecordIndex indexRecords(
+      List<Map<String, Object>> records, Collection<String> metadataFileNames) {
+    return new RecordIndex(records, metadataFileNames);
+  }
+
   private static List<String> findFilesWithHeaderOnly(
       ConcurrentHashMap<String, SubmissionFile> files) {
     return files.entrySet().stream()
-        .filter(
-            entry ->
-                // add two for the ">" and "\n" that exist in header and not in fastaHeader
-                entry.getKey().length() + 2 == entry.getValue().getFileSize())
+        .filter(entry -> isHeaderOnly(entry.getKey(), entry.getValue()))
         .map(Map.Entry::getKey)
         .collect(Collectors.toUnmodifiableList());
   }
 
+  private static boolean isHeaderOnly(String fastaHeader, SubmissionFile submissionFile) {
+    // add two for the ">" and "\n" that exist in header and not in fastaHeader
+    return fastaHeader.length() + 2 == submissionFile.getFileSize();
+  }
+
   private static BiFunction<MapperReduceResult, Map<String, Object>, MapperReduceResult>
-      accumulator(SubmissionBundle submissionBundle, String payloadTemplate) {
+      accumulator(SubmissionBundle submissionBundle, PayloadTemplate payloadTemplate) {
     return (acc, r) -> {
-      val payload = convertRecordToPayload(r, payloadTemplate);
+      val payload = payloadTemplate.render(r);
       val fastaHeader = getFastaHeaderName(payload);
       val submissionFile = submissionBundle.getFiles().get(fastaHeader);
 
@@ -117,24 +214,12 @@ public class PayloadFileMapper {
         return acc;
       }
 
-      val submitterSampleId = getFirstSubmitterSampleId(payload);
-      val sampleFileName = format("%s%s", submitterSampleId, submissionFile.getFileExtension());
-
-      payload.set("files", createFilesObject(submissionFile, sampleFileName));
-
       val uploadRequest =
-          UploadRequest.builder()
-              .submitterSampleId(submitterSampleId)
-              .studyId(getStudyId(payload))
-              .record(payload)
-              .submissionFile(submissionFile)
-              .originalFileNames(
-                  Stream.concat(
-                          submissionBundle.getOriginalFileNames().stream()
-                              .filter(filename -> filename.endsWith(".tsv")),
-                          Stream.of(submissionFile.getSubmittedFileName()))
-                      .collect(Collectors.toSet()))
-              .build();
+          toUploadRequest(
+              payload,
+              submissionFile,
+              submissionBundle.getOriginalFileNames().stream()
+                  .filter(filename -> filename.endsWith(".tsv")));
 
       acc.getUsedFastaHeaders().add(fastaHeader);
       acc.getRecordsMapped().put(uploadRequest.getCompositeId(), uploadRequest);
@@ -143,6 +228,24 @@ public class PayloadFileMapper {
     };
   }
 
+  private static UploadRequest toUploadRequest(
+      ObjectNode payload, SubmissionFile submissionFile, Stream<String> metadataFileNames) {
+    val submitterSampleId = getFirstSubmitterSampleId(payload);
+    val sampleFileName = format("%s%s", submitterSampleId, submissionFile.getFileExtension());
+
+    payload.set("files", createFilesObject(submissionFile, sampleFileName));
+
+    return UploadRequest.builder()
+        .submitterSampleId(submitterSampleId)
+        .studyId(getStudyId(payload))
+        .record(payload)
+        .submissionFile(submissionFile)
+        .originalFileNames(
+            Stream.concat(metadataFileNames, Stream.of(submissionFile.getSubmittedFileName()))
+                .collect(Collectors.toSet()))
+        .build();
+  }
+
   private static BinaryOperator<MapperReduceResult> combiner() {
     return (first, second) -> {
       first.getRecordsMapped().putAll(second.getRecordsMapped());
@@ -154,40 +257,6 @@ public class PayloadFileMapper {
     };
   }
 
-  @SneakyThrows
-  private static ObjectNode convertRecordToPayload(
-      Map<String, Object> valuesMap, String payloadTemplate) {
-    StringLookup lookupFunc =
-        key -> {
-          val value = valuesMap.getOrDefault(key, "");
-
-          // value is mapped to json value by these rules
-          if (value instanceof Number) {
-            // numeric no need to append quotes
-            return value.toString();
-          } else if (value.toString().trim().equals("")) {
-            // empty string map to null value
-            return "null";
-          } else if((!Objects.isNull(columnKeys) && columnKeys.contains(key)) && (value.toString().split(multiTagDelimiter).length>0)) {
-            //for multiple tags in single cell
-            return StringUtils.stringToArrayOfStrings(value.toString(), multiTagDelimiter);
-          }
-          else {
-            // for string append double quotes and escape any existing double quotes
-            return format("\"%s\"", value.toString().replace("\"", "\\\""));
-          }
-        };
-
-    val sub = new StringSubstitutor(lookupFunc);
-    // throw error if valuesMap is missing template values in payloadTemplate
-    sub.setEnableUndefinedVariableException(true);
-    val templatedStr = sub.replace(payloadTemplate);
-    log.debug("Templated String - {}", templatedStr);
-    return new ObjectMapper().readValue(templatedStr, ObjectNode.class);
-  }
-
-
-
   private static JsonNode createFilesObject(SubmissionFile submissionFile, String fileName) {
     val filesArray = JsonNodeFactory.instance.arrayNode(1);
     val fileObj = JsonNodeFactory.instance.objectNode();
@@ -203,6 +272,107 @@ public class PayloadFileMapper {
     return filesArray;
   }
 
+  /**
+   * Records of a submission indexed by fasta header. Samples are joined to the records referencing
+   * them as they are decoded, and once every sample has been joined checkComplete reports the same
+   * invalid file and missing data errors that mapping a whole SubmissionBundle would. Not thread
+   * safe, samples are expected to be joined one at a time.
+   */
+  public class RecordIndex {
+    private final Set<String> metadataFileNames;
+    // in tsv order
+    private final List<IndexedRecord> records = new ArrayList<>();
+    private final Map<String, List<IndexedRecord>> recordsByFastaHeader = new HashMap<>();
+    // when records share a composite id only the last one is uploaded
+    private final Map<String, IndexedRecord> uploadedRecordByCompositeId = new HashMap<>();
+
+    // a later sample with the same header replaces an earlier one, same as in a SubmissionBundle
+    private final Map<String, Boolean> headerOnlyByJoinedFastaHeader = new LinkedHashMap<>();
+    private final Set<String> fastaHeaderInFileMissingInTsv = new LinkedHashSet<>();
+
+    private RecordIndex(List<Map<String, Object>> records, Collection<String> metadataFileNames) {
+      this.metadataFileNames = Set.copyOf(metadataFileNames);
+      for (val record : records) {
+        val payload = payloadTemplate.render(record);
+        val indexed =
+            new IndexedRecord(
+                payload,
+                getFastaHeaderName(payload),
+                getStudyId(payload) + "-" + getFirstSubmitterSampleId(payload));
+
+        this.records.add(indexed);
+        recordsByFastaHeader
+            .computeIfAbsent(indexed.getFastaHeader(), fastaHeader -> new ArrayList<>(1))
+            .add(indexed);
+        uploadedRecordByCompositeId.put(indexed.getCompositeId(), indexed);
+      }
+    }
+
+    /**
+     * @param fastaHeader - header of the decoded sample
+     * @param submissionFile - the decoded sample
+     * @return upload requests for the records referencing the sample, empty if there are none
+     */
+    public List<UploadRequest> join(String fastaHeader, SubmissionFile submissionFile) {
+      headerOnlyByJoinedFastaHeader.put(fastaHeader, isHeaderOnly(fastaHeader, submissionFile));
+
+      val referencingRecords = recordsByFastaHeader.get(fastaHeader);
+      if (referencingRecords == null) {
+        fastaHeaderInFileMissingInTsv.add(fastaHeader);
+        return List.of();
+      }
+
+      return referencingRecords.stream()
+          .filter(record -> uploadedRecordByCompositeId.get(record.getCompositeId()) == record)
+          .map(
+              record ->
+                  toUploadRequest(record.getPayload(), submissionFile, metadataFileNames.stream()))
+          .collect(toUnmodifiableList());
+    }
+
+    /** @return number of uploads the submission will have once every record is joined */
+    public int getTotalRecords() {
+      return uploadedRecordByCompositeId.size();
+    }
+
+    public Set<String> getStudyIds() {
+      return uploadedRecordByCompositeId.values().stream()
+          .map(record -> getStudyId(record.getPayload()))
+          .collect(Collectors.toSet());
+    }
+
+    /** Throws the same errors as submissionBundleToSubmissionRequests once all files are joined */
+    @SneakyThrows
+    public void checkComplete() {
+      val invalidFiles =
+          headerOnlyByJoinedFastaHeader.entrySet().stream()
+              .filter(Map.Entry::getValue)
+              .map(Map.Entry::getKey)
+              .collect(toUnmodifiableList());
+      if (invalidFiles.size() > 0) {
+        throw new FoundInvalidFilesException(invalidFiles);
+      }
+
+      val fastaHeaderInRecordMissingFile =
+          records.stream()
+              .map(IndexedRecord::getFastaHeader)
+              .filter(fastaHeader -> !headerOnlyByJoinedFastaHeader.containsKey(fastaHeader))
+              .collect(toUnmodifiableList());
+
+      if (fastaHeaderInFileMissingInTsv.size() > 0 || fastaHeaderInRecordMissingFile.size() > 0) {
+        throw new MissingDataException(
+            List.copyOf(fastaHeaderInFileMissingInTsv), fastaHeaderInRecordMissingFile);
+      }
+    }
+  }
+
+  @lombok.Value
+  private static class IndexedRecord {
+    ObjectNode payload;
+    String fastaHeader;
+    String compositeId;
+  }
+
   @Data
   @NoArgsConstructor
   static class MapperReduceResult {
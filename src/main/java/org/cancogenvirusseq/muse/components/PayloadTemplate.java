@@ -0,0 +1,240 @@
+package org.cancogenvirusseq.muse.components;
+
+import static java.lang.String.format;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.val;
+
+/**
+ * The payload-template compiled once into a tree of literal json and typed slots, each ${key} in
+ * the template being a slot. A record is rendered by walking the tree and building the payload
+ * ObjectNode directly, there is no text substitution or json parsing per record.
+ *
+ * <p>Record values are mapped to json values by these rules: numbers are numeric, empty values are
+ * null, values of columnKeys are split on the delimiter into one string per tag (when the slot is
+ * in an array, ex. [${key}]) and anything else is a string. Keys missing from the record are empty.
+ */
+class PayloadTemplate {
+  private static final JsonNodeFactory NODE_FACTORY = JsonNodeFactory.instance;
+  private static final Pattern SLOT = Pattern.compile("^\\$\\{(.+)}$");
+
+  private final TemplateNode root;
+  private final Set<String> columnKeys;
+  private final Pattern multiTagDelimiter;
+
+  /**
+   * @param payloadJsonTemplate - json with ${key} placeholders as values
+   * @param columnKeys - keys of the values that may hold multiple delimited tags
+   * @param multiTagDelimiter - regex the tags are delimited by
+   * @throws IllegalArgumentException if the template isn't a json object once its placeholders are
+   *     filled in, or has a placeholder inside of a string
+   */
+  PayloadTemplate(
+      String payloadJsonTemplate, Collection<String> columnKeys, String multiTagDelimiter) {
+    this.columnKeys = Set.copyOf(columnKeys);
+    this.multiTagDelimiter = Pattern.compile(multiTagDelimiter);
+
+    val parsed = parse(quotePlaceholders(payloadJsonTemplate));
+    if (!parsed.isObject()) {
+      throw new IllegalArgumentException("Payload template must be a json object");
+    }
+    this.root = compile(parsed);
+  }
+
+  ObjectNode render(Map<String, Object> record) {
+    return (ObjectNode) root.render(record);
+  }
+
+  /** Placeholders become json strings ("${key}") so the template can be parsed as json */
+  private static String quotePlaceholders(String template) {
+    val quoted = new StringBuilder(template.length() + 64);
+    boolean inString = false;
+
+    for (int i = 0; i < template.length(); i++) {
+      val c = template.charAt(i);
+      if (inString) {
+        if (c == '\\' && i + 1 < template.length()) {
+          quoted.append(c).append(template.charAt(++i));
+          continue;
+        }
+        if (c == '$' && template.startsWith("${", i)) {
+          throw new IllegalArgumentException(
+              format("Payload template placeholder at %s is inside of a string", i));
+        }
+        inString = c != '"';
+      } else if (c == '"') {
+        inString = true;
+      } else if (c == '$' && template.startsWith("${", i)) {
+        val end = template.indexOf('}', i);
+        if (end == -1) {
+          throw new IllegalArgumentException(
+              format("Payload template placeholder at %s is never closed", i));
+        }
+        quoted.append('"').append(template, i, end + 1).append('"');
+        i = end;
+        continue;
+      }
+      quoted.append(c);
+    }
+
+    return quoted.toString();
+  }
+
+  @SneakyThrows
+  private static JsonNode parse(String json) {
+    return new ObjectMapper().readTree(json);
+  }
+
+  private TemplateNode compile(JsonNode node) {
+    if (node.isTextual()) {
+      val slot = SLOT.matcher(node.textValue());
+      if (slot.matches()) {
+        return new Slot(slot.group(1));
+      }
+    }
+
+    if (node.isObject()) {
+      val fieldNames = new ArrayList<String>(node.size());
+      val children = new ArrayList<TemplateNode>(node.size());
+      node.fields()
+          .forEachRemaining(
+              field -> {
+                fieldNames.add(field.getKey());
+                children.add(compile(field.getValue()));
+              });
+      return children.stream().allMatch(Literal.class::isInstance)
+          ? new Literal(node)
+          : new ObjectTemplate(fieldNames.toArray(String[]::new), children);
+    }
+
+    if (node.isArray()) {
+      val children = new ArrayList<TemplateNode>(node.size());
+      node.elements().forEachRemaining(element -> children.add(compile(element)));
+      return children.stream().allMatch(Literal.class::isInstance)
+          ? new Literal(node)
+          : new ArrayTemplate(children);
+    }
+
+    return new Literal(node);
+  }
+
+  private interface TemplateNode {
+    JsonNode render(Map<String, Object> record);
+  }
+
+  /** Part of the template without any slots, it is the same for every record */
+  @RequiredArgsConstructor
+  private static class Literal implements TemplateNode {
+    private final JsonNode node;
+
+    @Override
+    public JsonNode render(Map<String, Object> record) {
+      // copied as payloads are modified once rendered
+      return node.deepCopy();
+    }
+  }
+
+  @RequiredArgsConstructor
+  private static class ObjectTemplate implements TemplateNode {
+    private final String[] fieldNames;
+    private final List<TemplateNode> children;
+
+    @Override
+    public ObjectNode render(Map<String, Object> record) {
+      val object = NODE_FACTORY.objectNode();
+      for (int i = 0; i < fieldNames.length; i++) {
+        object.set(fieldNames[i], children.get(i).render(record));
+      }
+      return object;
+    }
+  }
+
+  @RequiredArgsConstructor
+  private static class ArrayTemplate implements TemplateNode {
+    private final List<TemplateNode> children;
+
+    @Override
+    public ArrayNode render(Map<String, Object> record) {
+      val array = NODE_FACTORY.arrayNode(children.size());
+      for (val child : children) {
+        if (child instanceof Slot) {
+          // tags of a multi tag value are spliced into the array
+          ((Slot) child).renderInto(array, record);
+        } else {
+          array.add(child.render(record));
+        }
+      }
+      return array;
+    }
+  }
+
+  @RequiredArgsConstructor
+  private class Slot implements TemplateNode {
+    private final String key;
+
+    @Override
+    public JsonNode render(Map<String, Object> record) {
+      return toJsonValue(record.getOrDefault(key, ""));
+    }
+
+    void renderInto(ArrayNode array, Map<String, Object> record) {
+      val value = record.getOrDefault(key, "");
+      if (value instanceof Number || !columnKeys.contains(key)) {
+        array.add(toJsonValue(value));
+        return;
+      }
+
+      val str = value.toString();
+      val tags = multiTagDelimiter.split(str);
+      if (str.trim().isEmpty() || tags.length == 0) {
+        array.add(toJsonValue(value));
+        return;
+      }
+
+      for (val tag : tags) {
+        array.add(tag);
+      }
+    }
+  }
+
+  private static JsonNode toJsonValue(Object value) {
+    if (value instanceof Number) {
+      return toNumberNode((Number) value);
+    }
+
+    val str = value.toString();
+    if (str.trim().isEmpty()) {
+      return NODE_FACTORY.nullNode();
+    }
+    return NODE_FACTORY.textNode(str);
+  }
+
+  /** Same node type as parsing the number's string representation */
+  private static JsonNode toNumberNode(Number number) {
+    if (number instanceof Integer || number instanceof Short || number instanceof Byte) {
+      return NODE_FACTORY.numberNode(number.intValue());
+    }
+    if (number instanceof Long) {
+      val longValue = number.longValue();
+      return longValue == (int) longValue
+          ? NODE_FACTORY.numberNode((int) longValue)
+          : NODE_FACTORY.numberNode(longValue);
+    }
+    if (number instanceof Double || number instanceof Float) {
+      return NODE_FACTORY.numberNode(Double.parseDouble(number.toString()));
+    }
+    return parse(number.toString());
+  }
+}
@@ -0,0 +1,143 @@
+package org.cancogenvirusseq.muse.components;
+
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.buildSubmissionFile;
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.newMd5Digest;
+
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+import org.cancogenvirusseq.muse.model.SpooledFile;
+import org.cancogenvirusseq.muse.model.SubmissionFile;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+/**
+ * Scans a fasta file that has been spooled to disk, one memory-mapped window at a time, and returns
+ * each sample as a slice of the spooled file rather than copying its content onto the heap. Samples
+ * are delimited and trimmed exactly as in {@link FastaRecordDecoder}.
+ */
+@RequiredArgsConstructor
+class SpooledFastaScanner {
+  private static final byte HEADER_START = '>';
+  private static final byte NEW_LINE = '\n';
+
+  private final SpooledFile spooledFile;
+  private final String submittedFileName;
+
+  private final MessageDigest md5 = newMd5Digest();
+
+  // all positions are absolute offsets into the spooled file
+  private long recordStart = -1;
+  private long headerEnd = -1;
+  private long contentEnd = -1;
+  private long hashedTo = -1;
+
+  /**
+   * Scan the next window of the file
+   *
+   * @param windowPosition - position of the window in the file
+   * @param window - mapped content of the file from windowPosition
+   * @return samples completed within this window, in file order
+   */
+  List<Tuple2<String, SubmissionFile>> scan(long windowPosition, ByteBuffer window)
+      throws IOException {
+    val completed = new ArrayList<Tuple2<String, SubmissionFile>>();
+    val end = window.limit();
+
+    for (int i = window.position(); i < end; i++) {
+      val b = window.get(i);
+      val position = windowPosition + i;
+
+      if (b == HEADER_START) {
+        if (recordStart != -1) {
+          hashContent(windowPosition, window);
+          completeRecord(completed);
+        }
+        recordStart = position;
+        headerEnd = -1;
+        contentEnd = position + 1;
+        hashedTo = position;
+      } else if (recordStart != -1) {
+        if (b == NEW_LINE && headerEnd == -1) {
+          headerEnd = position;
+        }
+        // trailing whitespace is trimmed (same definition as String::trim)
+        if ((b & 0xff) > ' ') {
+          contentEnd = position + 1;
+        }
+      }
+    }
+
+    if (recordStart != -1) {
+      hashContent(windowPosition, window);
+    }
+
+    return completed;
+  }
+
+  /**
+   * Signal the end of the file
+   *
+   * @return the final sample if there is one
+   */
+  List<Tuple2<String, SubmissionFile>> complete() throws IOException {
+    val completed = new ArrayList<Tuple2<String, SubmissionFile>>(1);
+    if (recordStart != -1) {
+      completeRecord(completed);
+      recordStart = -1;
+    }
+    return completed;
+  }
+
+  /**
+   * Hash the record content confirmed so far while its window is mapped, trailing whitespace is
+   * only hashed once content follows it
+   */
+  private void hashContent(long windowPosition, ByteBuffer window) throws IOException {
+    if (contentEnd <= hashedTo) {
+      return;
+    }
+
+    if (hashedTo < windowPosition) {
+      // whitespace left at the end of the previous window
+      md5.update(spooledFile.read(hashedTo, Math.toIntExact(windowPosition - hashedTo)));
+      hashedTo = windowPosition;
+    }
+
+    val content = window.duplicate();
+    content.limit(Math.toIntExact(contentEnd - windowPosition));
+    content.position(Math.toIntExact(hashedTo - windowPosition));
+    md5.update(content);
+    hashedTo = contentEnd;
+  }
+
+  private void completeRecord(List<Tuple2<String, SubmissionFile>> completed) throws IOException {
+    // content was hashed as it was scanned, digest also resets for the next record
+    val md5sum = HashCode.fromBytes(md5.digest()).toString();
+
+    // samples without a new line after the header, once trimmed, are dropped
+    if (headerEnd == -1 || headerEnd >= contentEnd) {
+      return;
+    }
+
+    // fasta header is from after ">" char to new line (not including)
+    val fastaHeader =
+        new String(
+                spooledFile.read(recordStart + 1, Math.toIntExact(headerEnd - recordStart - 1)),
+                StandardCharsets.UTF_8)
+            .trim();
+
+    val length = Math.toIntExact(contentEnd - recordStart);
+    completed.add(
+        Tuples.of(
+            fastaHeader,
+            buildSubmissionFile(
+                spooledFile.slice(recordStart, length), md5sum, submittedFileName)));
+  }
+}
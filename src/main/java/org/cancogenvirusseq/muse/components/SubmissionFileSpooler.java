@@ -0,0 +1,227 @@
+package org.cancogenvirusseq.muse.components;
+
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.processFileContent;
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.processSpooledFileContent;
+import static org.cancogenvirusseq.muse.model.SpooledFile.SPOOL_FILE_SUFFIX;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.cancogenvirusseq.muse.config.SubmissionProperties;
+import org.cancogenvirusseq.muse.model.SpooledFile;
+import org.cancogenvirusseq.muse.model.SubmissionFile;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+/**
+ * Decodes molecular files, holding each in memory only up to the configured spool threshold. Larger
+ * files are written to the spool directory and parsed from disk so that the samples of a large
+ * submission do not all have to fit on the heap. Samples of a submission past its spill budget are
+ * moved to disk the same way (see {@link SampleSpill}).
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SubmissionFileSpooler {
+  private final SubmissionProperties submissionProperties;
+
+  @PostConstruct
+  @SneakyThrows
+  public void init() {
+    if (!submissionProperties.isSpoolEnabled()) {
+      return;
+    }
+
+    val spoolDirectory = getSpoolDirectory();
+    Files.createDirectories(spoolDirectory);
+
+    // anything left behind by a previous run belongs to uploads that can no longer complete
+    int deleted = 0;
+    try (val leftovers = Files.newDirectoryStream(spoolDirectory, "*" + SPOOL_FILE_SUFFIX)) {
+      for (val leftover : leftovers) {
+        Files.deleteIfExists(leftover);
+        deleted++;
+      }
+    }
+
+    log.info(
+        "Spooling submitted files larger than {} bytes to {}, removed {} leftover files",
+        submissionProperties.getSpoolThreshold(),
+        spoolDirectory,
+        deleted);
+  }
+
+  /**
+   * Decode a molecular file into samples, spooling it to disk if it exceeds the spool threshold
+   *
+   * @param content - raw (unzipped) content of the fasta file
+   * @param submittedFileName - original filename of the fasta file
+   * @param onSpooled - receives the spooled file as soon as it is created, the receiver owns the
+   *     initial reference and must release it
+   * @return flux of fastaHeader => SubmissionFile, in file order
+   */
+  public Flux<Tuple2<String, SubmissionFile>> processMolecularFileContent(
+      Flux<DataBuffer> content, String submittedFileName, Consumer<SpooledFile> onSpooled) {
+    if (!submissionProperties.isSpoolEnabled()) {
+      return processFileContent(content, submittedFileName);
+    }
+
+    return Flux.using(
+        () -> new Spool(onSpooled),
+        spool ->
+            content
+                .concatMap(spool::offer)
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                .thenMany(Flux.defer(() -> spool.decode(submittedFileName))),
+        Spool::releaseHead);
+  }
+
+  /**
+   * Start spilling the samples of one submission. Samples are kept on the heap until their total
+   * size crosses the spill budget, the content of every sample after that is appended to a single
+   * segment file and replaced by a slice of it, so only the fasta header to offset index of the
+   * spilled samples stays in memory however large the submission is.
+   *
+   * @param onSpooled - receives the segment file as soon as it is created, the receiver owns the
+   *     initial reference and must release it
+   * @return spill to pass each decoded sample of the submission through, one at a time
+   */
+  public SampleSpill newSampleSpill(Consumer<SpooledFile> onSpooled) {
+    return new SampleSpill(onSpooled);
+  }
+
+  private Path getSpoolDirectory() {
+    return Path.of(submissionProperties.getSpoolDirectory());
+  }
+
+  /** Content of a single file, buffered in memory until the threshold is crossed */
+  @RequiredArgsConstructor
+  private class Spool {
+    private final Consumer<SpooledFile> onSpooled;
+
+    private final List<DataBuffer> head = new ArrayList<>();
+    private long headSize = 0;
+    private SpooledFile spooledFile;
+
+    Mono<Void> offer(DataBuffer dataBuffer) {
+      if (spooledFile == null
+          && headSize + dataBuffer.readableByteCount()
+              <= submissionProperties.getSpoolThreshold()) {
+        head.add(dataBuffer);
+        headSize += dataBuffer.readableByteCount();
+        return Mono.empty();
+      }
+
+      return Mono.<Void>fromRunnable(() -> write(dataBuffer))
+          .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    Flux<Tuple2<String, SubmissionFile>> decode(String submittedFileName) {
+      if (spooledFile == null) {
+        val content = new ArrayList<>(head);
+        head.clear();
+        return processFileContent(Flux.fromIterable(content), submittedFileName);
+      }
+
+      return processSpooledFileContent(spooledFile, submittedFileName);
+    }
+
+    @SneakyThrows
+    private void write(DataBuffer dataBuffer) {
+      try {
+        if (spooledFile == null) {
+          spooledFile = SpooledFile.create(getSpoolDirectory());
+          onSpooled.accept(spooledFile);
+
+          while (!head.isEmpty()) {
+            writeAndRelease(head.remove(0));
+          }
+        }
+
+        spooledFile.write(dataBuffer.asByteBuffer());
+      } finally {
+        DataBufferUtils.release(dataBuffer);
+      }
+    }
+
+    @SneakyThrows
+    private void writeAndRelease(DataBuffer dataBuffer) {
+      try {
+        spooledFile.write(dataBuffer.asByteBuffer());
+      } finally {
+        DataBufferUtils.release(dataBuffer);
+      }
+    }
+
+    void releaseHead() {
+      head.forEach(DataBufferUtils::release);
+      head.clear();
+    }
+  }
+
+  /** Samples of a single submission, held in memory until the spill budget is used up */
+  @RequiredArgsConstructor
+  public class SampleSpill {
+    private final Consumer<SpooledFile> onSpooled;
+
+    private long inMemorySize = 0;
+    private SpooledFile segment;
+
+    /**
+     * @param fastaHeaderFile - decoded sample
+     * @return the same sample, its content moved to the segment file if over the spill budget. The
+     *     file size and md5 are untouched, they were computed while decoding.
+     */
+    public Mono<Tuple2<String, SubmissionFile>> spill(
+        Tuple2<String, SubmissionFile> fastaHeaderFile) {
+      val content = fastaHeaderFile.getT2().getContent();
+      // content of spooled files is already on disk
+      if (!submissionProperties.isSpoolEnabled() || content instanceof SpooledFile.Slice) {
+        return Mono.just(fastaHeaderFile);
+      }
+
+      if (segment == null
+          && inMemorySize + content.getSize() <= submissionProperties.getSpillBudget()) {
+        inMemorySize += content.getSize();
+        return Mono.just(fastaHeaderFile);
+      }
+
+      return Mono.fromCallable(() -> append(fastaHeaderFile))
+          .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private Tuple2<String, SubmissionFile> append(Tuple2<String, SubmissionFile> fastaHeaderFile)
+        throws IOException {
+      if (segment == null) {
+        segment = SpooledFile.create(getSpoolDirectory());
+        onSpooled.accept(segment);
+      }
+
+      val submissionFile = fastaHeaderFile.getT2();
+      val content = submissionFile.getContent();
+      val position = segment.size();
+      segment.write(content.asByteBuffer());
+
+      return Tuples.of(
+          fastaHeaderFile.getT1(),
+          submissionFile
+              .toBuilder()
+              .content(segment.slice(position, (int) content.getSize()))
+              .build());
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package org.cancogenvirusseq.muse.components;
+
+import static org.cancogenvirusseq.muse.model.tsv_parser.InvalidField.Reason.EXPECTING_NUMBER_TYPE;
+import static org.cancogenvirusseq.muse.model.tsv_parser.InvalidField.Reason.NOT_ALLOWED_TO_BE_EMPTY;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+import org.cancogenvirusseq.muse.model.tsv_parser.TsvFieldSchema;
+
+/**
+ * Validator and converter for one column of the metadata tsv, compiled once from its TsvFieldSchema
+ * so that validating a row is a loop over an array of these with no schema interpretation, map
+ * lookups or regex.
+ */
+@RequiredArgsConstructor
+abstract class TsvColumnValidator {
+  @Getter private final String fieldName;
+  private final boolean requireNotEmpty;
+
+  static TsvColumnValidator compile(TsvFieldSchema schema) {
+    if (TsvFieldSchema.ValueType.number.equals(schema.getValueType())) {
+      return new NumberColumnValidator(schema.getName(), schema.isRequireNotEmpty());
+    }
+    return new StringColumnValidator(schema.getName(), schema.isRequireNotEmpty());
+  }
+
+  /**
+   * @param value - raw value of the column
+   * @return the converted value, or the InvalidField.Reason the value is invalid
+   */
+  Object apply(String value) {
+    if (value.isEmpty()) {
+      return requireNotEmpty ? NOT_ALLOWED_TO_BE_EMPTY : value;
+    }
+    return convert(value);
+  }
+
+  abstract Object convert(String value);
+
+  static class StringColumnValidator extends TsvColumnValidator {
+    StringColumnValidator(String fieldName, boolean requireNotEmpty) {
+      super(fieldName, requireNotEmpty);
+    }
+
+    @Override
+    Object convert(String value) {
+      return value;
+    }
+  }
+
+  /**
+   * Accepts an optionally negative integer, converted to an Integer (or Long/Double when it doesn't
+   * fit), or decimal with digits either side of the point, converted to a Double.
+   */
+  static class NumberColumnValidator extends TsvColumnValidator {
+    NumberColumnValidator(String fieldName, boolean requireNotEmpty) {
+      super(fieldName, requireNotEmpty);
+    }
+
+    @Override
+    Object convert(String value) {
+      val length = value.length();
+      val negative = value.charAt(0) == '-';
+
+      int i = negative ? 1 : 0;
+      val integerStart = i;
+
+      // accumulate negatively so that Long.MIN_VALUE can be represented
+      long accumulated = 0;
+      boolean overflow = false;
+      for (; i < length && isDigit(value.charAt(i)); i++) {
+        val digit = value.charAt(i) - '0';
+        if (accumulated < (Long.MIN_VALUE + digit) / 10) {
+          overflow = true;
+        }
+        accumulated = accumulated * 10 - digit;
+      }
+
+      if (i == integerStart) {
+        return EXPECTING_NUMBER_TYPE;
+      }
+
+      if (i == length) {
+        if (overflow || (!negative && accumulated == Long.MIN_VALUE)) {
+          return Double.parseDouble(value);
+        }
+        val integer = negative ? accumulated : -accumulated;
+        if (integer >= Integer.MIN_VALUE && integer <= Integer.MAX_VALUE) {
+          return (int) integer;
+        }
+        return integer;
+      }
+
+      if (value.charAt(i) != '.' || i == length - 1) {
+        return EXPECTING_NUMBER_TYPE;
+      }
+
+      for (i++; i < length; i++) {
+        if (!isDigit(value.charAt(i))) {
+          return EXPECTING_NUMBER_TYPE;
+        }
+      }
+
+      return Double.parseDouble(value);
+    }
+
+    private static boolean isDigit(char c) {
+      return c >= '0' && c <= '9';
+    }
+  }
+}
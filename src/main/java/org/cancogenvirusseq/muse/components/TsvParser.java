@@ -1,34 +1,39 @@
 package org.cancogenvirusseq.muse.components;
 
-import static java.lang.Double.parseDouble;
-import static java.lang.Integer.parseInt;
 import static java.util.stream.Collectors.toUnmodifiableList;
 import static org.cancogenvirusseq.muse.model.tsv_parser.InvalidField.Reason.*;
-import static org.cancogenvirusseq.muse.utils.StringUtils.isDouble;
-import static org.cancogenvirusseq.muse.utils.StringUtils.isInteger;
 
 import com.google.common.collect.ImmutableList;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.function.BiFunction;
-import java.util.function.UnaryOperator;
-import java.util.stream.IntStream;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Stream;
+import javax.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.cancogenvirusseq.muse.components.security.Scopes;
+import org.cancogenvirusseq.muse.components.security.StudyAuthorization;
 import org.cancogenvirusseq.muse.config.MuseAppConfig;
+import org.cancogenvirusseq.muse.config.SubmissionProperties;
 import org.cancogenvirusseq.muse.exceptions.submission.InvalidFieldsException;
 import org.cancogenvirusseq.muse.exceptions.submission.InvalidHeadersException;
 import org.cancogenvirusseq.muse.model.tsv_parser.InvalidField;
 import org.cancogenvirusseq.muse.model.tsv_parser.TsvFieldSchema;
+import org.cancogenvirusseq.muse.model.tsv_parser.TsvRecord;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 @Slf4j
 @Component
@@ -38,46 +43,80 @@ public class TsvParser {
   private final Scopes scopes;
   private final ImmutableList<TsvFieldSchema> tsvFieldSchemas;
   private final ImmutableList<String> expectedTsvHeaders;
+  private final TsvColumnValidator[] columnValidators;
+
+  // files with at least this many rows are validated in parallel on the validationPool
+  private final int parallelValidationThreshold;
+  private final ForkJoinPool validationPool;
 
   @Autowired
-  public TsvParser(MuseAppConfig config, Scopes scopes) {
-    this.scopes = scopes;
-    this.tsvFieldSchemas = config.getTsvFieldSchemas();
-    this.expectedTsvHeaders =
-        ImmutableList.copyOf(
-            tsvFieldSchemas.stream().map(TsvFieldSchema::getName).collect(toUnmodifiableList()));
+  public TsvParser(MuseAppConfig config, Scopes scopes, SubmissionProperties submissionProperties) {
+    this(
+        config.getTsvFieldSchemas(),
+        scopes,
+        submissionProperties.getParallelValidationThreshold(),
+        submissionProperties.getValidationParallelism());
   }
 
   public TsvParser(List<TsvFieldSchema> tsvFieldSchemas, Scopes scopes) {
+    this(tsvFieldSchemas, scopes, Integer.MAX_VALUE, 1);
+  }
+
+  public TsvParser(
+      List<TsvFieldSchema> tsvFieldSchemas,
+      Scopes scopes,
+      Integer parallelValidationThreshold,
+      Integer validationParallelism) {
     this.scopes = scopes;
     this.tsvFieldSchemas = ImmutableList.copyOf(tsvFieldSchemas);
     this.expectedTsvHeaders =
         ImmutableList.copyOf(
             tsvFieldSchemas.stream().map(TsvFieldSchema::getName).collect(toUnmodifiableList()));
+    this.columnValidators = compileColumnValidators(this.tsvFieldSchemas);
+    this.parallelValidationThreshold = parallelValidationThreshold;
+    this.validationPool =
+        validationParallelism > 1 ? newValidationPool(validationParallelism) : null;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (validationPool != null) {
+      validationPool.shutdown();
+    }
   }
 
-  @SneakyThrows
   public Stream<Map<String, Object>> parseAndValidateTsvStrToFlatRecords(
       String s, List<String> userScopes) {
+    return parseAndValidateTsvStrToFlatRecords(s, scopes.resolveStudyAuthorization(userScopes));
+  }
+
+  @SneakyThrows
+  public Stream<Map<String, Object>> parseAndValidateTsvStrToFlatRecords(
+      String s, StudyAuthorization studyAuthorization) {
     log.info("Parsing TSV into flat records");
-    val lines = s.split("\n");
-    val strTsvHeaders = List.of(lines[0].trim().split("\t"));
+    val headerEnd = indexOfLineEnd(s, 0);
+    val strTsvHeaders = s.substring(0, headerEnd).trim().split("\t");
 
-    val headerChkResult = checkHeaders(expectedTsvHeaders, strTsvHeaders);
+    val headerChkResult = checkHeaders(expectedTsvHeaders, List.of(strTsvHeaders));
     if (headerChkResult.isInvalid()) {
       throw new InvalidHeadersException(headerChkResult.missing, headerChkResult.unknown);
     }
 
-    // create UnaryOperator which binds userScopes to the checking function
-    val checkStudyScopesOperator = getCheckStudyScopesFunc(this::checkStudyScopes, userScopes);
+    val rowParser = new RowParser(strTsvHeaders, studyAuthorization);
+    val records = new ArrayList<Record>();
+    int index = 1;
+    for (int lineStart = headerEnd + 1; lineStart < s.length(); index++) {
+      val lineEnd = indexOfLineEnd(s, lineStart);
+      rowParser.parse(index, s.substring(lineStart, lineEnd)).ifPresent(records::add);
+      lineStart = lineEnd + 1;
+    }
 
-    // parse records and run validation pipeline
-    val records =
-        parse(lines)
-            .map(this::checkRequireNotEmpty)
-            .map(this::checkAndConvertNumberTypes)
-            .map(checkStudyScopesOperator)
-            .collect(toUnmodifiableList());
+    if (isParallelValidation(records)) {
+      validationPool.invoke(
+          new ValidateRecordsTask(rowParser, records, validationPool.getParallelism()));
+    } else {
+      records.forEach(rowParser::validate);
+    }
 
     if (hasAnyInvalidRecord(records)) {
       throw new InvalidFieldsException(getAllInvalidFieldErrors(records));
@@ -87,6 +126,113 @@ public class TsvParser {
     return records.stream().map(Record::getStringObjectMap);
   }
 
+  /**
+   * Streaming counterpart to parseAndValidateTsvStrToFlatRecords, each line is parsed as it arrives
+   * so the tsv is never held in memory as a single String, the parsed rows are then validated (in
+   * parallel off of the calling thread for large files). The first line is expected to be the
+   * header line.
+   *
+   * @param lines - lines of the tsv file (without line delimiters)
+   * @param studyAuthorization - studies the submitting user is authorized for
+   * @return mono of all records, or error if the headers or any of the records are invalid
+   */
+  public Mono<List<Map<String, Object>>> parseAndValidateTsvLinesToFlatRecords(
+      Flux<String> lines, StudyAuthorization studyAuthorization) {
+    return Mono.defer(
+            () -> {
+              val rowParser = new AtomicReference<RowParser>();
+              return lines
+                  .index()
+                  .<Record>handle(
+                      (indexedLine, sink) -> {
+                        val index = indexedLine.getT1().intValue();
+                        val line = indexedLine.getT2();
+
+                        if (index == 0) {
+                          log.info("Parsing TSV lines into flat records");
+                          val headers = line.trim().split("\t");
+                          val headerChkResult = checkHeaders(expectedTsvHeaders, List.of(headers));
+                          if (headerChkResult.isInvalid()) {
+                            sink.error(
+                                new InvalidHeadersException(
+                                    headerChkResult.missing, headerChkResult.unknown));
+                            return;
+                          }
+                          rowParser.set(new RowParser(headers, studyAuthorization));
+                          return;
+                        }
+
+                        rowParser.get().parse(index, line).ifPresent(sink::next);
+                      })
+                  // an empty file has no headers at all
+                  .switchIfEmpty(
+                      Mono.defer(
+                          () ->
+                              rowParser.get() == null
+                                  ? Mono.error(
+                                      new InvalidHeadersException(
+                                          expectedTsvHeaders, Collections.emptyList()))
+                                  : Mono.empty()))
+                  .collectList()
+                  .flatMap(records -> validate(rowParser.get(), records).thenReturn(records));
+            })
+        .<List<Map<String, Object>>>handle(
+            (records, sink) -> {
+              if (hasAnyInvalidRecord(records)) {
+                sink.error(new InvalidFieldsException(getAllInvalidFieldErrors(records)));
+                return;
+              }
+
+              log.info("Parsed TSV lines successfully!");
+              sink.next(
+                  records.stream().map(Record::getStringObjectMap).collect(toUnmodifiableList()));
+            });
+  }
+
+  public Mono<List<Map<String, Object>>> parseAndValidateTsvLinesToFlatRecords(
+      Flux<String> lines, List<String> userScopes) {
+    return parseAndValidateTsvLinesToFlatRecords(
+        lines, scopes.resolveStudyAuthorization(userScopes));
+  }
+
+  /**
+   * Validate parsed records, on the validationPool when there are enough of them to be worth it.
+   * Each record only holds its own errors, so errors are reported in row order either way.
+   */
+  private Mono<Void> validate(RowParser rowParser, List<Record> records) {
+    if (!isParallelValidation(records)) {
+      return Mono.fromRunnable(() -> records.forEach(rowParser::validate));
+    }
+
+    log.info("Validating {} TSV records in parallel", records.size());
+    return Mono.fromFuture(
+        () ->
+            CompletableFuture.runAsync(
+                new ValidateRecordsTask(rowParser, records, validationPool.getParallelism())
+                    ::invoke,
+                validationPool));
+  }
+
+  private boolean isParallelValidation(List<Record> records) {
+    return validationPool != null && records.size() >= parallelValidationThreshold;
+  }
+
+  private static ForkJoinPool newValidationPool(int parallelism) {
+    return new ForkJoinPool(
+        parallelism,
+        pool -> {
+          val worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+          worker.setName("tsv-validation-" + worker.getPoolIndex());
+          return worker;
+        },
+        null,
+        false);
+  }
+
+  private static TsvColumnValidator[] compileColumnValidators(List<TsvFieldSchema> schemas) {
+    return schemas.stream().map(TsvColumnValidator::compile).toArray(TsvColumnValidator[]::new);
+  }
+
   private HeaderCheckResult checkHeaders(List<String> expectedHeaders, List<String> actualHeaders) {
     val missingHeaders =
         expectedHeaders.stream()
@@ -101,105 +247,182 @@ public class TsvParser {
     return new HeaderCheckResult(missingHeaders, unknownHeaders);
   }
 
-  private Stream<Record> parse(String[] lines) {
-    val headers = lines[0].trim().split("\t");
-    return IntStream.range(1, lines.length)
-        .filter(
-            j -> {
-              val line = lines[j];
-              return line != null && !line.trim().equals("");
-            })
-        .mapToObj(
-            j -> {
-              val line = lines[j];
-              val data = line.split("\t");
-
-              Map<String, Object> record = new HashMap<>();
-              for (int i = 0; i < headers.length; ++i) {
-                val value = i >= data.length ? "" : data[i];
-                record.put(headers[i], cleanup(value));
-              }
-              return new Record(j, record, new ArrayList<>());
-            })
-        .filter(this::recordNotEmpty);
+  private Boolean hasAnyInvalidRecord(List<Record> records) {
+    return records.stream().anyMatch(Record::hasFieldErrors);
   }
 
-  private Record checkRequireNotEmpty(Record record) {
-    tsvFieldSchemas.forEach(
-        s -> {
-          val fieldName = s.getName();
-          val value = record.getStringObjectMap().get(fieldName).toString();
-          if (s.isRequireNotEmpty() && value.isEmpty()) {
-            record.addFieldError(fieldName, NOT_ALLOWED_TO_BE_EMPTY, record.getIndex());
-          }
-        });
-
-    return record;
+  private List<InvalidField> getAllInvalidFieldErrors(List<Record> records) {
+    return records.stream()
+        .map(Record::getFieldErrors)
+        .flatMap(List::stream)
+        .collect(toUnmodifiableList());
   }
 
-  @SneakyThrows
-  private Record checkAndConvertNumberTypes(Record record) {
-    tsvFieldSchemas.forEach(
-        s -> {
-          val fieldName = s.getName();
-          val value = record.getStringObjectMap().get(fieldName).toString();
-
-          // short circuit for non number types or if empty (we checked for required before)
-          if (!s.getValueType().equals(TsvFieldSchema.ValueType.number) || value.isEmpty()) {
-            return;
-          }
+  private static int indexOfLineEnd(String s, int from) {
+    val lineEnd = s.indexOf('\n', from);
+    return lineEnd == -1 ? s.length() : lineEnd;
+  }
 
-          if (isInteger(value)) {
-            record.getStringObjectMap().put(fieldName, parseInt(value));
-          } else if (isDouble(value)) {
-            record.getStringObjectMap().put(fieldName, parseDouble(value));
-          } else {
-            record.addFieldError(fieldName, EXPECTING_NUMBER_TYPE, record.getIndex());
-          }
-        });
+  /**
+   * Parses and validates the data lines of one tsv file. Header positions of the compiled column
+   * validators are resolved once from the header line, each line is then split straight into an
+   * array of values and all of the validators run in a single pass over it.
+   */
+  private class RowParser {
+    private final TsvRecord.Columns columns;
+    // column ordinal of each of the compiled columnValidators
+    private final int[] validatorOrdinals;
+    private final int studyOrdinal;
+    private final StudyAuthorization studyAuthorization;
+
+    RowParser(String[] headers, StudyAuthorization studyAuthorization) {
+      this.columns = new TsvRecord.Columns(headers);
+      this.validatorOrdinals =
+          Arrays.stream(columnValidators)
+              .mapToInt(validator -> columns.ordinalOf(validator.getFieldName()))
+              .toArray();
+      this.studyOrdinal = columns.ordinalOf(STUDY_FIELD_NAME);
+      this.studyAuthorization = studyAuthorization;
+    }
 
-    return record;
-  }
+    /** @return the unvalidated record, or empty if the line is blank */
+    Optional<Record> parse(Integer index, String line) {
+      val values = split(line);
+      if (values == null) {
+        return Optional.empty();
+      }
 
-  private Record checkStudyScopes(Record record, List<String> userScopes) {
-    val isAuthorized =
-        userScopes.stream()
-            .anyMatch(
-                scopes.isSystemScope.or(
-                    userScope ->
-                        userScope.contains(
-                            record.getStringObjectMap().get(STUDY_FIELD_NAME).toString())));
+      return Optional.of(new Record(index, new TsvRecord(columns, values), new ArrayList<>()));
+    }
 
-    if (!isAuthorized) {
-      record.addFieldError(STUDY_FIELD_NAME, UNAUTHORIZED_FOR_STUDY_UPLOAD, record.getIndex());
+    /** @return values in column order, or null if the line has no non blank values */
+    private Object[] split(String line) {
+      val values = new Object[columns.size()];
+      boolean blank = true;
+
+      int column = 0;
+      int valueStart = 0;
+      for (int i = 0; i <= line.length() && column < values.length; i++) {
+        if (i < line.length() && line.charAt(i) != '\t') {
+          blank &= line.charAt(i) <= ' ';
+          continue;
+        }
+        values[column++] = cleanup(line, valueStart, i);
+        valueStart = i + 1;
+      }
+
+      if (blank) {
+        return null;
+      }
+
+      while (column < values.length) {
+        values[column++] = "";
+      }
+
+      return values;
     }
 
-    return record;
-  }
+    /** Validates and converts the values of the record, it only ever touches this one record */
+    void validate(Record record) {
+      val values = record.getStringObjectMap();
+      List<InvalidField> numberTypeErrors = null;
+
+      for (int i = 0; i < columnValidators.length; i++) {
+        val ordinal = validatorOrdinals[i];
+        val value = (String) values.get(ordinal);
+        val result = columnValidators[i].apply(value);
+
+        if (result == NOT_ALLOWED_TO_BE_EMPTY) {
+          record.addFieldError(
+              columnValidators[i].getFieldName(), NOT_ALLOWED_TO_BE_EMPTY, record.getIndex());
+        } else if (result == EXPECTING_NUMBER_TYPE) {
+          // reported after all of the empty value errors, as they have always been
+          if (numberTypeErrors == null) {
+            numberTypeErrors = new ArrayList<>();
+          }
+          numberTypeErrors.add(
+              new InvalidField(
+                  columnValidators[i].getFieldName(),
+                  value,
+                  EXPECTING_NUMBER_TYPE,
+                  record.getIndex()));
+        } else if (result != value) {
+          values.set(ordinal, result);
+        }
+      }
+
+      if (numberTypeErrors != null) {
+        record.getFieldErrors().addAll(numberTypeErrors);
+      }
+
+      checkStudyScopes(record, values.get(studyOrdinal).toString());
+    }
 
-  private UnaryOperator<Record> getCheckStudyScopesFunc(
-      BiFunction<Record, List<String>, Record> func, List<String> userScopes) {
-    return r -> func.apply(r, userScopes);
+    private void checkStudyScopes(Record record, String studyId) {
+      if (!studyAuthorization.isAuthorizedFor(studyId)) {
+        record.addFieldError(STUDY_FIELD_NAME, UNAUTHORIZED_FOR_STUDY_UPLOAD, record.getIndex());
+      }
+    }
   }
 
-  private Boolean hasAnyInvalidRecord(List<Record> records) {
-    return records.stream().anyMatch(Record::hasFieldErrors);
-  }
+  /**
+   * Validates a range of records, splitting it in half and forking until ranges are no bigger than
+   * the chunk size.
+   */
+  private static class ValidateRecordsTask extends RecursiveAction {
+    private static final int MIN_CHUNK_SIZE = 256;
+    // a few chunks per worker so that workers that finish early can steal the remainder
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    private final RowParser rowParser;
+    private final List<Record> records;
+    private final int from;
+    private final int to;
+    private final int chunkSize;
+
+    ValidateRecordsTask(RowParser rowParser, List<Record> records, int parallelism) {
+      this(
+          rowParser,
+          records,
+          0,
+          records.size(),
+          Math.max(MIN_CHUNK_SIZE, records.size() / (parallelism * CHUNKS_PER_WORKER) + 1));
+    }
 
-  private List<InvalidField> getAllInvalidFieldErrors(List<Record> records) {
-    return records.stream()
-        .map(Record::getFieldErrors)
-        .flatMap(List::stream)
-        .collect(toUnmodifiableList());
-  }
+    private ValidateRecordsTask(
+        RowParser rowParser, List<Record> records, int from, int to, int chunkSize) {
+      this.rowParser = rowParser;
+      this.records = records;
+      this.from = from;
+      this.to = to;
+      this.chunkSize = chunkSize;
+    }
 
-  private Boolean recordNotEmpty(Record recordsDto) {
-    return !recordsDto.getStringObjectMap().values().stream()
-        .allMatch(v -> v.toString().trim().equalsIgnoreCase(""));
+    @Override
+    protected void compute() {
+      if (to - from <= chunkSize) {
+        for (int i = from; i < to; i++) {
+          rowParser.validate(records.get(i));
+        }
+        return;
+      }
+
+      val middle = (from + to) >>> 1;
+      invokeAll(
+          new ValidateRecordsTask(rowParser, records, from, middle, chunkSize),
+          new ValidateRecordsTask(rowParser, records, middle, to, chunkSize));
+    }
   }
 
-  private static String cleanup(String rawValue) {
-    return rawValue.replace("\r", "").replace("\n", "");
+  /** value between from and to with any carriage returns or new lines removed */
+  private static String cleanup(String line, int from, int to) {
+    for (int i = from; i < to; i++) {
+      val c = line.charAt(i);
+      if (c == '\r' || c == '\n') {
+        return line.substring(from, to).replace("\r", "").replace("\n", "");
+      }
+    }
+    return line.substring(from, to);
   }
 
   @Value
@@ -215,7 +438,7 @@ public class TsvParser {
   @Value
   static class Record {
     Integer index;
-    Map<String, Object> stringObjectMap;
+    TsvRecord stringObjectMap;
     List<InvalidField> fieldErrors;
 
     public void addFieldError(String fieldName, InvalidField.Reason reason, Integer index) {
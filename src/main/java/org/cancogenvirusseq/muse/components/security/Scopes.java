@@ -18,6 +18,8 @@
 
 package org.cancogenvirusseq.muse.components.security;
 
+import com.google.common.collect.ImmutableSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
@@ -26,6 +28,7 @@ import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import lombok.NonNull;
+import lombok.val;
 import org.cancogenvirusseq.muse.config.websecurity.AuthProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.security.core.Authentication;
@@ -76,4 +79,38 @@ public class Scopes {
                 .filter(isValidScope)
                 .collect(Collectors.toList()));
   }
+
+  /**
+   * Resolve the user's scopes once into what they are authorized for, to be used for all of the
+   * checks made while handling their request
+   */
+  public StudyAuthorization resolveStudyAuthorization(Authentication authentication) {
+    return resolveStudyAuthorization(
+        authentication.getAuthorities().stream()
+            .map(GrantedAuthority::getAuthority)
+            .collect(Collectors.toList()));
+  }
+
+  /**
+   * @param userScopes - scopes of the user, scopes that aren't valid for this app are ignored
+   * @return whether the user has the system scope and the ids of the studies they have a scope for
+   */
+  public StudyAuthorization resolveStudyAuthorization(Collection<String> userScopes) {
+    val prefix = Optional.ofNullable(scopesConfig.getStudy().getPrefix()).orElse("");
+    val suffix = scopesConfig.getStudy().getSuffix();
+
+    boolean system = false;
+    val studyIds = ImmutableSet.<String>builder();
+    for (val scope : userScopes) {
+      if (isSystemScope.test(scope)) {
+        system = true;
+      } else if (isStudyScope.test(scope) && scope.length() > prefix.length() + suffix.length()) {
+        // only the exact id between prefix and suffix, scopes carrying another app's prefix need
+        // that prefix to be configured
+        studyIds.add(scope.substring(prefix.length(), scope.length() - suffix.length()));
+      }
+    }
+
+    return new StudyAuthorization(system, studyIds.build());
+  }
 }
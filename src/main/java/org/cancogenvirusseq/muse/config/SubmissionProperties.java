@@ -0,0 +1,46 @@
+package org.cancogenvirusseq.muse.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "submission")
+public class SubmissionProperties {
+  // decode submitted files record by record as they stream in instead of reading each into a String
+  private boolean streamingIngest = true;
+
+  // with streaming ingest, join each sample to its record as soon as it is decoded instead of once
+  // every file has been read, the uploads are persisted once the whole submission is validated
+  private boolean pipelined = false;
+
+  // max bytes allowed for a single line of the metadata tsv when streaming
+  private Integer maxTsvLineSize = 256 * 1024;
+
+  // size in bytes of each buffer produced when decompressing gzipped molecular files
+  private Integer gzipBufferSize = 8 * 1024;
+
+  // molecular files larger than the threshold (bytes) are spooled to disk instead of the heap
+  private boolean spoolEnabled = true;
+  private Long spoolThreshold = 64L * 1024 * 1024;
+  private String spoolDirectory = System.getProperty("java.io.tmpdir") + "/muse-spool";
+
+  // once the samples of a submission held in memory add up to the budget (bytes) the content of
+  // every further sample is spilled to a segment file in the spool directory
+  private Long spillBudget = 256L * 1024 * 1024;
+
+  // metadata tsvs with at least this many rows are validated in parallel on a dedicated pool of
+  // validationParallelism threads (a parallelism of 1 disables parallel validation)
+  private Integer parallelValidationThreshold = 5000;
+  private Integer validationParallelism = Runtime.getRuntime().availableProcessors();
+
+  // submissions with at least this many records have their payloads mapped to files in parallel
+  // on mappingParallelism threads (a parallelism of 1 disables parallel mapping)
+  private Integer parallelMappingThreshold = 5000;
+  private Integer mappingParallelism = Runtime.getRuntime().availableProcessors();
+
+  // uploads of a submission are inserted this many rows per statement (6 bound values per row,
+  // postgres allows up to 65535 in a statement)
+  private Integer uploadInsertBatchSize = 1000;
+}
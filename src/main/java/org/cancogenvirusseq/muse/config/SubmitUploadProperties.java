@@ -0,0 +1,103 @@
+package org.cancogenvirusseq.muse.config;
+
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "submit-upload")
+public class SubmitUploadProperties {
+  // max uploads being submitted to song/score at the same time
+  private Integer maxInFlight = 5;
+
+  // uploads go through three stages: submit (song submission and analysis file lookup), score
+  // upload and publish. By default maxInFlight (or the adaptive ceiling) bounds the uploads in
+  // progress across all of them. Setting any stage's concurrency opts in to each stage running for
+  // up to its own concurrency of uploads instead, a stage without one then running for up to
+  // maxInFlight (or the adaptive ceiling), so the total in progress is the sum of the three.
+  private Integer submitConcurrency;
+  private Integer scoreUploadConcurrency;
+  private Integer publishConcurrency;
+
+  // adapt the number of concurrent song calls and, separately, of concurrent score calls to their
+  // errors instead, each limit starting at maxInFlight and staying between the floor and ceiling.
+  // A limit is multiplied by the backoff ratio whenever a call fails with a 5xx/429/io error and
+  // grows by about one for every limit calls that succeed. Song calls also back off when slower
+  // than the latency tolerance times their smoothed latency, score calls don't as the time an
+  // upload takes depends on the size of its file.
+  private boolean adaptiveConcurrency = false;
+  private Integer concurrencyFloor = 1;
+  private Integer concurrencyCeiling = 50;
+  private Double concurrencyBackoffRatio = 0.9;
+  private Double concurrencyLatencyTolerance = 2.0;
+
+  // dispatch queued uploads by weighted round robin of their studies instead of first in first
+  // out, so that a study with a large submission queued doesn't hold up every other study. On each
+  // turn a study has up to its weight (default if not set) of uploads dispatched.
+  private boolean fairScheduling = true;
+  private Map<String, Integer> studyWeights = new HashMap<>();
+  private Integer defaultStudyWeight = 1;
+
+  // queue uploads in the upload_queue table instead of in memory, queued uploads then survive a
+  // restart and are picked up again by whichever instance claims them first
+  private boolean durableQueue = false;
+
+  // how often the queue is checked for uploads when there is capacity for more
+  private Long queuePollIntervalMs = 1000L;
+
+  // uploads are queued with their submission this many rows per statement, each row holding the
+  // upload's file
+  private Integer queueInsertBatchSize = 100;
+
+  // how long a claimed upload is held before it can be claimed again (ex. its instance died),
+  // leases of uploads still being processed are renewed every queueHeartbeatIntervalSec
+  private Integer queueLeaseSec = 60;
+  private Integer queueHeartbeatIntervalSec = 20;
+
+  // an upload claimed more than queueMaxAttempts times is marked as an ERROR and removed from the
+  // queue rather than claimed again (0 for no limit)
+  private Integer queueMaxAttempts = 5;
+
+  // identifies this instance's leases, random if not set. When set it must be unique within the
+  // cluster and leases still held under it are released on startup, so a stable id (ex. a
+  // statefulset pod name) lets a restarted instance hand back its uploads straight away rather than
+  // once their leases expire.
+  private String nodeId;
+
+  // max uploads being submitted to song/score at the same time across all instances sharing the
+  // durable queue, on top of each instance's own maxInFlight (0 for no cluster wide limit)
+  private Integer clusterMaxInFlight = 0;
+
+  // a stage that fails while song/score is struggling (5xx, 429, transport errors) is run again up
+  // to resumeMaxAttempts times, backing off from resumeBackoffSec, picking up from the upload's
+  // last checkpoint instead of starting over. Uploads only go to ERROR once these are exhausted.
+  // An upload that goes to ERROR after song accepted it can be resumed from its checkpoint
+  // (POST /uploads/{uploadId}/resume). The durable queue keeps its queue row for this, the in
+  // memory queue holds on to its file for up to maxParkedUploads uploads (the oldest are let go of
+  // first) until a restart.
+  private Integer resumeMaxAttempts = 3;
+  private Long resumeBackoffSec = 30L;
+  private Integer maxParkedUploads = 1000;
+
+  // submissions are turned away (503 with a Retry-After) while the uploads waiting to be processed
+  // number maxQueuedUploads or their files add up to maxQueuedBytes (0 for no limit), a submission
+  // that would take the queue over either is turned away as well unless the queue is empty
+  private Integer maxQueuedUploads = 10000;
+  private Long maxQueuedBytes = 1024L * 1024 * 1024;
+
+  // Retry-After is the time the excess takes to drain at the rate uploads drained over the last
+  // drainRateWindowSec, kept within retryAfterMinSec and retryAfterMaxSec
+  private Integer drainRateWindowSec = 60;
+  private Long retryAfterMinSec = 1L;
+  private Long retryAfterMaxSec = 300L;
+
+  // changes to the status, analysis id, error and checkpoint of uploads being processed are
+  // written in batches of up to progressBatchSize uploads, at least every progressFlushIntervalMs,
+  // instead of one statement per change (when disabled every change saves its upload)
+  private boolean progressBatching = true;
+  private Integer progressBatchSize = 500;
+  private Long progressFlushIntervalMs = 50L;
+}
@@ -0,0 +1,14 @@
+package org.cancogenvirusseq.muse.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "upload-stream")
+public class UploadStreamProperties {
+  // upload notifications held for a subscriber of the upload stream that isn't keeping up, once
+  // full the oldest are dropped
+  private Integer subscriberBufferSize = 256;
+}
@@ -38,6 +38,9 @@ import org.springframework.context.annotation.Primary;
 import org.springframework.data.r2dbc.config.AbstractR2dbcConfiguration;
 import org.springframework.data.r2dbc.connectionfactory.init.ConnectionFactoryInitializer;
 import org.springframework.data.r2dbc.repository.config.EnableR2dbcRepositories;
+import org.springframework.r2dbc.connection.R2dbcTransactionManager;
+import org.springframework.transaction.ReactiveTransactionManager;
+import org.springframework.transaction.reactive.TransactionalOperator;
 
 @Configuration
 @EnableR2dbcRepositories(basePackages = "org.cancogenvirusseq.muse.repository")
@@ -89,6 +92,17 @@ public class R2DBCConfiguration extends AbstractR2dbcConfiguration {
     return new ConnectionPool(configuration);
   }
 
+  @Bean
+  public ReactiveTransactionManager transactionManager(ConnectionFactory connectionFactory) {
+    return new R2dbcTransactionManager(connectionFactory);
+  }
+
+  @Bean
+  public TransactionalOperator transactionalOperator(
+      ReactiveTransactionManager transactionManager) {
+    return TransactionalOperator.create(transactionManager);
+  }
+
   @Override
   protected List<Object> getCustomConverters() {
     // set custom converter UploadStatus for enum resolution
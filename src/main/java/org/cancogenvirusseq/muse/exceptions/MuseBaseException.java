@@ -2,6 +2,7 @@ package org.cancogenvirusseq.muse.exceptions;
 
 import java.util.HashMap;
 import java.util.Map;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 
 public interface MuseBaseException {
@@ -14,4 +15,8 @@ public interface MuseBaseException {
   default Map<String, Object> getErrorInfo() {
     return new HashMap<>();
   }
+
+  default HttpHeaders getHeaders() {
+    return HttpHeaders.EMPTY;
+  }
 }
@@ -0,0 +1,41 @@
+package org.cancogenvirusseq.muse.exceptions.submission;
+
+import static java.lang.String.format;
+
+import java.util.Map;
+import lombok.EqualsAndHashCode;
+import lombok.Value;
+import lombok.val;
+import org.cancogenvirusseq.muse.exceptions.MuseBaseException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+@Value
+@EqualsAndHashCode(callSuper = true)
+public class SubmissionQueueFullException extends Throwable implements MuseBaseException {
+  Long retryAfterSec;
+
+  @Override
+  public HttpStatus getStatusCode() {
+    return HttpStatus.SERVICE_UNAVAILABLE;
+  }
+
+  @Override
+  public String getMessage() {
+    return format(
+        "Too many uploads are waiting to be processed, please try again in %s seconds",
+        retryAfterSec);
+  }
+
+  @Override
+  public Map<String, Object> getErrorInfo() {
+    return Map.of("retryAfterSec", retryAfterSec);
+  }
+
+  @Override
+  public HttpHeaders getHeaders() {
+    val headers = new HttpHeaders();
+    headers.set(HttpHeaders.RETRY_AFTER, retryAfterSec.toString());
+    return headers;
+  }
+}
@@ -0,0 +1,33 @@
+package org.cancogenvirusseq.muse.exceptions.upload;
+
+import static java.lang.String.format;
+
+import java.util.Map;
+import java.util.UUID;
+import lombok.EqualsAndHashCode;
+import lombok.Value;
+import org.cancogenvirusseq.muse.exceptions.MuseBaseException;
+import org.springframework.http.HttpStatus;
+
+@Value
+@EqualsAndHashCode(callSuper = true)
+public class UploadNotResumableException extends Throwable implements MuseBaseException {
+  UUID uploadId;
+
+  @Override
+  public HttpStatus getStatusCode() {
+    return HttpStatus.CONFLICT;
+  }
+
+  @Override
+  public String getMessage() {
+    return format(
+        "Upload '%s' can't be resumed, only uploads that failed after being submitted to song can be",
+        uploadId);
+  }
+
+  @Override
+  public Map<String, Object> getErrorInfo() {
+    return Map.of("uploadId", uploadId);
+  }
+}
@@ -0,0 +1,125 @@
+package org.cancogenvirusseq.muse.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+/**
+ * A submitted file that was too large to hold on the heap and has been written to disk. The file is
+ * reference counted, the submission request holds the first reference and each UploadEvent with
+ * content in the file holds another, the file is deleted once the last reference is released.
+ */
+@Slf4j
+public class SpooledFile {
+  public static final String SPOOL_FILE_SUFFIX = ".spool";
+
+  @Getter private final Path path;
+  private final FileChannel channel;
+  private final AtomicInteger refCount = new AtomicInteger(1);
+
+  private SpooledFile(Path path, FileChannel channel) {
+    this.path = path;
+    this.channel = channel;
+  }
+
+  public static SpooledFile create(Path directory) throws IOException {
+    val path = Files.createTempFile(directory, "submission-", SPOOL_FILE_SUFFIX);
+    return new SpooledFile(
+        path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+  }
+
+  public void write(ByteBuffer source) throws IOException {
+    while (source.hasRemaining()) {
+      channel.write(source);
+    }
+  }
+
+  public long size() throws IOException {
+    return channel.size();
+  }
+
+  public MappedByteBuffer map(long position, long size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+  }
+
+  public byte[] read(long position, int length) throws IOException {
+    val bytes = ByteBuffer.allocate(length);
+    while (bytes.hasRemaining()) {
+      if (channel.read(bytes, position + bytes.position()) == -1) {
+        throw new IOException("Unexpected end of spooled file " + path);
+      }
+    }
+    return bytes.array();
+  }
+
+  public Slice slice(long position, int length) {
+    return new Slice(this, position, length);
+  }
+
+  public SpooledFile retain() {
+    refCount.incrementAndGet();
+    return this;
+  }
+
+  public void release() {
+    if (refCount.decrementAndGet() == 0) {
+      delete();
+    }
+  }
+
+  private void delete() {
+    try {
+      channel.close();
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      log.warn("Failed to delete spooled file {}", path, e);
+    }
+  }
+
+  /** Content of a single sample, read from the spooled file on demand */
+  @RequiredArgsConstructor
+  public static class Slice implements SubmissionFileContent {
+    private final SpooledFile spooledFile;
+    @Getter private final long position;
+    private final int length;
+
+    @Override
+    public long getSize() {
+      return length;
+    }
+
+    @Override
+    @SneakyThrows
+    public ByteBuffer asByteBuffer() {
+      return spooledFile.map(position, length);
+    }
+
+    @Override
+    @SneakyThrows
+    public String asString() {
+      return new String(spooledFile.read(position, length), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public SubmissionFileContent retain() {
+      spooledFile.retain();
+      return this;
+    }
+
+    @Override
+    public void release() {
+      spooledFile.release();
+    }
+  }
+}
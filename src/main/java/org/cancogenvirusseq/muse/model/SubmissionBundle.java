@@ -20,9 +20,11 @@ package org.cancogenvirusseq.muse.model;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import lombok.Getter;
 import lombok.NonNull;
 import org.springframework.security.core.Authentication;
@@ -38,8 +40,15 @@ public class SubmissionBundle {
   private final Set<String> originalFileNames = new HashSet<>();
   private final ArrayList<Map<String, Object>> records = new ArrayList<>();
   private final ConcurrentHashMap<String, SubmissionFile> files = new ConcurrentHashMap<>();
+  private final List<SpooledFile> spooledFiles = new CopyOnWriteArrayList<>();
 
   public SubmissionBundle(@NonNull Authentication userAuthentication) {
     this.userAuthentication = userAuthentication;
   }
+
+  /** Release the bundle's reference on each spooled file, uploads hold their own references */
+  public void releaseSpooledFiles() {
+    spooledFiles.forEach(SpooledFile::release);
+    spooledFiles.clear();
+  }
 }
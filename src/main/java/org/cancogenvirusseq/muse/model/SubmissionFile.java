@@ -10,9 +10,20 @@ public class SubmissionFile {
   String fileExtension;
   Integer fileSize;
   String fileMd5sum;
-  String content;
+  SubmissionFileContent content;
   String dataType;
   String fileType;
   String fileAccess = "open";
   String submittedFileName;
+
+  public static class SubmissionFileBuilder {
+    public SubmissionFileBuilder content(String content) {
+      return content(SubmissionFileContent.of(content));
+    }
+
+    public SubmissionFileBuilder content(SubmissionFileContent content) {
+      this.content = content;
+      return this;
+    }
+  }
 }
@@ -0,0 +1,70 @@
+package org.cancogenvirusseq.muse.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import lombok.EqualsAndHashCode;
+
+/**
+ * Content of a SubmissionFile, either the encoded bytes held on the heap or a slice of a submitted
+ * file that has been spooled to disk (see {@link SpooledFile})
+ */
+public interface SubmissionFileContent {
+  /** @return size of the content in bytes */
+  long getSize();
+
+  /** @return read-only view of the content bytes, mapped from disk if spooled */
+  ByteBuffer asByteBuffer();
+
+  /** @return the content decoded as a String, read from disk if spooled */
+  String asString();
+
+  /** Take a reference on whatever backs this content so that it outlives the submission request */
+  default SubmissionFileContent retain() {
+    return this;
+  }
+
+  /** Give back a reference taken with retain, spooled files are deleted once all are released */
+  default void release() {}
+
+  static SubmissionFileContent of(String content) {
+    return new BytesContent(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** @param bytes - UTF-8 encoded content, owned by the returned content from here on */
+  static SubmissionFileContent of(byte[] bytes) {
+    return new BytesContent(bytes);
+  }
+
+  /**
+   * Content as its UTF-8 bytes. Sequence data is ASCII so this is a byte per base with no String
+   * (or UTF-16 fallback) kept alongside it while the upload is queued
+   */
+  @EqualsAndHashCode
+  class BytesContent implements SubmissionFileContent {
+    private final byte[] bytes;
+
+    private BytesContent(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public long getSize() {
+      return bytes.length;
+    }
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+      return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    @Override
+    public String asString() {
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+      return "BytesContent(size=" + bytes.length + ")";
+    }
+  }
+}
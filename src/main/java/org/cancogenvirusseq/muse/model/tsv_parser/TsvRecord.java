@@ -0,0 +1,118 @@
+package org.cancogenvirusseq.muse.model.tsv_parser;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import lombok.val;
+
+/**
+ * A row of the metadata tsv. Values are held in an array in column order and looked up by name
+ * through the header index shared by every row of the file, so no per row HashMap is built. Read as
+ * a Map it contains one entry per header.
+ */
+public class TsvRecord extends AbstractMap<String, Object> {
+  private final Columns columns;
+  private final Object[] values;
+
+  public TsvRecord(Columns columns, Object[] values) {
+    this.columns = columns;
+    this.values = values;
+  }
+
+  public Object get(int ordinal) {
+    return values[ordinal];
+  }
+
+  public void set(int ordinal, Object value) {
+    values[ordinal] = value;
+  }
+
+  @Override
+  public Object get(Object key) {
+    val ordinal = columns.ordinalOf(key);
+    return ordinal == -1 ? null : values[ordinal];
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return columns.ordinalOf(key) != -1;
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    val ordinal = columns.ordinalOf(key);
+    if (ordinal == -1) {
+      throw new UnsupportedOperationException("Unknown tsv column: " + key);
+    }
+
+    val previous = values[ordinal];
+    values[ordinal] = value;
+    return previous;
+  }
+
+  @Override
+  public int size() {
+    return columns.keyOrdinals.length;
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Entry<String, Object>> iterator() {
+        return new Iterator<>() {
+          private int next = 0;
+
+          @Override
+          public boolean hasNext() {
+            return next < columns.keyOrdinals.length;
+          }
+
+          @Override
+          public Entry<String, Object> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            val ordinal = columns.keyOrdinals[next++];
+            return new SimpleImmutableEntry<>(columns.names[ordinal], values[ordinal]);
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return TsvRecord.this.size();
+      }
+    };
+  }
+
+  /** Header of a tsv file, resolved once and shared by all of its records */
+  public static class Columns {
+    private final String[] names;
+    private final Map<String, Integer> ordinals;
+    // ordinal of each distinct header, a repeated header resolves to its last column
+    private final int[] keyOrdinals;
+
+    public Columns(String[] names) {
+      this.names = names;
+      this.ordinals = new HashMap<>(names.length * 2);
+      for (int i = 0; i < names.length; i++) {
+        ordinals.put(names[i], i);
+      }
+      this.keyOrdinals = ordinals.values().stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    public int size() {
+      return names.length;
+    }
+
+    /** @return column ordinal of the header or -1 if there is no such header */
+    public int ordinalOf(Object name) {
+      return ordinals.getOrDefault(name, -1);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.repository;
+
+import static java.lang.String.format;
+
+import com.google.common.collect.Lists;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+import org.cancogenvirusseq.muse.repository.model.Upload;
+import org.cancogenvirusseq.muse.repository.model.UploadProgress;
+import org.springframework.data.r2dbc.convert.R2dbcConverter;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Bulk writes of upload rows. UploadRepository::saveAll saves one row per statement, here a batch
+ * of rows is written by a single multi row statement. Only the placeholders are generated, every
+ * value is bound.
+ */
+@Repository
+@RequiredArgsConstructor
+public class UploadBatchRepository {
+  private static final String INSERT_SQL_TEMPLATE =
+      "INSERT INTO upload "
+          + "(study_id, submitter_sample_id, submission_id, user_id, status, original_file_pair) "
+          + "VALUES %s "
+          + "RETURNING *";
+
+  private static final String INSERT_VALUES_TEMPLATE =
+      "(:studyId%1$s, :submitterSampleId%1$s, :submissionId%1$s, :userId%1$s, :status%1$s, "
+          + ":originalFilePair%1$s)";
+
+  private static final String UPDATE_PROGRESS_SQL_TEMPLATE =
+      "UPDATE upload AS u "
+          + "SET status = v.status, analysis_id = v.analysis_id, error = v.error, "
+          + "checkpoint = v.checkpoint, score_file_spec = v.score_file_spec "
+          + "FROM (VALUES %s) "
+          + "AS v (upload_id, status, analysis_id, error, checkpoint, score_file_spec) "
+          + "WHERE u.upload_id = v.upload_id";
+
+  // typed as the first row alone would not say what type a null is
+  private static final String UPDATE_PROGRESS_VALUES_TEMPLATE =
+      "(CAST(:uploadId%1$s AS uuid), CAST(:status%1$s AS upload_status), "
+          + "CAST(:analysisId%1$s AS uuid), CAST(:error%1$s AS text), "
+          + "CAST(:checkpoint%1$s AS text), CAST(:scoreFileSpec%1$s AS text))";
+
+  private final DatabaseClient databaseClient;
+  private final R2dbcConverter r2dbcConverter;
+
+  /**
+   * Insert new uploads, batchSize rows per statement
+   *
+   * @param uploads - uploads to insert, their ids and creation times are generated
+   * @param batchSize - max rows inserted by a single statement
+   * @return the inserted uploads as persisted
+   */
+  public Flux<Upload> insertAll(List<Upload> uploads, int batchSize) {
+    return Flux.fromIterable(Lists.partition(uploads, batchSize)).concatMap(this::insertBatch);
+  }
+
+  /**
+   * Write the progress of uploads with a single statement
+   *
+   * @param uploadProgresses - progress to write, at most one per upload
+   * @return number of uploads updated
+   */
+  public Mono<Integer> updateProgress(List<UploadProgress> uploadProgresses) {
+    val values =
+        IntStream.range(0, uploadProgresses.size())
+            .mapToObj(i -> format(UPDATE_PROGRESS_VALUES_TEMPLATE, i))
+            .collect(Collectors.joining(", "));
+
+    DatabaseClient.GenericExecuteSpec spec =
+        databaseClient.sql(format(UPDATE_PROGRESS_SQL_TEMPLATE, values));
+    for (int i = 0; i < uploadProgresses.size(); i++) {
+      val uploadProgress = uploadProgresses.get(i);
+      spec =
+          spec.bind("uploadId" + i, uploadProgress.getUploadId())
+              .bind("status" + i, uploadProgress.getStatus());
+      spec = bindNullable(spec, "analysisId" + i, uploadProgress.getAnalysisId(), UUID.class);
+      spec = bindNullable(spec, "error" + i, uploadProgress.getError(), String.class);
+      spec =
+          bindNullable(
+              spec,
+              "checkpoint" + i,
+              Optional.ofNullable(uploadProgress.getCheckpoint()).map(Enum::name).orElse(null),
+              String.class);
+      spec =
+          bindNullable(spec, "scoreFileSpec" + i, uploadProgress.getScoreFileSpec(), String.class);
+    }
+
+    return spec.fetch().rowsUpdated();
+  }
+
+  private static DatabaseClient.GenericExecuteSpec bindNullable(
+      DatabaseClient.GenericExecuteSpec spec, String name, Object value, Class<?> type) {
+    return value == null ? spec.bindNull(name, type) : spec.bind(name, value);
+  }
+
+  private Flux<Upload> insertBatch(List<Upload> uploads) {
+    val values =
+        IntStream.range(0, uploads.size())
+            .mapToObj(i -> format(INSERT_VALUES_TEMPLATE, i))
+            .collect(Collectors.joining(", "));
+
+    DatabaseClient.GenericExecuteSpec spec =
+        databaseClient.sql(format(INSERT_SQL_TEMPLATE, values));
+    for (int i = 0; i < uploads.size(); i++) {
+      val upload = uploads.get(i);
+      spec =
+          spec.bind("studyId" + i, upload.getStudyId())
+              .bind("submitterSampleId" + i, upload.getSubmitterSampleId())
+              .bind("submissionId" + i, upload.getSubmissionId())
+              .bind("userId" + i, upload.getUserId())
+              .bind("status" + i, upload.getStatus())
+              .bind("originalFilePair" + i, upload.getOriginalFilePair().toArray(String[]::new));
+    }
+
+    return spec.map((row, rowMetadata) -> r2dbcConverter.read(Upload.class, row, rowMetadata))
+        .all();
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.repository;
+
+import com.google.common.collect.Lists;
+import io.r2dbc.spi.Row;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import lombok.RequiredArgsConstructor;
+import lombok.val;
+import org.cancogenvirusseq.muse.model.SubmissionFile;
+import org.cancogenvirusseq.muse.model.SubmissionFileContent;
+import org.cancogenvirusseq.muse.repository.model.QueuedUpload;
+import org.cancogenvirusseq.muse.repository.model.UploadQueueClaim;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+/**
+ * The upload_queue table, a queue of uploads waiting to be processed that is shared by every
+ * instance. Rows are claimed with a lease, rows that are locked by another claim are skipped so
+ * that concurrent claims never wait on or return the same rows.
+ */
+@Repository
+@RequiredArgsConstructor
+public class UploadQueueRepository {
+  private static final String INSERT_SQL_TEMPLATE =
+      "INSERT INTO upload_queue (upload_id, study_id, payload, file_content, file_size, "
+          + "file_md5sum, file_extension, data_type, file_type, submitted_file_name) "
+          + "VALUES %s";
+
+  private static final String INSERT_VALUES_TEMPLATE =
+      "(:uploadId%1$s, :studyId%1$s, :payload%1$s, :fileContent%1$s, :fileSize%1$s, "
+          + ":fileMd5sum%1$s, :fileExtension%1$s, :dataType%1$s, :fileType%1$s, "
+          + ":submittedFileName%1$s)";
+
+  private static final long CLAIM_LOCK_KEY = 0x6d7573655f7571L;
+  private static final String CLAIM_LOCK_SQL = "SELECT pg_advisory_xact_lock(:key)";
+
+  private static final String CLAIM_SQL_TEMPLATE =
+      "UPDATE upload_queue q "
+          + "SET lease_owner = :leaseOwner, "
+          + "lease_expires_at = now() + :leaseSec * interval '1 second', "
+          + "attempts = q.attempts + 1 "
+          + "WHERE q.upload_id IN (%s) "
+          + "RETURNING q.*";
+
+  private static final String FIFO_SELECT_TEMPLATE =
+      "SELECT upload_id FROM upload_queue "
+          + "WHERE parked_at IS NULL "
+          + "AND (lease_expires_at IS NULL OR lease_expires_at < now()) "
+          + "ORDER BY created_at "
+          + "LIMIT %s "
+          + "FOR UPDATE SKIP LOCKED";
+
+  // the nth row of each study (oldest first) is in round n / weight of the study, rows are claimed
+  // round by round so that every study with rows queued gets its share of each claim. Weights below
+  // 1 count as 1.
+  private static final String FAIR_SELECT_TEMPLATE =
+      "SELECT u.upload_id FROM upload_queue u "
+          + "JOIN (SELECT r.upload_id, "
+          + "(row_number() OVER (PARTITION BY r.study_id ORDER BY r.created_at) - 1) "
+          + "/ GREATEST(1, COALESCE(w.weight, :defaultStudyWeight)) AS round "
+          + "FROM upload_queue r "
+          + "LEFT JOIN unnest(CAST(:weightedStudyIds AS text[]), CAST(:studyWeights AS int[])) "
+          + "AS w(study_id, weight) ON w.study_id = r.study_id "
+          + "WHERE r.parked_at IS NULL "
+          + "AND (r.lease_expires_at IS NULL OR r.lease_expires_at < now())) rounds "
+          + "ON rounds.upload_id = u.upload_id "
+          + "WHERE u.parked_at IS NULL "
+          + "AND (u.lease_expires_at IS NULL OR u.lease_expires_at < now()) "
+          + "ORDER BY rounds.round, u.created_at "
+          + "LIMIT %s "
+          + "FOR UPDATE OF u SKIP LOCKED";
+
+  private static final String LIMIT = ":limit";
+
+  private static final String CAPPED_LIMIT =
+      "GREATEST(0, LEAST(:limit, :maxLeased - "
+          + "(SELECT count(*) FROM upload_queue WHERE lease_expires_at >= now())))";
+
+  private static final String RENEW_LEASES_SQL =
+      "UPDATE upload_queue "
+          + "SET lease_expires_at = now() + :leaseSec * interval '1 second' "
+          + "WHERE lease_owner = :leaseOwner AND upload_id = ANY(:uploadIds) "
+          + "RETURNING upload_id";
+
+  private static final String RELEASE_LEASES_SQL =
+      "UPDATE upload_queue SET lease_owner = NULL, lease_expires_at = NULL "
+          + "WHERE lease_owner = :leaseOwner";
+
+  private static final String PARK_SQL =
+      "UPDATE upload_queue SET parked_at = now(), lease_owner = NULL, lease_expires_at = NULL "
+          + "WHERE upload_id = :uploadId";
+
+  private static final String UNPARK_SQL =
+      "UPDATE upload_queue SET parked_at = NULL, attempts = 0 "
+          + "WHERE upload_id = :uploadId AND parked_at IS NOT NULL";
+
+  private static final String DEPTH_SQL =
+      "SELECT count(*) AS uploads, coalesce(sum(file_size), 0) AS bytes FROM upload_queue "
+          + "WHERE parked_at IS NULL";
+
+  private static final String DELETE_SQL = "DELETE FROM upload_queue WHERE upload_id = :uploadId";
+
+  private final DatabaseClient databaseClient;
+  private final TransactionalOperator transactionalOperator;
+
+  /**
+   * Insert queued uploads, batchSize rows per statement
+   *
+   * @param queuedUploads - uploads to queue
+   * @param batchSize - max rows inserted by a single statement
+   */
+  public Mono<Void> saveAll(List<QueuedUpload> queuedUploads, int batchSize) {
+    return Flux.fromIterable(Lists.partition(queuedUploads, batchSize))
+        .concatMap(this::insertBatch)
+        .then();
+  }
+
+  private Mono<Void> insertBatch(List<QueuedUpload> queuedUploads) {
+    val values =
+        IntStream.range(0, queuedUploads.size())
+            .mapToObj(i -> String.format(INSERT_VALUES_TEMPLATE, i))
+            .collect(Collectors.joining(", "));
+
+    DatabaseClient.GenericExecuteSpec spec =
+        databaseClient.sql(String.format(INSERT_SQL_TEMPLATE, values));
+    for (int i = 0; i < queuedUploads.size(); i++) {
+      val queuedUpload = queuedUploads.get(i);
+      val submissionFile = queuedUpload.getSubmissionFile();
+      spec =
+          spec.bind("uploadId" + i, queuedUpload.getUploadId())
+              .bind("studyId" + i, queuedUpload.getStudyId())
+              .bind("payload" + i, queuedUpload.getPayload())
+              .bind("fileContent" + i, submissionFile.getContent().asByteBuffer())
+              .bind("fileSize" + i, submissionFile.getFileSize())
+              .bind("fileMd5sum" + i, submissionFile.getFileMd5sum())
+              .bind("fileExtension" + i, submissionFile.getFileExtension())
+              .bind("dataType" + i, submissionFile.getDataType())
+              .bind("fileType" + i, submissionFile.getFileType())
+              .bind("submittedFileName" + i, submissionFile.getSubmittedFileName());
+    }
+
+    return spec.then();
+  }
+
+  /**
+   * Claim up to limit rows that are not leased (or whose lease has expired), oldest first or in
+   * weighted round robin order of their studies
+   *
+   * @param claim - who is claiming how many rows, and how
+   * @return the claimed rows
+   */
+  public Flux<QueuedUpload> claim(UploadQueueClaim claim) {
+    val fair = claim.getStudyWeights() != null;
+    val capped = claim.getMaxLeased() != null;
+    val sql =
+        String.format(
+            CLAIM_SQL_TEMPLATE,
+            String.format(
+                fair ? FAIR_SELECT_TEMPLATE : FIFO_SELECT_TEMPLATE, capped ? CAPPED_LIMIT : LIMIT));
+
+    DatabaseClient.GenericExecuteSpec spec =
+        databaseClient
+            .sql(sql)
+            .bind("leaseOwner", claim.getLeaseOwner())
+            .bind("leaseSec", claim.getLeaseSec())
+            .bind("limit", claim.getLimit());
+    if (capped) {
+      spec = spec.bind("maxLeased", claim.getMaxLeased());
+    }
+    if (fair) {
+      val studyWeights = List.copyOf(claim.getStudyWeights().entrySet());
+      spec =
+          spec.bind("defaultStudyWeight", claim.getDefaultStudyWeight())
+              .bind(
+                  "weightedStudyIds",
+                  studyWeights.stream().map(Map.Entry::getKey).toArray(String[]::new))
+              .bind(
+                  "studyWeights",
+                  studyWeights.stream().map(Map.Entry::getValue).toArray(Integer[]::new));
+    }
+    val claimed = spec.map((row, rowMetadata) -> toQueuedUpload(row)).all();
+
+    if (!capped) {
+      return claimed;
+    }
+
+    // capped claims hold the lock so that concurrent claims on different instances can't each see
+    // room for the same rows
+    return databaseClient
+        .sql(CLAIM_LOCK_SQL)
+        .bind("key", CLAIM_LOCK_KEY)
+        .then()
+        .thenMany(claimed)
+        .as(transactionalOperator::transactional);
+  }
+
+  /**
+   * Extend the leases the owner holds on the given rows
+   *
+   * @return ids of the rows whose lease was renewed, rows that were removed or are leased to
+   *     another owner are left out
+   */
+  public Flux<UUID> renewLeases(String leaseOwner, Integer leaseSec, Collection<UUID> uploadIds) {
+    return databaseClient
+        .sql(RENEW_LEASES_SQL)
+        .bind("leaseOwner", leaseOwner)
+        .bind("leaseSec", leaseSec)
+        .bind("uploadIds", uploadIds.toArray(UUID[]::new))
+        .map((row, rowMetadata) -> row.get("upload_id", UUID.class))
+        .all();
+  }
+
+  /**
+   * Give up every lease held by the owner, the rows can be claimed again straight away
+   *
+   * @return number of leases released
+   */
+  public Mono<Integer> releaseLeases(String leaseOwner) {
+    return databaseClient
+        .sql(RELEASE_LEASES_SQL)
+        .bind("leaseOwner", leaseOwner)
+        .fetch()
+        .rowsUpdated();
+  }
+
+  /**
+   * Keep the row but stop it from being claimed until it is unparked, the lease on it is given up
+   */
+  public Mono<Void> park(UUID uploadId) {
+    return databaseClient.sql(PARK_SQL).bind("uploadId", uploadId).then();
+  }
+
+  /**
+   * Let a parked row be claimed again, with its attempts starting over
+   *
+   * @return true if the row was parked
+   */
+  public Mono<Boolean> unpark(UUID uploadId) {
+    return databaseClient
+        .sql(UNPARK_SQL)
+        .bind("uploadId", uploadId)
+        .fetch()
+        .rowsUpdated()
+        .map(rowsUpdated -> rowsUpdated > 0);
+  }
+
+  /**
+   * @return number of queued uploads (claimed or not, parked ones aren't queued) and the total size
+   *     of their files
+   */
+  public Mono<Tuple2<Long, Long>> depth() {
+    return databaseClient
+        .sql(DEPTH_SQL)
+        .map(
+            (row, rowMetadata) ->
+                Tuples.of(row.get("uploads", Long.class), row.get("bytes", Long.class)))
+        .one();
+  }
+
+  public Mono<Void> deleteById(UUID uploadId) {
+    return databaseClient.sql(DELETE_SQL).bind("uploadId", uploadId).then();
+  }
+
+  private static QueuedUpload toQueuedUpload(Row row) {
+    return QueuedUpload.builder()
+        .uploadId(row.get("upload_id", UUID.class))
+        .studyId(row.get("study_id", String.class))
+        .payload(row.get("payload", String.class))
+        .attempts(row.get("attempts", Integer.class))
+        .submissionFile(
+            SubmissionFile.builder()
+                .content(SubmissionFileContent.of(row.get("file_content", byte[].class)))
+                .fileSize(row.get("file_size", Integer.class))
+                .fileMd5sum(row.get("file_md5sum", String.class))
+                .fileExtension(row.get("file_extension", String.class))
+                .dataType(row.get("data_type", String.class))
+                .fileType(row.get("file_type", String.class))
+                .submittedFileName(row.get("submitted_file_name", String.class))
+                .build())
+        .build();
+  }
+}
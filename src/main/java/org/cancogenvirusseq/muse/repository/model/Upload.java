@@ -54,4 +54,11 @@ public class Upload implements HasUploadCompositeId {
   private UUID analysisId;
 
   private String error;
+
+  // last step of submitting the upload to song/score that completed, null if none yet
+  private UploadCheckpoint checkpoint;
+
+  // score upload spec (json) once score is initialized and until the file is uploaded, not part of
+  // upload notifications
+  private String scoreFileSpec;
 }
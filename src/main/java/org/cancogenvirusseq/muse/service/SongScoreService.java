@@ -2,46 +2,130 @@ package org.cancogenvirusseq.muse.service;
 
 import bio.overture.aria.client.AriaClient;
 import bio.overture.aria.exceptions.AriaClientException;
+import bio.overture.aria.model.AnalysisFile;
+import bio.overture.aria.model.ScoreFileSpec;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import javax.annotation.PostConstruct;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.cancogenvirusseq.muse.components.AdaptiveConcurrencyLimiter;
+import org.cancogenvirusseq.muse.components.FairQueue;
+import org.cancogenvirusseq.muse.config.SubmitUploadProperties;
 import org.cancogenvirusseq.muse.config.db.PostgresProperties;
+import org.cancogenvirusseq.muse.model.SubmissionFile;
 import org.cancogenvirusseq.muse.model.UploadEvent;
 import org.cancogenvirusseq.muse.repository.model.Upload;
+import org.cancogenvirusseq.muse.repository.model.UploadCheckpoint;
 import org.cancogenvirusseq.muse.repository.model.UploadStatus;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.Disposable;
 import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.Sinks;
+import reactor.util.retry.Retry;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class SongScoreService {
-  @Value("${submitUpload.maxInFlight}")
-  private Integer maxInFlight;
-
   // Prefetch determines max in-flight elements from inner Publisher sequence
-  // all Publishers in submitAndUploadToSongScore return Mono, so only one element
+  // all Publishers of the upload stages return Mono, so only one element
   private static final Integer SONG_SCORE_SUBMIT_UPLOAD_PREFETCH = 1;
 
   final UploadService uploadService;
+  final UploadQueueService uploadQueueService;
+  final UploadAdmissionService uploadAdmissionService;
+  final UploadProgressWriter uploadProgressWriter;
   final AriaClient ariaClient;
   final PostgresProperties props;
+  final SubmitUploadProperties submitUploadProperties;
+  final MeterRegistry meterRegistry;
+  final ObjectMapper objectMapper;
 
   private final Sinks.Many<UploadEvent> sink = Sinks.many().unicast().onBackpressureBuffer();
 
+  // uploads claimed from the durable queue that have not reached a terminal state yet
+  private final AtomicInteger queuedInFlight = new AtomicInteger();
+
+  // gate the calls to song and to score when the concurrency limit is adaptive, otherwise null
+  private AdaptiveConcurrencyLimiter songLimiter;
+  private AdaptiveConcurrencyLimiter scoreLimiter;
+
+  // submit -> score upload -> publish, each with its own concurrency
+  private List<UploadStage> stages;
+
   @Getter private Disposable submitUploadDisposable;
 
   @PostConstruct
   public void init() {
-    submitUploadDisposable = createSubmitUploadDisposable();
+    if (submitUploadProperties.isAdaptiveConcurrency()) {
+      songLimiter =
+          createAriaClientLimiter("song", submitUploadProperties.getConcurrencyLatencyTolerance());
+      // score upload latency grows with the size of the file, only errors are a sign of overload
+      scoreLimiter = createAriaClientLimiter("score", 0);
+    }
+
+    stages = createStages();
+
+    submitUploadDisposable =
+        submitUploadProperties.isDurableQueue()
+            ? createQueuedSubmitUploadDisposable()
+            : createSubmitUploadDisposable();
+  }
+
+  private AdaptiveConcurrencyLimiter createAriaClientLimiter(
+      String service, double latencyTolerance) {
+    val limiter =
+        new AdaptiveConcurrencyLimiter(
+            submitUploadProperties.getMaxInFlight(),
+            submitUploadProperties.getConcurrencyFloor(),
+            submitUploadProperties.getConcurrencyCeiling(),
+            submitUploadProperties.getConcurrencyBackoffRatio(),
+            latencyTolerance,
+            SongScoreService::isOverloaded);
+
+    Gauge.builder(
+            "muse.submit_upload.concurrency.limit", limiter, AdaptiveConcurrencyLimiter::getLimit)
+        .description("Current limit of concurrent song/score calls")
+        .tag("service", service)
+        .register(meterRegistry);
+    Gauge.builder(
+            "muse.submit_upload.concurrency.in_flight",
+            limiter,
+            AdaptiveConcurrencyLimiter::getInFlight)
+        .description("Song/score calls currently running")
+        .tag("service", service)
+        .register(meterRegistry);
+    Gauge.builder(
+            "muse.submit_upload.concurrency.waiting",
+            limiter,
+            AdaptiveConcurrencyLimiter::getWaiting)
+        .description("Song/score calls waiting for room under the limit")
+        .tag("service", service)
+        .register(meterRegistry);
+
+    return limiter;
   }
 
   @Bean
@@ -50,71 +134,519 @@ public class SongScoreService {
   }
 
   private Disposable createSubmitUploadDisposable() {
-    return sink.asFlux()
-        // Concurrency of this flatMap is controlled to not overwhelm SONG/score
-        .flatMap(this::submitAndUploadToSongScore, maxInFlight, SONG_SCORE_SUBMIT_UPLOAD_PREFETCH)
+    return submitAndUploadToSongScore(queuedUploadEvents(), stagedUpload -> Mono.empty())
         .subscribe();
   }
 
-  public Mono<Upload> submitAndUploadToSongScore(UploadEvent uploadEvent) {
+  /**
+   * Upload events in the order they are to be processed, with fair scheduling they are dispatched
+   * from per study queues as there is capacity to process them rather than in the order received
+   */
+  private Flux<UploadEvent> queuedUploadEvents() {
+    if (!submitUploadProperties.isFairScheduling()) {
+      return receivedUploadEvents();
+    }
+
+    val fairQueue =
+        new FairQueue<>(
+            UploadEvent::getStudyId,
+            studyId ->
+                submitUploadProperties
+                    .getStudyWeights()
+                    .getOrDefault(studyId, submitUploadProperties.getDefaultStudyWeight()));
+
+    Gauge.builder("muse.submit_upload.queue.depth", fairQueue, FairQueue::size)
+        .description("Uploads queued for processing")
+        .register(meterRegistry);
+
+    // prefetch of 1 so that uploads are only taken off the fair queue as the first stage has room
+    // for them, anything prefetched would be dispatched in the order it was taken
+    return Flux.merge(
+        1,
+        fairQueue.asFlux(),
+        receivedUploadEvents()
+            .doOnNext(
+                uploadEvent -> {
+                  registerStudyQueueDepthGauge(fairQueue, uploadEvent.getStudyId());
+                  fairQueue.offer(uploadEvent);
+                })
+            .then()
+            .cast(UploadEvent.class));
+  }
+
+  /** Uploads of new submissions along with resumed ones, held against the queue limits again */
+  private Flux<UploadEvent> receivedUploadEvents() {
+    return Flux.merge(
+        sink.asFlux(),
+        uploadQueueService.resumedUploadEvents().doOnNext(uploadAdmissionService::hold));
+  }
+
+  private void registerStudyQueueDepthGauge(FairQueue<UploadEvent> fairQueue, String studyId) {
+    // registering is a no-op once the study has a gauge
+    Gauge.builder("muse.submit_upload.study_queue.depth", fairQueue, queue -> queue.size(studyId))
+        .description("Uploads of the study queued for processing")
+        .tag("study_id", studyId)
+        .register(meterRegistry);
+  }
+
+  /**
+   * Same as createSubmitUploadDisposable but with uploads claimed from the durable queue, only as
+   * many as there is capacity for so that nothing claimed waits on the heap
+   */
+  private Disposable createQueuedSubmitUploadDisposable() {
+    return Flux.interval(
+            Duration.ZERO, Duration.ofMillis(submitUploadProperties.getQueuePollIntervalMs()))
+        .onBackpressureDrop()
+        .concatMap(tick -> claimQueuedUploads(), 1)
+        .transform(
+            uploadEvents -> submitAndUploadToSongScore(uploadEvents, this::completeQueuedUpload))
+        .subscribe();
+  }
+
+  /**
+   * With an adaptive limit the uploads in progress are only bounded by its ceiling, the limiter
+   * decides how many of their calls to song/score actually run at once
+   */
+  private Integer getMaxConcurrency() {
+    return submitUploadProperties.isAdaptiveConcurrency()
+        ? submitUploadProperties.getConcurrencyCeiling()
+        : submitUploadProperties.getMaxInFlight();
+  }
+
+  private Integer getStageConcurrency(Integer stageConcurrency) {
+    return Optional.ofNullable(stageConcurrency).orElseGet(this::getMaxConcurrency);
+  }
+
+  /** Stages only run with their own concurrency once one of them has a concurrency set */
+  private boolean isStageConcurrency() {
+    return submitUploadProperties.getSubmitConcurrency() != null
+        || submitUploadProperties.getScoreUploadConcurrency() != null
+        || submitUploadProperties.getPublishConcurrency() != null;
+  }
+
+  /** @return max uploads in progress, across every stage */
+  private Integer getTotalConcurrency() {
+    return isStageConcurrency()
+        ? stages.stream().mapToInt(UploadStage::getConcurrency).sum()
+        : getMaxConcurrency();
+  }
+
+  private Flux<UploadEvent> claimQueuedUploads() {
+    // enough to keep every stage busy
+    val capacity = getTotalConcurrency() - queuedInFlight.get();
+    if (capacity <= 0) {
+      return Flux.empty();
+    }
+
+    return uploadQueueService
+        .claim(capacity)
+        .doOnNext(uploadEvent -> queuedInFlight.incrementAndGet())
+        .onErrorResume(
+            throwable -> {
+              log.error("Failed to claim queued uploads", throwable);
+              return Flux.empty();
+            });
+  }
+
+  private Mono<Void> completeQueuedUpload(StagedUpload stagedUpload) {
+    val uploadId = stagedUpload.getUploadEvent().getUpload().getUploadId();
+
+    // an upload that could not be brought to a terminal state is left for its lease to expire, it
+    // is then claimed again. One that failed after song accepted it is kept to be resumed later.
+    return Mono.justOrEmpty(stagedUpload)
+        .filter(StagedUpload::isTerminal)
+        .flatMap(
+            terminalUpload ->
+                isResumable(terminalUpload.getUploadEvent().getUpload())
+                    ? uploadQueueService.park(uploadId)
+                    : uploadQueueService.remove(uploadId))
+        .onErrorResume(
+            throwable -> {
+              log.error("Failed to remove queued upload {}", uploadId, throwable);
+              return Mono.empty();
+            })
+        .doFinally(
+            signalType -> {
+              uploadQueueService.dropClaim(uploadId);
+              queuedInFlight.decrementAndGet();
+            });
+  }
+
+  /**
+   * Submit uploads to song and upload their files to score in three stages: submit (song payload
+   * submission and analysis file lookup), score upload (the sequence upload itself) and publish. By
+   * default up to maxInFlight uploads (or the adaptive ceiling) are in progress at once, each going
+   * through every stage. Once a stage has its own concurrency set every stage runs for up to its
+   * own concurrency of uploads instead, a slow score upload then only holds up other score uploads
+   * and uploads waiting for a stage are held by the one before it.
+   *
+   * @param uploadEvents - uploads to process, requested only as there is room for them
+   * @param onComplete - called once an upload is through every stage, whatever its outcome
+   * @return uploads in their final state (COMPLETE or ERROR)
+   */
+  private Flux<Upload> submitAndUploadToSongScore(
+      Flux<UploadEvent> uploadEvents, Function<StagedUpload, Mono<Void>> onComplete) {
+    Flux<StagedUpload> stagedUploads = uploadEvents.map(StagedUpload::new);
+    if (isStageConcurrency()) {
+      for (val stage : stages) {
+        stagedUploads = stage.apply(stagedUploads);
+      }
+    } else {
+      stagedUploads =
+          stagedUploads.flatMap(
+              this::processAllStages, getMaxConcurrency(), SONG_SCORE_SUBMIT_UPLOAD_PREFETCH);
+    }
+
+    return stagedUploads.concatMap(
+        stagedUpload ->
+            onComplete
+                .apply(stagedUpload)
+                .then(Mono.justOrEmpty(stagedUpload.getUploadEvent().getUpload()))
+                // the upload has reached a terminal state, let go of its content and its room in
+                // the upload queue. With the in memory queue one that failed after song accepted it
+                // is held on to, content and all, so that it can be resumed.
+                .doFinally(
+                    signalType -> {
+                      val uploadEvent = stagedUpload.getUploadEvent();
+                      if (!submitUploadProperties.isDurableQueue()
+                          && stagedUpload.isTerminal()
+                          && isResumable(uploadEvent.getUpload())) {
+                        uploadQueueService.holdForResume(uploadEvent);
+                      } else {
+                        uploadEvent.getSubmissionFile().getContent().release();
+                      }
+                      uploadAdmissionService.release(uploadEvent);
+                    }));
+  }
+
+  private Mono<StagedUpload> processAllStages(StagedUpload stagedUpload) {
+    Mono<StagedUpload> processed = Mono.just(stagedUpload);
+    for (val stage : stages) {
+      processed = processed.flatMap(stage::process);
+    }
+    return processed;
+  }
+
+  private List<UploadStage> createStages() {
+    val submit =
+        new UploadStage(
+            "submit",
+            getStageConcurrency(submitUploadProperties.getSubmitConcurrency()),
+            this::submitToSong,
+            null);
+    val scoreUpload =
+        new UploadStage(
+            "score_upload",
+            getStageConcurrency(submitUploadProperties.getScoreUploadConcurrency()),
+            this::uploadToScore,
+            submit);
+    val publish =
+        new UploadStage(
+            "publish",
+            getStageConcurrency(submitUploadProperties.getPublishConcurrency()),
+            this::publish,
+            scoreUpload);
+    return List.of(submit, scoreUpload, publish);
+  }
+
+  /**
+   * Submit the payload to song and look up the analysis file that is to be uploaded to score. An
+   * upload that song already accepted is not submitted again, that would create a second analysis.
+   */
+  private Mono<Void> submitToSong(StagedUpload stagedUpload) {
+    return withUploadContext(
+            upload ->
+                UploadCheckpoint.SONG_SUBMITTED.isReachedBy(upload.getCheckpoint())
+                    ? Mono.just(upload)
+                    : submitPayload(stagedUpload.getUploadEvent()))
+        // the analysis file is only needed to initialize the score upload
+        .filter(upload -> !UploadCheckpoint.SCORE_INITIALIZED.isReachedBy(upload.getCheckpoint()))
+        .flatMap(
+            upload ->
+                songCall(
+                    () ->
+                        ariaClient.getAnalysisFileFromSong(
+                            upload.getStudyId(), upload.getAnalysisId())))
+        .doOnNext(stagedUpload::setAnalysisFile)
+        .then();
+  }
+
+  private Mono<Upload> submitPayload(UploadEvent uploadEvent) {
     log.debug("UploadEvent:payload for song - {}", uploadEvent.getPayload());
-    return ariaClient
-        .submitPayload(uploadEvent.getStudyId(), uploadEvent.getPayload())
+    return songCall(
+            () -> ariaClient.submitPayload(uploadEvent.getStudyId(), uploadEvent.getPayload()))
         .flatMap(
             submitResponse ->
                 withUploadContext(
                     upload -> {
                       upload.setAnalysisId(UUID.fromString(submitResponse.getAnalysisId()));
                       upload.setStatus(UploadStatus.PROCESSING);
-                      return uploadService.updateUpload(upload);
-                    }))
-        .flatMap(
-            updatedUpload ->
-                ariaClient.getAnalysisFileFromSong(
-                    updatedUpload.getStudyId(), updatedUpload.getAnalysisId()))
-        .flatMap(
-            analysisFileResponse ->
-                ariaClient.initScoreUpload(
-                    analysisFileResponse, uploadEvent.getSubmissionFile().getFileMd5sum()))
+                      upload.setCheckpoint(UploadCheckpoint.SONG_SUBMITTED);
+                      return updateProgress(upload);
+                    }));
+  }
+
+  /**
+   * Upload the file to score, an upload that score was already initialized for is uploaded with the
+   * spec recorded at the time rather than initialized again.
+   */
+  private Mono<Void> uploadToScore(StagedUpload stagedUpload) {
+    val submissionFile = stagedUpload.getUploadEvent().getSubmissionFile();
+    return withUploadContext(
+            upload -> {
+              if (UploadCheckpoint.SCORE_UPLOADED.isReachedBy(upload.getCheckpoint())) {
+                return Mono.<ScoreFileSpec>empty();
+              }
+              if (UploadCheckpoint.SCORE_INITIALIZED.isReachedBy(upload.getCheckpoint())) {
+                return Mono.fromCallable(
+                    () -> objectMapper.readValue(upload.getScoreFileSpec(), ScoreFileSpec.class));
+              }
+              return initScoreUpload(stagedUpload.getAnalysisFile(), submissionFile);
+            })
         .flatMap(
             scoreFileSpec ->
-                ariaClient.uploadAndFinalize(
-                    scoreFileSpec,
-                    uploadEvent.getSubmissionFile().getContent(),
-                    uploadEvent.getSubmissionFile().getFileMd5sum()))
-        .flatMap(
-            res ->
-                withUploadContext(
-                    upload ->
-                        ariaClient.publishAnalysis(upload.getStudyId(), upload.getAnalysisId())))
+                scoreCall(
+                    () ->
+                        ariaClient.uploadAndFinalize(
+                            scoreFileSpec,
+                            // read from disk at the last moment when the content has been spooled
+                            submissionFile.getContent().asString(),
+                            submissionFile.getFileMd5sum())))
+        .then(
+            withUploadContext(
+                upload -> {
+                  if (UploadCheckpoint.SCORE_UPLOADED.isReachedBy(upload.getCheckpoint())) {
+                    return Mono.empty();
+                  }
+                  upload.setCheckpoint(UploadCheckpoint.SCORE_UPLOADED);
+                  upload.setScoreFileSpec(null);
+                  return updateProgress(upload);
+                }))
+        .then();
+  }
+
+  private Mono<ScoreFileSpec> initScoreUpload(
+      AnalysisFile analysisFile, SubmissionFile submissionFile) {
+    return scoreCall(() -> ariaClient.initScoreUpload(analysisFile, submissionFile.getFileMd5sum()))
         .flatMap(
-            res ->
-                withUploadContext(
-                    upload -> {
-                      upload.setStatus(UploadStatus.COMPLETE);
-                      return uploadService.updateUpload(upload);
-                    }))
-        .log("SongScoreService::submitAndUploadToSongScore")
-        .onErrorResume(
-            throwable ->
+            scoreFileSpec ->
                 withUploadContext(
-                    upload -> {
-                      log.error(throwable.getLocalizedMessage(), throwable);
-                      upload.setStatus(UploadStatus.ERROR);
-                      if (throwable instanceof AriaClientException) {
-                        upload.setError(throwable.toString());
-                      } else if (Exceptions.isRetryExhausted(throwable)
-                          && throwable.getCause() instanceof AriaClientException) {
-                        upload.setError(throwable.getCause().toString());
-                      } else {
-                        upload.setError("Internal server error!");
-                      }
-                      return uploadService.updateUpload(upload);
-                    }))
-        .contextWrite(ctx -> ctx.put("upload", uploadEvent.getUpload()));
+                        upload ->
+                            Mono.fromCallable(() -> objectMapper.writeValueAsString(scoreFileSpec))
+                                .flatMap(
+                                    scoreFileSpecJson -> {
+                                      upload.setCheckpoint(UploadCheckpoint.SCORE_INITIALIZED);
+                                      upload.setScoreFileSpec(scoreFileSpecJson);
+                                      return updateProgress(upload);
+                                    }))
+                    .thenReturn(scoreFileSpec));
+  }
+
+  /** Publish the analysis in song, unless an earlier attempt already did */
+  private Mono<Void> publish(StagedUpload stagedUpload) {
+    return withUploadContext(
+            upload ->
+                UploadCheckpoint.PUBLISHED.isReachedBy(upload.getCheckpoint())
+                    ? Mono.empty()
+                    : songCall(
+                            () ->
+                                ariaClient.publishAnalysis(
+                                    upload.getStudyId(), upload.getAnalysisId()))
+                        .then())
+        .then(
+            withUploadContext(
+                upload -> {
+                  upload.setStatus(UploadStatus.COMPLETE);
+                  upload.setCheckpoint(UploadCheckpoint.PUBLISHED);
+                  return updateProgress(upload);
+                }))
+        .doOnNext(upload -> stagedUpload.setTerminal(true))
+        .then();
+  }
+
+  private Mono<Void> recordError(Throwable throwable) {
+    return withUploadContext(
+            upload -> {
+              log.error(throwable.getLocalizedMessage(), throwable);
+              upload.setStatus(UploadStatus.ERROR);
+              if (throwable instanceof AriaClientException) {
+                upload.setError(throwable.toString());
+              } else if (Exceptions.isRetryExhausted(throwable)
+                  && throwable.getCause() instanceof AriaClientException) {
+                upload.setError(throwable.getCause().toString());
+              } else {
+                upload.setError("Internal server error!");
+              }
+              return updateProgress(upload);
+            })
+        .then();
+  }
+
+  private Mono<Upload> updateProgress(Upload upload) {
+    return submitUploadProperties.isProgressBatching()
+        ? uploadProgressWriter.write(upload)
+        : uploadService.updateUpload(upload);
+  }
+
+  private <R> Mono<R> songCall(Supplier<Mono<R>> ariaClientCall) {
+    return limited(songLimiter, ariaClientCall);
+  }
+
+  private <R> Mono<R> scoreCall(Supplier<Mono<R>> ariaClientCall) {
+    return limited(scoreLimiter, ariaClientCall);
+  }
+
+  private static <R> Mono<R> limited(
+      AdaptiveConcurrencyLimiter limiter, Supplier<Mono<R>> ariaClientCall) {
+    return limiter == null ? Mono.defer(ariaClientCall) : limiter.limit(ariaClientCall);
+  }
+
+  /**
+   * With the durable queue, an upload that failed after song accepted it keeps its queue row to be
+   * resumed from its checkpoint, submitting it again from the start would create a second analysis
+   */
+  private static boolean isResumable(Upload upload) {
+    return upload.getStatus() == UploadStatus.ERROR && upload.getCheckpoint() != null;
+  }
+
+  /**
+   * Errors that mean song/score is struggling (transport errors, 5xx and 429), a rejected request
+   * or an error of our own says nothing about load and isn't retried
+   */
+  static boolean isOverloaded(Throwable throwable) {
+    val cause =
+        Exceptions.isRetryExhausted(throwable) && throwable.getCause() != null
+            ? throwable.getCause()
+            : throwable;
+    if (cause instanceof AriaClientException) {
+      // no status when there was no response
+      return isOverloadedStatus(((AriaClientException) cause).getStatus());
+    }
+    if (cause instanceof WebClientResponseException) {
+      return isOverloadedStatus(((WebClientResponseException) cause).getStatusCode());
+    }
+    return cause instanceof WebClientRequestException
+        || cause instanceof IOException
+        || cause instanceof TimeoutException
+        || cause instanceof io.netty.handler.timeout.TimeoutException;
+  }
+
+  private static boolean isOverloadedStatus(HttpStatus status) {
+    return status == null || status.is5xxServerError() || status == HttpStatus.TOO_MANY_REQUESTS;
   }
 
   private <R> Mono<R> withUploadContext(Function<Upload, Mono<R>> func) {
     return Mono.deferContextual(ctx -> func.apply(ctx.get("upload")));
   }
+
+  /** An upload making its way through the stages */
+  @Getter
+  @Setter
+  @RequiredArgsConstructor
+  private static class StagedUpload {
+    private final UploadEvent uploadEvent;
+
+    // found by the submit stage, uploaded by the score upload stage
+    private AnalysisFile analysisFile;
+
+    // COMPLETE or ERROR, the remaining stages are skipped
+    private boolean terminal = false;
+
+    // neither could be recorded, the remaining stages are skipped
+    private boolean abandoned = false;
+  }
+
+  /**
+   * A step of processing uploads, applied on its own it runs for up to concurrency uploads at once.
+   * Uploads that finished the previous stage wait for room in this one, held by the previous stage,
+   * so at most as many wait as the previous stage's concurrency. The duration of the step, uploads
+   * waiting for and uploads in the stage are recorded.
+   */
+  private class UploadStage {
+    private final String name;
+    @Getter private final int concurrency;
+    private final Function<StagedUpload, Mono<Void>> step;
+    private final UploadStage previous;
+
+    private final Timer timer;
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+
+    UploadStage(
+        String name,
+        int concurrency,
+        Function<StagedUpload, Mono<Void>> step,
+        UploadStage previous) {
+      this.name = name;
+      this.concurrency = concurrency;
+      this.step = step;
+      this.previous = previous;
+
+      timer =
+          Timer.builder("muse.submit_upload.stage.duration")
+              .description("Time taken by an upload stage")
+              .tag("stage", name)
+              .register(meterRegistry);
+      Gauge.builder("muse.submit_upload.stage.waiting", this, UploadStage::getWaiting)
+          .description("Uploads waiting for room in an upload stage")
+          .tag("stage", name)
+          .register(meterRegistry);
+      Gauge.builder("muse.submit_upload.stage.active", active, AtomicInteger::get)
+          .description("Uploads in an upload stage")
+          .tag("stage", name)
+          .register(meterRegistry);
+    }
+
+    Flux<StagedUpload> apply(Flux<StagedUpload> stagedUploads) {
+      return stagedUploads.flatMap(this::process, concurrency, SONG_SCORE_SUBMIT_UPLOAD_PREFETCH);
+    }
+
+    private long getWaiting() {
+      // the first stage's uploads wait in the upload queue
+      return previous == null ? 0 : previous.completed.get() - started.get();
+    }
+
+    private Mono<StagedUpload> process(StagedUpload stagedUpload) {
+      started.incrementAndGet();
+      if (stagedUpload.isTerminal() || stagedUpload.isAbandoned()) {
+        completed.incrementAndGet();
+        return Mono.just(stagedUpload);
+      }
+
+      active.incrementAndGet();
+      val sample = Timer.start(meterRegistry);
+
+      // a step that fails while song/score is struggling is run again, the upload's checkpoint
+      // letting it pick up from its last completed step
+      return Mono.defer(() -> step.apply(stagedUpload))
+          .retryWhen(
+              Retry.backoff(
+                      submitUploadProperties.getResumeMaxAttempts(),
+                      Duration.ofSeconds(submitUploadProperties.getResumeBackoffSec()))
+                  .filter(SongScoreService::isOverloaded))
+          .onErrorResume(
+              throwable ->
+                  recordError(throwable).doOnSuccess(empty -> stagedUpload.setTerminal(true)))
+          .onErrorResume(
+              throwable -> {
+                log.error("Failed to record upload error", throwable);
+                stagedUpload.setAbandoned(true);
+                return Mono.empty();
+              })
+          .log("SongScoreService::" + name)
+          .contextWrite(ctx -> ctx.put("upload", stagedUpload.getUploadEvent().getUpload()))
+          .doFinally(
+              signalType -> {
+                sample.stop(timer);
+                active.decrementAndGet();
+              })
+          .then(
+              Mono.fromCallable(
+                  () -> {
+                    completed.incrementAndGet();
+                    return stagedUpload;
+                  }));
+    }
+  }
 }
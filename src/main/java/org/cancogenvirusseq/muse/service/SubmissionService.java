@@ -19,13 +19,13 @@
 package org.cancogenvirusseq.muse.service;
 
 import static java.util.stream.Collectors.groupingByConcurrent;
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.processFileContent;
 import static org.cancogenvirusseq.muse.components.FastaFileProcessor.processFileStrContent;
 import static org.cancogenvirusseq.muse.utils.SecurityContextWrapper.getUserIdFromContext;
-import static org.springframework.core.io.buffer.DataBufferUtils.readInputStream;
 
-import java.io.InputStream;
-import java.io.SequenceInputStream;
+import io.netty.buffer.PooledByteBufAllocator;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
@@ -34,16 +34,18 @@ import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.zip.GZIPInputStream;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.cancogenvirusseq.muse.api.model.SubmissionCreateResponse;
+import org.cancogenvirusseq.muse.components.GzipInflater;
 import org.cancogenvirusseq.muse.components.PayloadFileMapper;
+import org.cancogenvirusseq.muse.components.SubmissionFileSpooler;
 import org.cancogenvirusseq.muse.components.TsvParser;
 import org.cancogenvirusseq.muse.components.security.Scopes;
+import org.cancogenvirusseq.muse.config.SubmissionProperties;
+import org.cancogenvirusseq.muse.config.SubmitUploadProperties;
 import org.cancogenvirusseq.muse.exceptions.submission.SubmissionFileGzipException;
 import org.cancogenvirusseq.muse.exceptions.submission.SubmissionFilesException;
 import org.cancogenvirusseq.muse.model.SubmissionBundle;
@@ -52,14 +54,18 @@ import org.cancogenvirusseq.muse.model.UploadEvent;
 import org.cancogenvirusseq.muse.model.UploadRequest;
 import org.cancogenvirusseq.muse.repository.SubmissionRepository;
 import org.cancogenvirusseq.muse.repository.model.Submission;
+import org.cancogenvirusseq.muse.repository.model.UploadStatus;
 import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.StringDecoder;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferUtils;
-import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
 import org.springframework.data.domain.Pageable;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.reactive.TransactionalOperator;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.Sinks;
@@ -71,8 +77,14 @@ import reactor.util.function.Tuples;
 @Slf4j
 public class SubmissionService {
 
-  private static final DefaultDataBufferFactory DATA_BUFFER_FACTORY =
-      new DefaultDataBufferFactory();
+  // decompressed content is released by the decoders as it is read, so pooled buffers are reused
+  private static final NettyDataBufferFactory INFLATED_BUFFER_FACTORY =
+      new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+
+  private static final Sinks.EmitFailureHandler EMIT_FAILURE_HANDLER =
+      Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1));
+
+  private static final ResolvableType STRING_TYPE = ResolvableType.forClass(String.class);
 
   private static final String METADATA_FILE_EXT = "tsv";
   private static final Set<String> MOLECULAR_FILE_EXT_SET =
@@ -85,6 +97,12 @@ public class SubmissionService {
   private final Sinks.Many<UploadEvent> songScoreSubmitUploadSink;
   private final TsvParser tsvParser;
   private final PayloadFileMapper payloadFileMapper;
+  private final SubmissionProperties submissionProperties;
+  private final SubmissionFileSpooler submissionFileSpooler;
+  private final TransactionalOperator transactionalOperator;
+  private final UploadQueueService uploadQueueService;
+  private final SubmitUploadProperties submitUploadProperties;
+  private final UploadAdmissionService uploadAdmissionService;
 
   public Mono<Submission> getSubmissionById(
       @NonNull UUID submissionId, @NonNull SecurityContext securityContext) {
@@ -116,28 +134,179 @@ public class SubmissionService {
    */
   public Mono<SubmissionCreateResponse> submit(
       @NonNull Flux<FilePart> fileParts, @NonNull SecurityContext securityContext) {
-    return validateSubmission(fileParts)
-        // extract to entry set
-        .flatMapIterable(Map::entrySet)
-        // flatten entry set lists to pair of filetype and FilePart
-        .flatMap(SubmissionService::expandToFileTypeFilePartTuple)
-        // read each file in as String
-        .transform(SubmissionService::readFileContentToString)
-        // reduce flux of Tuples(fileType, fileString) into a SubmissionRequest
-        .reduce(
-            new SubmissionBundle(securityContext.getAuthentication()),
-            this::reduceToSubmissionBundle)
-        // validate submission records has fasta file map!
-        .map(payloadFileMapper::submissionBundleToSubmissionRequests)
-        // record submission to database
-        .flatMapMany(getPersistAndGenerateUploadEventsFunc(securityContext))
-        // emit submission event to sink for further processing
-        .doOnNext(songScoreSubmitUploadSink::tryEmitNext)
-        // take the last uploadEvent and extract the submissionId
-        .last()
+    // turned away before anything is read if the upload queue is full
+    return uploadAdmissionService.admit(
+        admission ->
+            submissionProperties.isStreamingIngest() && submissionProperties.isPipelined()
+                ? submitPipelined(fileParts, securityContext, admission)
+                : submitBundled(fileParts, securityContext, admission));
+  }
+
+  private Mono<SubmissionCreateResponse> submitBundled(
+      Flux<FilePart> fileParts,
+      SecurityContext securityContext,
+      UploadAdmissionService.Admission admission) {
+    // the bundle's spooled files are released once the request terminates, by then every
+    // upload event has taken its own reference on the file holding its content
+    return Mono.using(
+        () -> new SubmissionBundle(securityContext.getAuthentication()),
+        submissionBundle ->
+            validateSubmission(fileParts)
+                // extract to entry set
+                .flatMapIterable(Map::entrySet)
+                // flatten entry set lists to pair of filetype and FilePart
+                .flatMap(SubmissionService::expandToFileTypeFilePartTuple)
+                // read and parse the files into the SubmissionBundle
+                .as(
+                    fileTypeFilePartTupleFlux ->
+                        readToSubmissionBundle(fileTypeFilePartTupleFlux, submissionBundle))
+                // validate submission records has fasta file map!
+                .flatMap(payloadFileMapper::mapSubmissionBundleToSubmissionRequests)
+                // make room in the upload queue before anything is recorded
+                .flatMap(
+                    submissionRequest ->
+                        admission
+                            .reserve(
+                                submissionRequest.values().stream()
+                                    .map(UploadRequest::getSubmissionFile)
+                                    .collect(Collectors.toList()))
+                            .thenReturn(submissionRequest))
+                // record submission to database
+                .flatMapMany(getPersistAndGenerateUploadEventsFunc(securityContext))
+                // queue submission event for further processing
+                .concatMap(uploadEvent -> queueUploadEvent(uploadEvent, admission))
+                // take the last uploadEvent and extract the submissionId
+                .last()
+                .map(
+                    uploadEvent ->
+                        new SubmissionCreateResponse(
+                            uploadEvent.getUpload().getSubmissionId().toString())),
+        SubmissionBundle::releaseSpooledFiles);
+  }
+
+  /**
+   * Pipelined version of submit, instead of reading every file into a SubmissionBundle before
+   * mapping anything, the metadata file is parsed first into an index of records by fasta header
+   * and each sample is joined against it as soon as it is decoded. Joined samples are staged in
+   * memory or spilled to disk, the database is only touched once the whole submission has been
+   * checked, by the same short transaction as in submit, so invalid submissions leave nothing
+   * behind and no transaction is held open while the client is still sending.
+   */
+  private Mono<SubmissionCreateResponse> submitPipelined(
+      Flux<FilePart> fileParts,
+      SecurityContext securityContext,
+      UploadAdmissionService.Admission admission) {
+    // the bundle only holds the spooled files here, released the same as in submit
+    return Mono.using(
+        () -> new SubmissionBundle(securityContext.getAuthentication()),
+        submissionBundle ->
+            validateSubmission(fileParts)
+                .flatMap(
+                    fileTypeMap -> {
+                      val metadataFilePart = fileTypeMap.get("meta").get(0);
+                      val molecularFileParts =
+                          expandToFileTypeFilePartTuple(
+                              Map.entry("molecular", fileTypeMap.get("molecular")));
+                      val sampleSpill =
+                          submissionFileSpooler.newSampleSpill(
+                              submissionBundle.getSpooledFiles()::add);
+
+                      return indexMetadataFile(metadataFilePart, securityContext)
+                          .flatMap(
+                              recordIndex ->
+                                  stageJoinedUploads(recordIndex, molecularFileParts, sampleSpill));
+                    })
+                // make room in the upload queue before anything is recorded
+                .flatMap(
+                    submissionRequest ->
+                        admission
+                            .reserve(
+                                submissionRequest.values().stream()
+                                    .map(UploadRequest::getSubmissionFile)
+                                    .collect(Collectors.toList()))
+                            .thenReturn(submissionRequest))
+                // record submission to database, committed before any upload event is queued
+                .flatMapMany(getPersistAndGenerateUploadEventsFunc(securityContext))
+                .concatMap(uploadEvent -> queueUploadEvent(uploadEvent, admission))
+                .last()
+                .map(
+                    uploadEvent ->
+                        new SubmissionCreateResponse(
+                            uploadEvent.getUpload().getSubmissionId().toString())),
+        SubmissionBundle::releaseSpooledFiles);
+  }
+
+  private Mono<PayloadFileMapper.RecordIndex> indexMetadataFile(
+      FilePart metadataFilePart, SecurityContext securityContext) {
+    return tsvParser
+        .parseAndValidateTsvLinesToFlatRecords(
+            decodeLines(metadataFilePart.content()),
+            scopes.resolveStudyAuthorization(securityContext.getAuthentication()))
         .map(
-            uploadEvent ->
-                new SubmissionCreateResponse(uploadEvent.getUpload().getSubmissionId().toString()));
+            records ->
+                payloadFileMapper.indexRecords(records, Set.of(metadataFilePart.filename())));
+  }
+
+  /**
+   * Join each sample to its records as it is decoded, without touching the database
+   *
+   * @return upload requests by composite id, in the order they were joined, once every sample has
+   *     been joined and the submission checked
+   */
+  private Mono<Map<String, UploadRequest>> stageJoinedUploads(
+      PayloadFileMapper.RecordIndex recordIndex,
+      Flux<Tuple2<String, FilePart>> molecularFileParts,
+      SubmissionFileSpooler.SampleSpill sampleSpill) {
+    // a sample joined again (repeated fasta header) replaces the request of the earlier one
+    val uploadRequests = new LinkedHashMap<String, UploadRequest>();
+
+    return molecularFileParts
+        // one file and one sample at a time, the index is not thread safe
+        .concatMap(
+            fileTypeFilePart ->
+                processFileContent(
+                    getContentFromMaybeZipped(fileTypeFilePart),
+                    fileTypeFilePart.getT2().filename()))
+        // staged samples keep only a slice of their content in memory once over the spill budget
+        .concatMap(sampleSpill::spill)
+        .concatMapIterable(
+            fastaHeaderFile -> recordIndex.join(fastaHeaderFile.getT1(), fastaHeaderFile.getT2()))
+        .doOnNext(
+            uploadRequest -> uploadRequests.put(uploadRequest.getCompositeId(), uploadRequest))
+        // same errors as mapping a whole SubmissionBundle
+        .then(Mono.fromRunnable(recordIndex::checkComplete))
+        .then(Mono.fromSupplier(() -> Collections.unmodifiableMap(uploadRequests)))
+        .log("SubmissionService::stageJoinedUploads", Level.FINE);
+  }
+
+  /**
+   * Emit the upload event to the sink, unless the durable queue is enabled in which case it was
+   * queued with its submission. An upload that can't be queued is marked as an ERROR rather than
+   * left QUEUED forever.
+   */
+  private Mono<UploadEvent> queueUploadEvent(
+      UploadEvent uploadEvent, UploadAdmissionService.Admission admission) {
+    if (submitUploadProperties.isDurableQueue()) {
+      // already queued with its submission
+      return Mono.just(uploadEvent);
+    }
+
+    val content = uploadEvent.getSubmissionFile().getContent().retain();
+    try {
+      // concurrent submissions emit to the same sink, an emission that collides with another is
+      // retried rather than dropped
+      songScoreSubmitUploadSink.emitNext(uploadEvent, EMIT_FAILURE_HANDLER);
+    } catch (Sinks.EmissionException e) {
+      content.release();
+      log.error("Failed to queue upload {}", uploadEvent.getUpload().getUploadId(), e);
+      val upload = uploadEvent.getUpload();
+      upload.setStatus(UploadStatus.ERROR);
+      upload.setError("Upload could not be queued for processing");
+      return uploadService.updateUpload(upload).thenReturn(uploadEvent);
+    }
+
+    admission.handOver(uploadEvent);
+    return Mono.just(uploadEvent);
   }
 
   /**
@@ -191,6 +360,80 @@ public class SubmissionService {
                     .orElseThrow());
   }
 
+  /**
+   * Reads all submitted files into a single SubmissionBundle. When streaming ingest is enabled the
+   * files are decoded one at a time, record by record, as their content arrives. Otherwise each
+   * file is first read entirely into a String.
+   *
+   * @param fileTypeFilePartTupleFlux - pairs of fileType and FilePart
+   * @param submissionBundle - bundle to read the records and files into
+   * @return mono of the SubmissionBundle containing all records and files
+   */
+  private Mono<SubmissionBundle> readToSubmissionBundle(
+      Flux<Tuple2<String, FilePart>> fileTypeFilePartTupleFlux, SubmissionBundle submissionBundle) {
+    if (!submissionProperties.isStreamingIngest()) {
+      return fileTypeFilePartTupleFlux
+          // read each file in as String
+          .transform(this::readFileContentToString)
+          // reduce flux of Tuples(fileType, fileString) into a SubmissionRequest
+          .reduce(submissionBundle, this::reduceToSubmissionBundle);
+    }
+
+    // samples past the spill budget are moved to disk, the bundle only holds a slice of each
+    val sampleSpill = submissionFileSpooler.newSampleSpill(submissionBundle.getSpooledFiles()::add);
+
+    return fileTypeFilePartTupleFlux
+        // one file at a time as the bundle is not safe for concurrent modification
+        .concatMap(
+            fileTypeFilePart ->
+                decodeIntoSubmissionBundle(fileTypeFilePart, submissionBundle, sampleSpill))
+        .then(Mono.just(submissionBundle));
+  }
+
+  /**
+   * Decodes a single file into the submission bundle without ever holding the whole file in memory,
+   * metadata is decoded line by line and molecular files sample by sample
+   *
+   * @param fileTypeFilePart - pair of fileType and FilePart to decode
+   * @param submissionBundle - the bundle to add the decoded records/files to
+   * @param sampleSpill - spill of the submission the decoded samples are passed through
+   * @return mono that completes once the file is fully decoded
+   */
+  private Mono<Void> decodeIntoSubmissionBundle(
+      Tuple2<String, FilePart> fileTypeFilePart,
+      SubmissionBundle submissionBundle,
+      SubmissionFileSpooler.SampleSpill sampleSpill) {
+    val filename = fileTypeFilePart.getT2().filename();
+    val content = getContentFromMaybeZipped(fileTypeFilePart);
+
+    submissionBundle.getOriginalFileNames().add(filename);
+
+    if (fileTypeFilePart.getT1().equals(METADATA_FILE_EXT)) {
+      // parse and validate records from metadata file
+      return tsvParser
+          .parseAndValidateTsvLinesToFlatRecords(
+              decodeLines(content),
+              scopes.resolveStudyAuthorization(submissionBundle.getUserAuthentication()))
+          .doOnNext(records -> submissionBundle.getRecords().addAll(records))
+          .then();
+    }
+
+    // process the submitted file into upload ready files, large files are spooled to disk
+    return submissionFileSpooler
+        .processMolecularFileContent(content, filename, submissionBundle.getSpooledFiles()::add)
+        .concatMap(sampleSpill::spill)
+        .doOnNext(
+            fastaHeaderFile ->
+                submissionBundle.getFiles().put(fastaHeaderFile.getT1(), fastaHeaderFile.getT2()))
+        .then();
+  }
+
+  private Flux<String> decodeLines(Flux<DataBuffer> content) {
+    val lineDecoder = StringDecoder.allMimeTypes(List.of("\n"), true);
+    lineDecoder.setMaxInMemorySize(submissionProperties.getMaxTsvLineSize());
+    return lineDecoder.decode(content, STRING_TYPE, null, Collections.emptyMap());
+  }
+
   /**
    * For each file submitted, extract the file contents into a string
    *
@@ -198,12 +441,12 @@ public class SubmissionService {
    *     FilePart which represents one entire file from the multipart file upload
    * @return a flux of SubmissionUpload
    */
-  private static Flux<SubmissionUpload> readFileContentToString(
+  private Flux<SubmissionUpload> readFileContentToString(
       Flux<Tuple2<String, FilePart>> fileTypeFilePartTupleFlux) {
     return fileTypeFilePartTupleFlux.flatMap(
         fileTypeFilePart ->
-            fileContentMaybeZippedToString
-                .apply(fileTypeFilePart)
+            getContentFromMaybeZipped(fileTypeFilePart)
+                .as(fileContentToString)
                 .map(
                     fileStr ->
                         new SubmissionUpload(
@@ -226,42 +469,23 @@ public class SubmissionService {
               .reduce(new StringBuilder(), StringBuilder::append)
               .map(StringBuilder::toString);
 
-  private static final Function<Tuple2<String, FilePart>, Flux<DataBuffer>>
-      getContentFromMaybeZipped =
-          (Tuple2<String, FilePart> fileTypeFilePart) ->
-              Optional.of(fileTypeFilePart)
-                  .filter(f -> f.getT1().endsWith("gz"))
-                  .map(
-                      zippedTuple ->
-                          zippedTuple
-                              .getT2()
-                              .content()
-                              .map(DataBuffer::asInputStream)
-                              .reduce(SubmissionService::reduceInputStreams)
-                              .flatMapMany(
-                                  inputStream ->
-                                      readInputStream(
-                                          () -> new GZIPInputStream(inputStream),
-                                          DATA_BUFFER_FACTORY,
-                                          // 1024 because from observation of other
-                                          // databuffers, this seems to be the size
-                                          // they use
-                                          1024))
-                              .onErrorMap(
-                                  throwable ->
-                                      new SubmissionFileGzipException(
-                                          zippedTuple.getT2().filename())))
-                  .orElse(fileTypeFilePart.getT2().content());
-
-  private static final Function<Tuple2<String, FilePart>, Mono<String>>
-      fileContentMaybeZippedToString = getContentFromMaybeZipped.andThen(fileContentToString);
-
-  @SneakyThrows
-  private static InputStream reduceInputStreams(
-      InputStream sequenceInputStream, InputStream inputStream) {
-    val nextStream = new SequenceInputStream(sequenceInputStream, inputStream);
-    inputStream.close();
-    return nextStream;
+  /**
+   * Content of the submitted file, gzipped files are decompressed incrementally as the parts stream
+   * in (see {@link GzipInflater})
+   */
+  private Flux<DataBuffer> getContentFromMaybeZipped(Tuple2<String, FilePart> fileTypeFilePart) {
+    return Optional.of(fileTypeFilePart)
+        .filter(f -> f.getT1().endsWith("gz"))
+        .map(
+            zippedTuple ->
+                GzipInflater.inflate(
+                        zippedTuple.getT2().content(),
+                        INFLATED_BUFFER_FACTORY,
+                        submissionProperties.getGzipBufferSize())
+                    .onErrorMap(
+                        throwable ->
+                            new SubmissionFileGzipException(zippedTuple.getT2().filename())))
+        .orElse(fileTypeFilePart.getT2().content());
   }
 
   private static Set<String> compileOriginalFilenames(Collection<UploadRequest> uploadRequests) {
@@ -282,11 +506,10 @@ public class SubmissionService {
 
     if (submissionUpload.getType().equals(METADATA_FILE_EXT)) {
       // parse and validate records from metadata file
-      scopes
-          .wrapWithUserScopes(
-              tsvParser::parseAndValidateTsvStrToFlatRecords,
-              submissionBundle.getUserAuthentication())
-          .apply(submissionUpload.getContent())
+      tsvParser
+          .parseAndValidateTsvStrToFlatRecords(
+              submissionUpload.getContent(),
+              scopes.resolveStudyAuthorization(submissionBundle.getUserAuthentication()))
           .forEach(record -> submissionBundle.getRecords().add(record));
     } else {
       // process the submitted file into upload ready files
@@ -296,6 +519,11 @@ public class SubmissionService {
     return submissionBundle;
   }
 
+  /**
+   * Persist the submission, its uploads and, with the durable queue, their queue rows in a single
+   * transaction, so that either all of it is committed or none of it is. The transaction holds one
+   * connection throughout and the uploads are inserted in batches.
+   */
   private Function<Map<String, UploadRequest>, Publisher<? extends UploadEvent>>
       getPersistAndGenerateUploadEventsFunc(SecurityContext securityContext) {
     return submissionRequest ->
@@ -326,6 +554,18 @@ public class SubmissionService {
                         .payload(
                             submissionRequest.get(upload.getCompositeId()).getRecord().toString())
                         .build())
+            .collectList()
+            .flatMap(this::enqueueWithSubmission)
+            .as(transactionalOperator::transactional)
+            // only once committed are the upload events passed on
+            .flatMapMany(Flux::fromIterable)
             .log("SubmissionService::getPersistAndGenerateUploadEventsFunc", Level.FINE);
   }
+
+  /** With the durable queue, the uploads are queued in the transaction persisting them */
+  private Mono<List<UploadEvent>> enqueueWithSubmission(List<UploadEvent> uploadEvents) {
+    return submitUploadProperties.isDurableQueue()
+        ? uploadQueueService.enqueueAll(uploadEvents).thenReturn(uploadEvents)
+        : Mono.just(uploadEvents);
+  }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import javax.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.cancogenvirusseq.muse.config.SubmitUploadProperties;
+import org.cancogenvirusseq.muse.exceptions.submission.SubmissionQueueFullException;
+import org.cancogenvirusseq.muse.model.SubmissionFile;
+import org.cancogenvirusseq.muse.model.UploadEvent;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+/**
+ * Admission control for the upload queue. A submission is only taken in while the uploads waiting
+ * to be processed fit within maxQueuedUploads and maxQueuedBytes, otherwise it is turned away with
+ * a SubmissionQueueFullException whose Retry-After is estimated from the rate uploads have been
+ * draining at lately.
+ *
+ * <p>With the in memory queue every upload of an admitted submission is held against the limits
+ * until it reaches a terminal state. With the durable queue it is the queue table that is limited,
+ * the uploads of a submission are only held until they are in it.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class UploadAdmissionService {
+  private final SubmitUploadProperties submitUploadProperties;
+  private final UploadQueueService uploadQueueService;
+  private final MeterRegistry meterRegistry;
+
+  // uploads (and the size of their files) held against the limits by this instance
+  private final AtomicLong heldUploads = new AtomicLong();
+  private final AtomicLong heldBytes = new AtomicLong();
+
+  private DrainRate drainRate;
+  private Counter rejected;
+
+  @PostConstruct
+  public void init() {
+    drainRate = new DrainRate(submitUploadProperties.getDrainRateWindowSec());
+
+    Gauge.builder("muse.submit_upload.admission.uploads", heldUploads, AtomicLong::get)
+        .description("Uploads of admitted submissions held against the upload queue limits")
+        .register(meterRegistry);
+    Gauge.builder("muse.submit_upload.admission.bytes", heldBytes, AtomicLong::get)
+        .description("Size of the files of the uploads held against the upload queue limits")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    rejected =
+        Counter.builder("muse.submit_upload.admission.rejected")
+            .description("Submissions turned away because the upload queue was full")
+            .register(meterRegistry);
+  }
+
+  /**
+   * Run a submission if the upload queue isn't already full. The submission reserves room for its
+   * uploads once it knows what they are, whatever it hasn't handed over to the queue by the time it
+   * terminates is released.
+   *
+   * @param submission - the submission to run once admitted
+   * @return result of the submission, or a SubmissionQueueFullException if the queue is full
+   */
+  public <T> Mono<T> admit(Function<Admission, Mono<T>> submission) {
+    return queueDepth()
+        .flatMap(
+            depth -> {
+              val admission = new Admission(depth.getT1(), depth.getT2());
+              val excess = admission.excess(1, 0);
+              if (excess.getT1() > 0 || excess.getT2() > 0) {
+                return Mono.error(reject(excess));
+              }
+              return Mono.using(() -> admission, submission, Admission::close);
+            });
+  }
+
+  /**
+   * An upload has reached a terminal state, with the in memory queue it no longer counts against
+   * the limits. Either way it is counted towards the drain rate.
+   */
+  public void release(UploadEvent uploadEvent) {
+    val fileSize = uploadEvent.getSubmissionFile().getFileSize();
+    if (!submitUploadProperties.isDurableQueue()) {
+      heldUploads.decrementAndGet();
+      heldBytes.addAndGet(-fileSize);
+    }
+    drainRate.record(fileSize);
+  }
+
+  /**
+   * A resumed upload is back in the in memory queue, it is held against the limits until released
+   * once it reaches a terminal state again. It isn't turned away, its submission was admitted.
+   */
+  public void hold(UploadEvent uploadEvent) {
+    if (!submitUploadProperties.isDurableQueue()) {
+      heldUploads.incrementAndGet();
+      heldBytes.addAndGet(uploadEvent.getSubmissionFile().getFileSize());
+    }
+  }
+
+  private Mono<Tuple2<Long, Long>> queueDepth() {
+    // the in memory queue only holds uploads of this instance, all of which are held
+    return submitUploadProperties.isDurableQueue()
+        ? uploadQueueService.depth()
+        : Mono.just(Tuples.of(0L, 0L));
+  }
+
+  private SubmissionQueueFullException reject(Tuple2<Long, Long> excess) {
+    rejected.increment();
+    val retryAfterSec = estimateRetryAfterSec(excess.getT1(), excess.getT2());
+    log.warn("Upload queue is full, submission turned away for {} seconds", retryAfterSec);
+    return new SubmissionQueueFullException(retryAfterSec);
+  }
+
+  /** Seconds until the excess has drained at the current drain rate, within the configured range */
+  private long estimateRetryAfterSec(long excessUploads, long excessBytes) {
+    val uploadsPerSec = drainRate.uploadsPerSec();
+    val bytesPerSec = drainRate.bytesPerSec();
+
+    double retryAfterSec = submitUploadProperties.getRetryAfterMaxSec();
+    if (uploadsPerSec > 0) {
+      retryAfterSec =
+          Math.max(excessUploads / uploadsPerSec, excessBytes > 0 ? excessBytes / bytesPerSec : 0);
+    }
+
+    return Math.max(
+        submitUploadProperties.getRetryAfterMinSec(),
+        Math.min(submitUploadProperties.getRetryAfterMaxSec(), (long) Math.ceil(retryAfterSec)));
+  }
+
+  /** Room in the upload queue taken by a single submission */
+  public class Admission {
+    // in the durable queue when the submission was admitted
+    private final long queuedUploads;
+    private final long queuedBytes;
+
+    // held by this submission and not yet handed over to the queue
+    private long reservedUploads = 0;
+    private long reservedBytes = 0;
+
+    private Admission(long queuedUploads, long queuedBytes) {
+      this.queuedUploads = queuedUploads;
+      this.queuedBytes = queuedBytes;
+    }
+
+    /**
+     * Reserve room for the files of the submission's uploads, all or none of them
+     *
+     * @return empty once reserved, or a SubmissionQueueFullException if they don't fit
+     */
+    public Mono<Void> reserve(Collection<SubmissionFile> submissionFiles) {
+      val uploads = submissionFiles.size();
+      val bytes = submissionFiles.stream().mapToLong(SubmissionFile::getFileSize).sum();
+
+      synchronized (UploadAdmissionService.this) {
+        val excess = excess(uploads, bytes);
+        if (excess.getT1() > 0 || excess.getT2() > 0) {
+          return Mono.error(reject(excess));
+        }
+        heldUploads.addAndGet(uploads);
+        heldBytes.addAndGet(bytes);
+      }
+
+      reservedUploads += uploads;
+      reservedBytes += bytes;
+      return Mono.empty();
+    }
+
+    /**
+     * The upload is in the in memory queue, it is held until released once it reaches a terminal
+     * state rather than when the submission terminates
+     */
+    public void handOver(UploadEvent uploadEvent) {
+      reservedUploads--;
+      reservedBytes -= uploadEvent.getSubmissionFile().getFileSize();
+    }
+
+    /**
+     * Uploads and bytes by which the queue would be over its limits with these added to it, an
+     * empty queue always has room so that a submission larger than the limits can still be made
+     */
+    private Tuple2<Long, Long> excess(long uploads, long bytes) {
+      val totalUploads = queuedUploads + heldUploads.get();
+      val totalBytes = queuedBytes + heldBytes.get();
+      if (totalUploads == 0) {
+        return Tuples.of(0L, 0L);
+      }
+
+      val maxUploads = submitUploadProperties.getMaxQueuedUploads();
+      val maxBytes = submitUploadProperties.getMaxQueuedBytes();
+      return Tuples.of(
+          maxUploads > 0 ? Math.max(0, totalUploads + uploads - maxUploads) : 0L,
+          maxBytes > 0 ? Math.max(0, totalBytes + bytes - maxBytes) : 0L);
+    }
+
+    private void close() {
+      heldUploads.addAndGet(-reservedUploads);
+      heldBytes.addAndGet(-reservedBytes);
+      reservedUploads = 0;
+      reservedBytes = 0;
+    }
+  }
+
+  /** Uploads and bytes drained per second over a sliding window of one second buckets */
+  private static class DrainRate {
+    private final long[] bucketSeconds;
+    private final long[] uploads;
+    private final long[] bytes;
+
+    DrainRate(int windowSec) {
+      bucketSeconds = new long[windowSec];
+      uploads = new long[windowSec];
+      bytes = new long[windowSec];
+    }
+
+    synchronized void record(long fileSize) {
+      val now = Instant.now().getEpochSecond();
+      val bucket = (int) (now % bucketSeconds.length);
+      if (bucketSeconds[bucket] != now) {
+        bucketSeconds[bucket] = now;
+        uploads[bucket] = 0;
+        bytes[bucket] = 0;
+      }
+      uploads[bucket]++;
+      bytes[bucket] += fileSize;
+    }
+
+    synchronized double uploadsPerSec() {
+      return sumWindow(uploads) / (double) bucketSeconds.length;
+    }
+
+    synchronized double bytesPerSec() {
+      return sumWindow(bytes) / (double) bucketSeconds.length;
+    }
+
+    private long sumWindow(long[] counts) {
+      val windowStart = Instant.now().getEpochSecond() - bucketSeconds.length;
+      long sum = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (bucketSeconds[i] > windowStart) {
+          sum += counts[i];
+        }
+      }
+      return sum;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.cancogenvirusseq.muse.config.SubmitUploadProperties;
+import org.cancogenvirusseq.muse.repository.UploadBatchRepository;
+import org.cancogenvirusseq.muse.repository.model.Upload;
+import org.cancogenvirusseq.muse.repository.model.UploadProgress;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+/**
+ * Write-behind of the progress of uploads (status, analysis id, error and checkpoint). Progress is
+ * collected for up to progressFlushIntervalMs, or until progressBatchSize uploads have some, and
+ * written with a single statement. An upload with more than one change in a batch only has its
+ * latest written. Batches are written one after the other so an upload's changes are written in the
+ * order they were made.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class UploadProgressWriter {
+  private static final Sinks.EmitFailureHandler EMIT_FAILURE_HANDLER =
+      Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1));
+
+  private final UploadBatchRepository uploadBatchRepository;
+  private final SubmitUploadProperties submitUploadProperties;
+  private final MeterRegistry meterRegistry;
+
+  private final Sinks.Many<PendingProgress> sink = Sinks.many().unicast().onBackpressureBuffer();
+  private final AtomicInteger pending = new AtomicInteger();
+
+  private Timer flushTimer;
+  private DistributionSummary batchSize;
+  private Counter coalesced;
+
+  private Disposable writerDisposable;
+
+  @PostConstruct
+  public void init() {
+    Gauge.builder("muse.upload_progress.pending", pending, AtomicInteger::get)
+        .description("Upload progress waiting to be written")
+        .register(meterRegistry);
+    flushTimer =
+        Timer.builder("muse.upload_progress.flush.duration")
+            .description("Time taken to write a batch of upload progress")
+            .register(meterRegistry);
+    batchSize =
+        DistributionSummary.builder("muse.upload_progress.batch.size")
+            .description("Uploads written by a batch of upload progress")
+            .register(meterRegistry);
+    coalesced =
+        Counter.builder("muse.upload_progress.coalesced")
+            .description("Upload progress replaced by a later change before it was written")
+            .register(meterRegistry);
+
+    writerDisposable =
+        sink.asFlux()
+            .bufferTimeout(
+                submitUploadProperties.getProgressBatchSize(),
+                Duration.ofMillis(submitUploadProperties.getProgressFlushIntervalMs()))
+            // batches are timed regardless of demand, they wait here for the previous to be written
+            .onBackpressureBuffer()
+            .concatMap(this::write)
+            .subscribe();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    // what has been collected is still written
+    sink.emitComplete(EMIT_FAILURE_HANDLER);
+  }
+
+  /**
+   * Write the progress of an upload as it is now
+   *
+   * @return the upload once its progress has been written
+   */
+  public Mono<Upload> write(Upload upload) {
+    return Mono.defer(
+        () -> {
+          val written = Sinks.<Void>one();
+          pending.incrementAndGet();
+          sink.emitNext(
+              new PendingProgress(UploadProgress.of(upload), written), EMIT_FAILURE_HANDLER);
+          return written.asMono().thenReturn(upload);
+        });
+  }
+
+  private Mono<Void> write(List<PendingProgress> batch) {
+    // last write wins, an upload keeps the position of its first change in the batch
+    val latest = new LinkedHashMap<UUID, UploadProgress>();
+    batch.forEach(
+        pendingProgress -> {
+          val uploadProgress = pendingProgress.getUploadProgress();
+          if (latest.put(uploadProgress.getUploadId(), uploadProgress) != null) {
+            coalesced.increment();
+          }
+        });
+    batchSize.record(latest.size());
+
+    val sample = Timer.start(meterRegistry);
+    return uploadBatchRepository
+        .updateProgress(new ArrayList<>(latest.values()))
+        .doOnSuccess(
+            rowsUpdated ->
+                batch.forEach(pendingProgress -> pendingProgress.getWritten().tryEmitEmpty()))
+        .onErrorResume(
+            throwable -> {
+              log.error("Failed to write progress of {} uploads", latest.size(), throwable);
+              batch.forEach(
+                  pendingProgress -> pendingProgress.getWritten().tryEmitError(throwable));
+              return Mono.empty();
+            })
+        .doFinally(
+            signalType -> {
+              sample.stop(flushTimer);
+              pending.addAndGet(-batch.size());
+            })
+        .then();
+  }
+
+  @Value
+  private static class PendingProgress {
+    UploadProgress uploadProgress;
+    Sinks.One<Void> written;
+  }
+}
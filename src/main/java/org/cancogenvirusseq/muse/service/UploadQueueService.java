@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.service;
+
+import static org.cancogenvirusseq.muse.utils.SecurityContextWrapper.getUserIdFromContext;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.cancogenvirusseq.muse.config.SubmitUploadProperties;
+import org.cancogenvirusseq.muse.exceptions.upload.UploadNotResumableException;
+import org.cancogenvirusseq.muse.model.UploadEvent;
+import org.cancogenvirusseq.muse.repository.UploadQueueRepository;
+import org.cancogenvirusseq.muse.repository.UploadRepository;
+import org.cancogenvirusseq.muse.repository.model.QueuedUpload;
+import org.cancogenvirusseq.muse.repository.model.Upload;
+import org.cancogenvirusseq.muse.repository.model.UploadQueueClaim;
+import org.cancogenvirusseq.muse.repository.model.UploadStatus;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.function.Tuple2;
+
+/**
+ * Durable queue of uploads waiting to be submitted to song/score. The payload and sequence of each
+ * queued upload are stored next to its upload row so that nothing queued is held on the heap and
+ * nothing is lost on restart, instances claim uploads from the queue as they have capacity for
+ * them.
+ *
+ * <p>Every instance sharing the database works off the same queue. Claims are leased to the
+ * instance's node id and the leases of uploads still being processed are renewed on a heartbeat, so
+ * uploads of an instance that dies are claimed by another once their leases expire.
+ *
+ * <p>An upload that fails after song accepted it (it has a checkpoint) keeps its row, parked so
+ * that it isn't claimed, until it is resumed and picks up from its checkpoint. With the in memory
+ * queue such an upload is held on to here instead, file and all, and handed back to be processed
+ * again when resumed.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class UploadQueueService {
+  private static final Sinks.EmitFailureHandler EMIT_FAILURE_HANDLER =
+      Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1));
+
+  private final UploadQueueRepository uploadQueueRepository;
+  private final UploadRepository uploadRepository;
+  private final SubmitUploadProperties submitUploadProperties;
+  private final TransactionalOperator transactionalOperator;
+
+  // uploads claimed by this instance whose leases are renewed on each heartbeat
+  private final Set<UUID> claimedUploadIds = ConcurrentHashMap.newKeySet();
+
+  // in memory queue uploads that failed after song accepted them, oldest first
+  private final Map<UUID, UploadEvent> parkedUploadEvents = new LinkedHashMap<>();
+
+  // in memory queue uploads that were resumed, to be processed again
+  private final Sinks.Many<UploadEvent> resumedUploadEvents =
+      Sinks.many().unicast().onBackpressureBuffer();
+
+  // identifies the leases held by this instance
+  @Getter private String nodeId;
+
+  private Disposable heartbeatDisposable;
+
+  @PostConstruct
+  public void init() {
+    val configuredNodeId =
+        Optional.ofNullable(submitUploadProperties.getNodeId())
+            .filter(Predicate.not(String::isBlank));
+    nodeId = configuredNodeId.orElseGet(() -> UUID.randomUUID().toString());
+
+    if (!submitUploadProperties.isDurableQueue()) {
+      return;
+    }
+
+    if (configuredNodeId.isEmpty()) {
+      log.info("Upload queue node id is {}", nodeId);
+    } else {
+      // anything still leased to a configured node id was claimed before a restart of this instance
+      // and is not being worked on
+      val released = uploadQueueRepository.releaseLeases(nodeId).block();
+      log.info(
+          "Upload queue node id is {}, released {} leases held before startup", nodeId, released);
+    }
+
+    heartbeatDisposable =
+        Flux.interval(Duration.ofSeconds(submitUploadProperties.getQueueHeartbeatIntervalSec()))
+            .onBackpressureDrop()
+            .concatMap(tick -> renewLeases())
+            .subscribe();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (heartbeatDisposable != null) {
+      heartbeatDisposable.dispose();
+    }
+  }
+
+  /**
+   * Queue uploads to be processed, queueInsertBatchSize rows per statement. Run within the
+   * transaction persisting their submission so that the uploads are only committed once queued.
+   */
+  public Mono<Void> enqueueAll(List<UploadEvent> uploadEvents) {
+    return uploadQueueRepository.saveAll(
+        uploadEvents.stream()
+            .map(
+                uploadEvent ->
+                    QueuedUpload.builder()
+                        .uploadId(uploadEvent.getUpload().getUploadId())
+                        .studyId(uploadEvent.getStudyId())
+                        .payload(uploadEvent.getPayload())
+                        .submissionFile(uploadEvent.getSubmissionFile())
+                        .build())
+            .collect(Collectors.toList()),
+        submitUploadProperties.getQueueInsertBatchSize());
+  }
+
+  /**
+   * Claim queued uploads for this instance to process, they are claimed again by any instance once
+   * the lease expires unless they are removed from the queue first
+   *
+   * @param limit - max number of uploads to claim
+   * @return upload events of the claimed uploads, oldest first
+   */
+  public Flux<UploadEvent> claim(Integer limit) {
+    val clusterMaxInFlight = submitUploadProperties.getClusterMaxInFlight();
+    val claim =
+        UploadQueueClaim.builder()
+            .leaseOwner(nodeId)
+            .leaseSec(submitUploadProperties.getQueueLeaseSec())
+            .limit(limit)
+            .maxLeased(clusterMaxInFlight > 0 ? clusterMaxInFlight : null);
+    if (submitUploadProperties.isFairScheduling()) {
+      claim
+          .studyWeights(submitUploadProperties.getStudyWeights())
+          .defaultStudyWeight(submitUploadProperties.getDefaultStudyWeight());
+    }
+
+    return uploadQueueRepository
+        .claim(claim.build())
+        .collectList()
+        .filter(queuedUploads -> !queuedUploads.isEmpty())
+        .flatMapMany(
+            queuedUploads ->
+                uploadRepository
+                    .findAllById(
+                        queuedUploads.stream()
+                            .map(QueuedUpload::getUploadId)
+                            .collect(Collectors.toList()))
+                    .collectMap(Upload::getUploadId, Function.identity())
+                    .flatMapMany(
+                        uploads ->
+                            failExhaustedUploads(queuedUploads, uploads)
+                                .thenMany(
+                                    Flux.fromIterable(toUploadEvents(queuedUploads, uploads)))))
+        .doOnNext(uploadEvent -> claimedUploadIds.add(uploadEvent.getUpload().getUploadId()));
+  }
+
+  /** @return number of uploads in the queue and the total size of their files */
+  public Mono<Tuple2<Long, Long>> depth() {
+    return uploadQueueRepository.depth();
+  }
+
+  /** Remove an upload from the queue once it has been processed (COMPLETE or ERROR) */
+  public Mono<Void> remove(UUID uploadId) {
+    return uploadQueueRepository
+        .deleteById(uploadId)
+        .doFinally(signalType -> claimedUploadIds.remove(uploadId));
+  }
+
+  /**
+   * Keep the row of an upload that failed after song accepted it so that it can be resumed later
+   * (see {@link #resume(UUID, SecurityContext)}), it isn't claimed in the meantime
+   */
+  public Mono<Void> park(UUID uploadId) {
+    return uploadQueueRepository
+        .park(uploadId)
+        .doFinally(signalType -> claimedUploadIds.remove(uploadId));
+  }
+
+  /**
+   * Hold on to an in memory queue upload that failed after song accepted it so that it can be
+   * resumed later (see {@link #resume(UUID, SecurityContext)}). Only the latest maxParkedUploads
+   * are held, the content of any older one is released and it can no longer be resumed.
+   */
+  public void holdForResume(UploadEvent uploadEvent) {
+    val evicted = new ArrayList<UploadEvent>();
+    synchronized (parkedUploadEvents) {
+      parkedUploadEvents.put(uploadEvent.getUpload().getUploadId(), uploadEvent);
+      val iterator = parkedUploadEvents.values().iterator();
+      while (parkedUploadEvents.size() > submitUploadProperties.getMaxParkedUploads()) {
+        evicted.add(iterator.next());
+        iterator.remove();
+      }
+    }
+
+    for (val evictedUploadEvent : evicted) {
+      log.warn(
+          "Letting go of upload {}, too many uploads are waiting to be resumed",
+          evictedUploadEvent.getUpload().getUploadId());
+      evictedUploadEvent.getSubmissionFile().getContent().release();
+    }
+  }
+
+  /** @return in memory queue uploads that were resumed, in the order they were */
+  public Flux<UploadEvent> resumedUploadEvents() {
+    return resumedUploadEvents.asFlux();
+  }
+
+  /**
+   * Queue a parked upload again, it is processed like any other and picks up from its checkpoint
+   *
+   * @param uploadId - id of an upload of the user that failed after song accepted it
+   * @param securityContext - the upload must be the user's
+   * @return the upload, QUEUED again
+   */
+  public Mono<Upload> resume(UUID uploadId, SecurityContext securityContext) {
+    val userId = getUserIdFromContext(securityContext);
+    if (!submitUploadProperties.isDurableQueue()) {
+      return resumeParked(uploadId, userId);
+    }
+
+    return uploadRepository
+        .findById(uploadId)
+        .filter(upload -> isResumable(upload, userId))
+        .filterWhen(upload -> uploadQueueRepository.unpark(uploadId))
+        .switchIfEmpty(Mono.error(new UploadNotResumableException(uploadId)))
+        .flatMap(
+            upload -> {
+              upload.setStatus(UploadStatus.QUEUED);
+              upload.setError(null);
+              return uploadRepository.save(upload);
+            })
+        // not claimable until the upload is QUEUED
+        .as(transactionalOperator::transactional);
+  }
+
+  private Mono<Upload> resumeParked(UUID uploadId, UUID userId) {
+    return uploadRepository
+        .findById(uploadId)
+        .filter(upload -> isResumable(upload, userId))
+        .flatMap(upload -> Mono.justOrEmpty(takeParked(uploadId)))
+        .switchIfEmpty(Mono.error(new UploadNotResumableException(uploadId)))
+        .flatMap(
+            uploadEvent -> {
+              val upload = uploadEvent.getUpload();
+              val error = upload.getError();
+              upload.setStatus(UploadStatus.QUEUED);
+              upload.setError(null);
+              return uploadRepository
+                  .save(upload)
+                  .doOnSuccess(
+                      saved -> resumedUploadEvents.emitNext(uploadEvent, EMIT_FAILURE_HANDLER))
+                  // still resumable if it couldn't be QUEUED
+                  .doOnError(
+                      throwable -> {
+                        upload.setStatus(UploadStatus.ERROR);
+                        upload.setError(error);
+                        holdForResume(uploadEvent);
+                      });
+            });
+  }
+
+  private Optional<UploadEvent> takeParked(UUID uploadId) {
+    synchronized (parkedUploadEvents) {
+      return Optional.ofNullable(parkedUploadEvents.remove(uploadId));
+    }
+  }
+
+  private static boolean isResumable(Upload upload, UUID userId) {
+    return upload.getUserId().equals(userId)
+        && upload.getStatus() == UploadStatus.ERROR
+        && upload.getCheckpoint() != null;
+  }
+
+  /**
+   * Stop renewing the lease of a claimed upload that could not be processed, it is claimed again
+   * once the lease expires
+   */
+  public void dropClaim(UUID uploadId) {
+    claimedUploadIds.remove(uploadId);
+  }
+
+  /**
+   * Renew the leases of the uploads this instance is processing. A claim whose lease is no longer
+   * held (ex. it expired during a pause and the upload was claimed by another instance) is dropped
+   * so it isn't renewed from under its new owner.
+   */
+  private Mono<Void> renewLeases() {
+    if (claimedUploadIds.isEmpty()) {
+      return Mono.empty();
+    }
+
+    val uploadIds = List.copyOf(claimedUploadIds);
+    return uploadQueueRepository
+        .renewLeases(nodeId, submitUploadProperties.getQueueLeaseSec(), uploadIds)
+        .collect(Collectors.toSet())
+        .doOnNext(
+            renewedUploadIds -> {
+              for (val uploadId : uploadIds) {
+                if (!renewedUploadIds.contains(uploadId) && claimedUploadIds.remove(uploadId)) {
+                  log.warn("Lease of upload {} was lost, no longer renewing it", uploadId);
+                }
+              }
+            })
+        .then()
+        .onErrorResume(
+            throwable -> {
+              log.error("Failed to renew upload queue leases", throwable);
+              return Mono.empty();
+            });
+  }
+
+  /**
+   * Uploads claimed more than queueMaxAttempts times (ex. every instance that claimed it died or
+   * lost its lease while processing it) are given up on, marked as an ERROR and removed from the
+   * queue instead of being processed again, or parked if song already accepted them
+   */
+  private Mono<Void> failExhaustedUploads(
+      List<QueuedUpload> queuedUploads, Map<UUID, Upload> uploads) {
+    return Flux.fromIterable(queuedUploads)
+        .filter(this::isExhausted)
+        .concatMap(
+            queuedUpload -> {
+              log.warn(
+                  "Giving up on upload {} after {} attempts",
+                  queuedUpload.getUploadId(),
+                  queuedUpload.getAttempts());
+              val upload = uploads.get(queuedUpload.getUploadId());
+              if (upload == null) {
+                return uploadQueueRepository.deleteById(queuedUpload.getUploadId());
+              }
+
+              upload.setStatus(UploadStatus.ERROR);
+              upload.setError(
+                  String.format(
+                      "Upload could not be processed after %s attempts",
+                      queuedUpload.getAttempts()));
+              return uploadRepository
+                  .save(upload)
+                  .then(
+                      upload.getCheckpoint() == null
+                          ? uploadQueueRepository.deleteById(queuedUpload.getUploadId())
+                          : uploadQueueRepository.park(queuedUpload.getUploadId()));
+            })
+        .then();
+  }
+
+  private boolean isExhausted(QueuedUpload queuedUpload) {
+    val maxAttempts = submitUploadProperties.getQueueMaxAttempts();
+    return maxAttempts > 0 && queuedUpload.getAttempts() > maxAttempts;
+  }
+
+  private List<UploadEvent> toUploadEvents(
+      List<QueuedUpload> queuedUploads, Map<UUID, Upload> uploads) {
+    val uploadEvents = new ArrayList<UploadEvent>(queuedUploads.size());
+    for (val queuedUpload : queuedUploads) {
+      val upload = uploads.get(queuedUpload.getUploadId());
+      // the upload, and with it its queue row, was deleted since being claimed, or it was given up
+      // on
+      if (upload == null || isExhausted(queuedUpload)) {
+        continue;
+      }
+
+      log.debug(
+          "Claimed upload {}, attempt {}", queuedUpload.getUploadId(), queuedUpload.getAttempts());
+      uploadEvents.add(
+          UploadEvent.builder()
+              .studyId(queuedUpload.getStudyId())
+              .upload(upload)
+              .submissionFile(queuedUpload.getSubmissionFile())
+              .payload(queuedUpload.getPayload())
+              .build());
+    }
+    return uploadEvents;
+  }
+}
@@ -27,19 +27,24 @@ import io.r2dbc.postgresql.api.PostgresqlConnection;
 import io.r2dbc.postgresql.api.PostgresqlResult;
 import java.util.*;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import lombok.NonNull;
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
+import org.cancogenvirusseq.muse.components.KeyedFanOut;
+import org.cancogenvirusseq.muse.config.SubmissionProperties;
+import org.cancogenvirusseq.muse.config.UploadStreamProperties;
 import org.cancogenvirusseq.muse.model.UploadRequest;
+import org.cancogenvirusseq.muse.repository.UploadBatchRepository;
 import org.cancogenvirusseq.muse.repository.UploadRepository;
 import org.cancogenvirusseq.muse.repository.model.Upload;
 import org.cancogenvirusseq.muse.repository.model.UploadStatus;
 import org.springframework.data.domain.Pageable;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -47,15 +52,27 @@ import reactor.core.publisher.Mono;
 @Service
 public class UploadService {
   private final UploadRepository uploadRepository;
+  private final UploadBatchRepository uploadBatchRepository;
+  private final SubmissionProperties submissionProperties;
   private final PostgresqlConnection uploadStreamConnection;
   private final ObjectMapper objectMapper;
 
+  // upload notifications by user id, each parsed once for every subscriber of the upload stream
+  private final KeyedFanOut<UUID, Upload> uploadNotifications;
+  private Disposable uploadNotificationsDisposable;
+
   public UploadService(
       @NonNull UploadRepository uploadRepository,
+      @NonNull UploadBatchRepository uploadBatchRepository,
+      @NonNull SubmissionProperties submissionProperties,
       @NonNull PostgresqlConnectionFactory postgresqlConnectionFactory,
-      @NonNull ObjectMapper objectMapper) {
+      @NonNull ObjectMapper objectMapper,
+      @NonNull UploadStreamProperties uploadStreamProperties) {
     this.uploadRepository = uploadRepository;
+    this.uploadBatchRepository = uploadBatchRepository;
+    this.submissionProperties = submissionProperties;
     this.objectMapper = objectMapper;
+    this.uploadNotifications = new KeyedFanOut<>(uploadStreamProperties.getSubscriberBufferSize());
     // no need for .toFuture().get() here as constructors are allowed to block
     this.uploadStreamConnection = Mono.from(postgresqlConnectionFactory.create()).block();
   }
@@ -67,19 +84,26 @@ public class UploadService {
         .execute()
         .flatMap(PostgresqlResult::getRowsUpdated)
         .subscribe();
+
+    uploadNotificationsDisposable =
+        uploadStreamConnection
+            .getNotifications() // returns 🔥🔥🔥 HOT Flux 🔥🔥🔥
+            // nobody to deliver to, not worth parsing
+            .filter(notification -> uploadNotifications.hasSubscribers())
+            .transform(this::transformToUploads)
+            .subscribe(upload -> uploadNotifications.publish(upload.getUserId(), upload));
   }
 
   @PreDestroy
   private void preDestroy() {
+    uploadNotificationsDisposable.dispose();
     uploadStreamConnection.close().subscribe();
   }
 
   /**
    * Batch create upload entities (status == QUEUED) given upload requests, submissionId, and a
-   * security context. Note that this isn't true batching as that is not currently supported
-   * (https://github.com/spring-projects/spring-data-r2dbc/issues/259), the saveAll method just uses
-   * concatMap underneath, but this does accomplish our goals without resorting to raw SQL string
-   * construction which is just not worth the risk.
+   * security context. The uploads are inserted uploadInsertBatchSize rows per statement, each
+   * statement returning the rows it inserted with their generated ids.
    *
    * @param uploadRequests - list of uploads
    * @param submissionId - submissionId to associate uploads with
@@ -92,19 +116,12 @@ public class UploadService {
       UUID submissionId,
       SecurityContext securityContext) {
     val userId = getUserIdFromContext(securityContext);
-    return uploadRepository
-        .saveAll(
-            Flux.fromIterable(uploadRequests)
-                .map(
-                    uploadRequest ->
-                        Upload.builder()
-                            .studyId(uploadRequest.getStudyId())
-                            .submitterSampleId(uploadRequest.getSubmitterSampleId())
-                            .submissionId(submissionId)
-                            .userId(userId)
-                            .status(UploadStatus.QUEUED)
-                            .originalFilePair(uploadRequest.getOriginalFileNames())
-                            .build()))
+    return uploadBatchRepository
+        .insertAll(
+            uploadRequests.stream()
+                .map(uploadRequest -> toQueuedUpload(uploadRequest, submissionId, userId))
+                .collect(Collectors.toList()),
+            submissionProperties.getUploadInsertBatchSize())
         .collectList()
         .doFinally(
             signalType -> {
@@ -113,6 +130,18 @@ public class UploadService {
         .log("UploadService::batchUploadsFromSubmissionEvent");
   }
 
+  private static Upload toQueuedUpload(
+      UploadRequest uploadRequest, UUID submissionId, UUID userId) {
+    return Upload.builder()
+        .studyId(uploadRequest.getStudyId())
+        .submitterSampleId(uploadRequest.getSubmitterSampleId())
+        .submissionId(submissionId)
+        .userId(userId)
+        .status(UploadStatus.QUEUED)
+        .originalFilePair(uploadRequest.getOriginalFileNames())
+        .build();
+  }
+
   public Flux<Upload> getUploadsPaged(
       Pageable page, UUID submissionId, SecurityContext securityContext) {
     val userId = getUserIdFromContext(securityContext);
@@ -122,12 +151,10 @@ public class UploadService {
   }
 
   public Flux<Upload> getUploadStream(UUID submissionId, SecurityContext securityContext) {
-    return uploadStreamConnection
-        .getNotifications() // returns 🔥🔥🔥 HOT Flux 🔥🔥🔥
-        .transform(this::transformToUploads)
-        .transform(
-            filterForUserAndMaybeSubmissionId(
-                submissionId, securityContext.getAuthentication().getName()))
+    val userId = securityContext.getAuthentication().getName();
+    return uploadNotifications
+        .subscribe(UUID.fromString(userId))
+        .transform(filterForUserAndMaybeSubmissionId(submissionId, userId))
         .log("UploadService::getUploadStream");
   }
 
@@ -154,12 +181,17 @@ public class UploadService {
     return notifications
         .map(Notification::getParameter)
         .filter(Objects::nonNull)
-        .map(this::uploadFromString)
+        .flatMap(this::uploadFromString)
         .log("UploadService::transformToUploads");
   }
 
-  @SneakyThrows
-  private Upload uploadFromString(String uploadPayloadStr) {
-    return objectMapper.readValue(uploadPayloadStr, Upload.class);
+  /** An unreadable notification is skipped, it must not end the stream for every subscriber */
+  private Mono<Upload> uploadFromString(String uploadPayloadStr) {
+    return Mono.fromCallable(() -> objectMapper.readValue(uploadPayloadStr, Upload.class))
+        .onErrorResume(
+            throwable -> {
+              log.error("Failed to read upload notification: {}", uploadPayloadStr, throwable);
+              return Mono.empty();
+            });
   }
 }
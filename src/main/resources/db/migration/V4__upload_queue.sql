@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+-- durable work queue of uploads waiting to be submitted to song/score, one row per QUEUED upload
+-- holding everything needed to process it, the row is deleted once the upload is COMPLETE/ERROR
+CREATE TABLE if not exists upload_queue
+(
+    upload_id           uuid        not null,
+    study_id            VARCHAR(32) not null,
+    payload             text        not null,
+    file_content        bytea       not null,
+    file_size           int         not null,
+    file_md5sum         VARCHAR(32) not null,
+    file_extension      text        not null,
+    data_type           text        not null,
+    file_type           text        not null,
+    submitted_file_name text        not null,
+    created_at          timestamptz DEFAULT current_timestamp,
+    -- a worker holds a row while its lease is unexpired, expired leases are claimed again
+    lease_owner         text,
+    lease_expires_at    timestamptz,
+    attempts            int         not null DEFAULT 0,
+    PRIMARY KEY (upload_id),
+    CONSTRAINT fk_upload
+        FOREIGN KEY (upload_id)
+            REFERENCES upload (upload_id)
+            ON DELETE CASCADE
+);
+
+CREATE INDEX if not exists upload_queue_claim_idx ON upload_queue (lease_expires_at NULLS FIRST, created_at);
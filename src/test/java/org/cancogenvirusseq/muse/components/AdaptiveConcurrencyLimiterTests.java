@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.components;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+public class AdaptiveConcurrencyLimiterTests {
+
+  @Test
+  void testLimitGrowsToCeilingWhileUsed() {
+    val limiter = createLimiter(2, 1, 4);
+
+    // keeping every permit in use, each round of successes grows the limit by about one
+    for (int round = 0; round < 10; round++) {
+      val calls = new ArrayList<Sinks.One<Integer>>();
+      for (int i = 0; i < limiter.getLimit(); i++) {
+        val call = Sinks.<Integer>one();
+        limiter.limit(call::asMono).subscribe();
+        calls.add(call);
+      }
+      calls.forEach(call -> call.tryEmitValue(1));
+    }
+
+    assertEquals(4, limiter.getLimit());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  void testLimitBacksOffToFloorOnOverload() {
+    val limiter = createLimiter(10, 2, 10);
+
+    for (int i = 0; i < 20; i++) {
+      StepVerifier.create(limiter.limit(() -> Mono.error(new TimeoutException())))
+          .verifyError(TimeoutException.class);
+    }
+
+    assertEquals(2, limiter.getLimit());
+  }
+
+  @Test
+  void testSlowCallBacksOffOnlyWithLatencyTolerance() {
+    val latencyLimiter =
+        new AdaptiveConcurrencyLimiter(4, 1, 4, 0.5, 2, TimeoutException.class::isInstance);
+    val errorsOnlyLimiter =
+        new AdaptiveConcurrencyLimiter(4, 1, 4, 0.5, 0, TimeoutException.class::isInstance);
+
+    for (val limiter : List.of(latencyLimiter, errorsOnlyLimiter)) {
+      StepVerifier.create(limiter.limit(() -> Mono.just(1))).expectNext(1).verifyComplete();
+      StepVerifier.create(limiter.limit(() -> Mono.delay(Duration.ofMillis(50))))
+          .expectNextCount(1)
+          .verifyComplete();
+    }
+
+    assertEquals(2, latencyLimiter.getLimit());
+    assertEquals(4, errorsOnlyLimiter.getLimit());
+  }
+
+  @Test
+  void testRejectedCallsDoNotChangeLimit() {
+    val limiter = createLimiter(3, 1, 10);
+
+    StepVerifier.create(limiter.limit(() -> Mono.error(new IllegalArgumentException())))
+        .verifyError(IllegalArgumentException.class);
+
+    assertEquals(3, limiter.getLimit());
+  }
+
+  @Test
+  void testCallsOverLimitWaitInOrder() {
+    val limiter = createLimiter(1, 1, 1);
+    val first = Sinks.<String>one();
+    val started = new ArrayList<String>();
+
+    limiter.limit(() -> start(started, "first").then(first.asMono())).subscribe();
+    limiter.limit(() -> start(started, "second")).subscribe();
+    limiter.limit(() -> start(started, "third")).subscribe();
+
+    assertEquals(List.of("first"), started);
+    assertEquals(1, limiter.getInFlight());
+    assertEquals(2, limiter.getWaiting());
+
+    first.tryEmitValue("first");
+
+    assertEquals(List.of("first", "second", "third"), started);
+    assertEquals(0, limiter.getInFlight());
+    assertEquals(0, limiter.getWaiting());
+  }
+
+  @Test
+  void testCancelledWaiterGivesUpItsPlace() {
+    val limiter = createLimiter(1, 1, 1);
+    val first = Sinks.<String>one();
+    val started = new ArrayList<String>();
+
+    limiter.limit(() -> start(started, "first").then(first.asMono())).subscribe();
+    limiter.limit(() -> start(started, "cancelled")).subscribe().dispose();
+    limiter.limit(() -> start(started, "third")).subscribe();
+
+    assertEquals(1, limiter.getWaiting());
+
+    first.tryEmitValue("first");
+
+    assertEquals(List.of("first", "third"), started);
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  private static Mono<String> start(List<String> started, String call) {
+    started.add(call);
+    return Mono.just(call);
+  }
+
+  private static AdaptiveConcurrencyLimiter createLimiter(int initial, int floor, int ceiling) {
+    return new AdaptiveConcurrencyLimiter(
+        initial, floor, ceiling, 0.5, 1000, TimeoutException.class::isInstance);
+  }
+}
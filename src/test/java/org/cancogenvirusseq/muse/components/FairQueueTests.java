@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.components;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+
+public class FairQueueTests {
+
+  @Test
+  void testKeysTakeTurns() {
+    val fairQueue = new FairQueue<String>(item -> item.substring(0, 1), key -> 1);
+    List.of("a1", "a2", "a3", "a4", "b1", "c1", "b2").forEach(fairQueue::offer);
+
+    StepVerifier.create(fairQueue.asFlux().take(7))
+        .expectNext("a1", "b1", "c1", "a2", "b2", "a3", "a4")
+        .verifyComplete();
+  }
+
+  @Test
+  void testWeightedTurns() {
+    val weights = Map.of("a", 3);
+    val fairQueue =
+        new FairQueue<String>(item -> item.substring(0, 1), key -> weights.getOrDefault(key, 1));
+    List.of("a1", "a2", "a3", "a4", "a5", "b1", "b2").forEach(fairQueue::offer);
+
+    StepVerifier.create(fairQueue.asFlux().take(7))
+        .expectNext("a1", "a2", "a3", "b1", "a4", "a5", "b2")
+        .verifyComplete();
+  }
+
+  @Test
+  void testItemsDispatchedOnlyAsRequested() {
+    val fairQueue = new FairQueue<String>(item -> item.substring(0, 1), key -> 1);
+    List.of("a1", "a2", "a3").forEach(fairQueue::offer);
+
+    StepVerifier.create(fairQueue.asFlux(), 1)
+        .expectNext("a1")
+        // offered while a's items wait, b gets the next turn
+        .then(() -> fairQueue.offer("b1"))
+        .then(() -> assertEquals(3, fairQueue.size()))
+        .thenRequest(2)
+        .expectNext("a2", "b1")
+        .then(() -> assertEquals(1, fairQueue.size("a")))
+        .then(() -> assertEquals(0, fairQueue.size("b")))
+        .thenCancel()
+        .verify();
+  }
+}
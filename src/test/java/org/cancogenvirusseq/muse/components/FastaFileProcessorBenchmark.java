@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.components;
+
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.FASTA_TYPE;
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.buildSubmissionFile;
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.processFileStrContent;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.cancogenvirusseq.muse.model.SubmissionFile;
+import org.cancogenvirusseq.muse.model.SubmissionUpload;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Compares the single pass fasta scanner with the lookahead regex split it replaced. Only runs when
+ * asked for: mvn test -Dbenchmark=true -Dtest=FastaFileProcessorBenchmark
+ */
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class FastaFileProcessorBenchmark {
+  private static final int SAMPLES = 10_000;
+  private static final int SEQUENCE_LENGTH = 3_000;
+  private static final int LINE_LENGTH = 60;
+  private static final int WARMUP_ITERATIONS = 3;
+  private static final int MEASURED_ITERATIONS = 5;
+
+  @Test
+  void benchmarkTenThousandSampleFile() {
+    val subUpload = new SubmissionUpload("the.fasta", FASTA_TYPE, generateFastaFile());
+
+    val expected = regexSplitFileStrContent(subUpload);
+    assertEquals(SAMPLES, expected.size());
+    assertEquals(expected, processFileStrContent(subUpload));
+
+    val regexMillis = measure(() -> regexSplitFileStrContent(subUpload));
+    val scannerMillis = measure(() -> processFileStrContent(subUpload));
+
+    log.info(
+        "{} samples, {} chars: regex split {} ms, scanner {} ms ({}x)",
+        SAMPLES,
+        subUpload.getContent().length(),
+        regexMillis,
+        scannerMillis,
+        String.format("%.1f", (double) regexMillis / scannerMillis));
+  }
+
+  private static long measure(Supplier<Map<String, SubmissionFile>> run) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      run.get();
+    }
+
+    val start = System.nanoTime();
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      run.get();
+    }
+    return (System.nanoTime() - start) / 1_000_000 / MEASURED_ITERATIONS;
+  }
+
+  /** The implementation processFileStrContent had before the scanner */
+  private static Map<String, SubmissionFile> regexSplitFileStrContent(
+      SubmissionUpload submissionUpload) {
+    val fastaHeaderToSubmissionFile = new ConcurrentHashMap<String, SubmissionFile>();
+
+    Arrays.stream(submissionUpload.getContent().split("(?=>)"))
+        .filter(
+            sampleData ->
+                sampleData != null && !sampleData.trim().equals("") && sampleData.startsWith(">"))
+        .map(String::trim)
+        .forEach(
+            fc -> {
+              val fastaHeaderEndNewlineIndex = fc.indexOf("\n");
+              if (fastaHeaderEndNewlineIndex == -1) {
+                return;
+              }
+
+              fastaHeaderToSubmissionFile.put(
+                  fc.substring(1, fastaHeaderEndNewlineIndex).trim(),
+                  buildSubmissionFile(fc, submissionUpload.getFilename()));
+            });
+
+    return fastaHeaderToSubmissionFile;
+  }
+
+  private static String generateFastaFile() {
+    val random = new Random(42);
+    val bases = "ACGTN".toCharArray();
+    val fastaFile = new StringBuilder(SAMPLES * (SEQUENCE_LENGTH + 100));
+
+    for (int sample = 0; sample < SAMPLES; sample++) {
+      fastaFile.append(">hCoV-19/Canada/ON-SAMPLE-").append(sample).append("/2021\n");
+      for (int base = 0; base < SEQUENCE_LENGTH; base++) {
+        fastaFile.append(bases[random.nextInt(bases.length)]);
+        if ((base + 1) % LINE_LENGTH == 0) {
+          fastaFile.append('\n');
+        }
+      }
+      fastaFile.append("\n\n");
+    }
+
+    return fastaFile.toString();
+  }
+}
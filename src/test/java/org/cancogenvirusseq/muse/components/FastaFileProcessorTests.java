@@ -20,26 +20,102 @@ package org.cancogenvirusseq.muse.components;
 
 import static org.cancogenvirusseq.muse.components.ComponentTestStubs.*;
 import static org.cancogenvirusseq.muse.components.FastaFileProcessor.FASTA_TYPE;
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.md5;
+import static org.cancogenvirusseq.muse.components.FastaFileProcessor.processFileContent;
 import static org.cancogenvirusseq.muse.components.FastaFileProcessor.processFileStrContent;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.anEmptyMap;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
+import com.google.common.base.Splitter;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.stream.Stream;
 import lombok.val;
 import org.cancogenvirusseq.muse.model.SubmissionUpload;
 import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+import reactor.util.function.Tuple2;
 
 public class FastaFileProcessorTests {
+  private static final DefaultDataBufferFactory DATA_BUFFER_FACTORY =
+      new DefaultDataBufferFactory();
 
   @Test
   void testFileParsedCorrectly() {
-    val fastaFile = STUB_FILE_0.getContent() + STUB_FILE_1.getContent();
+    val fastaFile = STUB_FILE_0.getContent().asString() + STUB_FILE_1.getContent().asString();
     val subUpload = new SubmissionUpload("the.fasta", FASTA_TYPE, fastaFile);
 
     val fileMetaToSampleIdMap = processFileStrContent(subUpload);
     assertEquals(STUB_FILE_SAMPLE_MAP, fileMetaToSampleIdMap);
   }
 
+  @Test
+  void testFileScannedLikeLookaheadSplit() {
+    // samples start at any '>', even mid line, non-ascii content is sized and hashed as utf-8
+    val fastaFile = "ignored\n>a>b \nACGT\n\n>\u00e9\uD83E\uDDA0 \nAC\u00e9GT\t\n>no newline ";
+    val subUpload = new SubmissionUpload("the.fasta", FASTA_TYPE, fastaFile);
+
+    val fileMetaToSampleIdMap = processFileStrContent(subUpload);
+
+    assertEquals(Set.of("b", "\u00e9\uD83E\uDDA0"), fileMetaToSampleIdMap.keySet());
+    Stream.of(">b \nACGT", ">\u00e9\uD83E\uDDA0 \nAC\u00e9GT")
+        .forEach(
+            sampleContent -> {
+              val submissionFile =
+                  fileMetaToSampleIdMap.get(
+                      sampleContent.substring(1, sampleContent.indexOf('\n')).trim());
+              assertEquals(sampleContent, submissionFile.getContent().asString());
+              assertEquals(
+                  sampleContent.getBytes(StandardCharsets.UTF_8).length,
+                  submissionFile.getFileSize());
+              assertEquals(md5(sampleContent).toString(), submissionFile.getFileMd5sum());
+            });
+  }
+
+  @Test
+  void testFileContentStreamedCorrectly() {
+    val fastaFile =
+        "\n"
+            + STUB_FILE_0.getContent().asString()
+            + "\n\n"
+            + STUB_FILE_1.getContent().asString()
+            + "\n";
+
+    // tiny chunks so that headers and samples span several buffers
+    StepVerifier.create(
+            processFileContent(toDataBuffers(fastaFile, 3), "the.fasta")
+                .collectMap(Tuple2::getT1, Tuple2::getT2))
+        .expectNext(STUB_FILE_SAMPLE_MAP)
+        .verifyComplete();
+  }
+
+  @Test
+  void testMidLineHeaderSplitSameStreamedOrProcessed() {
+    val fastaFile = "ignored\n>a>b \nACGT>c\nGG\n\n>d\nAC>e f\nTT\n";
+    val subUpload = new SubmissionUpload("the.fasta", FASTA_TYPE, fastaFile);
+
+    val processed = processFileStrContent(subUpload);
+    assertEquals(Set.of("b", "c", "d", "e f"), processed.keySet());
+
+    StepVerifier.create(
+            processFileContent(toDataBuffers(fastaFile, 3), "the.fasta")
+                .collectMap(Tuple2::getT1, Tuple2::getT2))
+        .expectNext(processed)
+        .verifyComplete();
+  }
+
+  @Test
+  void testBadFormatFileStreamed() {
+    val fastaFile = "\n\thohoho>\tqucik";
+
+    StepVerifier.create(processFileContent(toDataBuffers(fastaFile, 1024), "the.fasta"))
+        .verifyComplete();
+  }
+
   @Test
   void testBadFormatFileProcessed() {
     val fastaFile = "\n\thohoho>\tqucik";
@@ -58,4 +134,9 @@ public class FastaFileProcessorTests {
 
     assertThat(fileMetaToSampleIdMap, anEmptyMap());
   }
+
+  private static Flux<DataBuffer> toDataBuffers(String content, int chunkSize) {
+    return Flux.fromIterable(Splitter.fixedLength(chunkSize).split(content))
+        .map(chunk -> DATA_BUFFER_FACTORY.wrap(chunk.getBytes(StandardCharsets.UTF_8)));
+  }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.components;
+
+import static org.cancogenvirusseq.muse.components.ComponentTestStubs.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+public class GzipInflaterTests {
+  private static final DefaultDataBufferFactory DATA_BUFFER_FACTORY =
+      new DefaultDataBufferFactory();
+
+  private static final String FASTA_FILE =
+      STUB_FILE_0.getContent().asString() + "\n" + STUB_FILE_1.getContent().asString() + "\n";
+
+  @Test
+  void testInflateChunkedContent() {
+    val gzipped = gzip(FASTA_FILE);
+
+    for (int chunkSize : new int[] {1, 7, 4096}) {
+      StepVerifier.create(
+              inflateToString(toDataBuffers(gzipped, chunkSize), DATA_BUFFER_FACTORY, 16))
+          .expectNext(FASTA_FILE)
+          .verifyComplete();
+    }
+  }
+
+  @Test
+  void testInflatePooledBuffers() {
+    val pooledBufferFactory = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+
+    StepVerifier.create(inflateToString(toDataBuffers(gzip(FASTA_FILE), 5), pooledBufferFactory, 8))
+        .expectNext(FASTA_FILE)
+        .verifyComplete();
+  }
+
+  @Test
+  void testInflateConcatenatedMembers() {
+    val first = gzip(STUB_FILE_0.getContent().asString());
+    val second = gzip(STUB_FILE_1.getContent().asString());
+    val concatenated = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, concatenated, first.length, second.length);
+
+    StepVerifier.create(inflateToString(toDataBuffers(concatenated, 11), DATA_BUFFER_FACTORY, 32))
+        .expectNext(STUB_FILE_0.getContent().asString() + STUB_FILE_1.getContent().asString())
+        .verifyComplete();
+  }
+
+  @Test
+  @SneakyThrows
+  void testTrailingGarbageIgnoredLikeGzipInputStream() {
+    val gzipped = gzip(FASTA_FILE);
+
+    // a lone byte, the start of a member header and bytes that aren't a header at all
+    for (val garbage :
+        List.of(new byte[] {0x1f}, new byte[] {0x1f, (byte) 0x8b, 8}, new byte[] {1, 2, 3})) {
+      val content = Arrays.copyOf(gzipped, gzipped.length + garbage.length);
+      System.arraycopy(garbage, 0, content, gzipped.length, garbage.length);
+
+      val expected =
+          new String(
+              new GZIPInputStream(new ByteArrayInputStream(content)).readAllBytes(),
+              StandardCharsets.UTF_8);
+      assertEquals(FASTA_FILE, expected);
+
+      StepVerifier.create(inflateToString(toDataBuffers(content, 7), DATA_BUFFER_FACTORY, 32))
+          .expectNext(expected)
+          .verifyComplete();
+    }
+  }
+
+  @Test
+  void testErrorOnInvalidContent() {
+    val gzipped = gzip(FASTA_FILE);
+
+    // not gzip
+    StepVerifier.create(
+            inflateToString(
+                toDataBuffers(FASTA_FILE.getBytes(StandardCharsets.UTF_8), 64),
+                DATA_BUFFER_FACTORY,
+                32))
+        .expectError(ZipException.class)
+        .verify();
+
+    // truncated
+    StepVerifier.create(
+            inflateToString(
+                toDataBuffers(Arrays.copyOf(gzipped, gzipped.length - 4), 64),
+                DATA_BUFFER_FACTORY,
+                32))
+        .expectError()
+        .verify();
+
+    // corrupt crc
+    val corrupt = Arrays.copyOf(gzipped, gzipped.length);
+    corrupt[corrupt.length - 8] ^= 0xff;
+    StepVerifier.create(inflateToString(toDataBuffers(corrupt, 64), DATA_BUFFER_FACTORY, 32))
+        .expectError(ZipException.class)
+        .verify();
+  }
+
+  private static Mono<String> inflateToString(
+      Flux<DataBuffer> compressed, DataBufferFactory bufferFactory, int bufferSize) {
+    return DataBufferUtils.join(GzipInflater.inflate(compressed, bufferFactory, bufferSize))
+        .map(
+            dataBuffer -> {
+              val content = dataBuffer.toString(StandardCharsets.UTF_8);
+              DataBufferUtils.release(dataBuffer);
+              return content;
+            });
+  }
+
+  private static Flux<DataBuffer> toDataBuffers(byte[] bytes, int chunkSize) {
+    return Flux.range(0, (bytes.length + chunkSize - 1) / chunkSize)
+        .map(
+            i ->
+                DATA_BUFFER_FACTORY.wrap(
+                    Arrays.copyOfRange(
+                        bytes, i * chunkSize, Math.min(bytes.length, (i + 1) * chunkSize))));
+  }
+
+  @SneakyThrows
+  private static byte[] gzip(String content) {
+    val bytes = new ByteArrayOutputStream();
+    try (val gzipOutputStream = new GZIPOutputStream(bytes)) {
+      gzipOutputStream.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.components;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+
+public class KeyedFanOutTests {
+
+  @Test
+  void testItemsOnlyDeliveredToSubscribersOfTheirKey() {
+    val fanOut = new KeyedFanOut<String, String>(16);
+
+    StepVerifier.create(fanOut.subscribe("a").take(2))
+        .then(
+            () -> {
+              fanOut.publish("a", "a1");
+              fanOut.publish("b", "b1");
+              fanOut.publish("a", "a2");
+            })
+        .expectNext("a1", "a2")
+        .verifyComplete();
+  }
+
+  @Test
+  void testEverySubscriberOfAKeyGetsTheItem() {
+    val fanOut = new KeyedFanOut<String, String>(16);
+    val first = fanOut.subscribe("a").take(1).cache();
+    first.subscribe();
+
+    StepVerifier.create(fanOut.subscribe("a").take(1))
+        .then(() -> fanOut.publish("a", "a1"))
+        .expectNext("a1")
+        .verifyComplete();
+    StepVerifier.create(first).expectNext("a1").verifyComplete();
+  }
+
+  @Test
+  void testOldestDroppedForSlowSubscriber() {
+    val fanOut = new KeyedFanOut<String, String>(2);
+
+    StepVerifier.create(fanOut.subscribe("a"), 0)
+        .then(
+            () -> {
+              fanOut.publish("a", "a1");
+              fanOut.publish("a", "a2");
+              fanOut.publish("a", "a3");
+            })
+        .thenRequest(2)
+        .expectNext("a2", "a3")
+        .thenCancel()
+        .verify();
+  }
+
+  @Test
+  void testCancelledSubscriberRemoved() {
+    val fanOut = new KeyedFanOut<String, String>(16);
+
+    StepVerifier.create(fanOut.subscribe("a"))
+        .then(() -> assertEquals(1, fanOut.getSubscriberCount()))
+        .thenCancel()
+        .verify();
+
+    assertEquals(0, fanOut.getSubscriberCount());
+    assertFalse(fanOut.hasSubscribers());
+  }
+}
@@ -30,6 +30,8 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import lombok.SneakyThrows;
 import lombok.val;
 import org.cancogenvirusseq.muse.exceptions.submission.FoundInvalidFilesException;
@@ -38,6 +40,7 @@ import org.cancogenvirusseq.muse.model.SubmissionBundle;
 import org.cancogenvirusseq.muse.model.UploadRequest;
 import org.junit.jupiter.api.Test;
 import org.springframework.security.core.Authentication;
+import reactor.test.StepVerifier;
 
 public class PayloadFileMapperTests {
 
@@ -125,4 +128,141 @@ public class PayloadFileMapperTests {
 
     assertThat(thrown.getIsolateWithEmptyData()).containsExactly(STUB_RECORD_1_FASTA_HEADER);
   }
+
+  @Test
+  void testParallelMappingMatchesSequential() {
+    // every 10th record has no file and every 15th file has no record
+    val submissionBundle = new SubmissionBundle(authentication);
+    submissionBundle.getOriginalFileNames().addAll(Set.of("asdf.tsv", "the.fasta"));
+    IntStream.range(0, 2000)
+        .forEach(
+            i -> {
+              val fastaHeader = format("sample/%s", i);
+              if (i % 10 != 0) {
+                submissionBundle
+                    .getRecords()
+                    .add(
+                        Map.of(
+                            "study_id",
+                            "TEST-PR",
+                            "submitter id",
+                            "sam" + i,
+                            "fasta header name",
+                            fastaHeader,
+                            "age",
+                            i));
+              } else {
+                submissionBundle
+                    .getRecords()
+                    .add(Map.of("study_id", "TEST-PR", "fasta header name", "missing/" + i));
+              }
+              if (i % 15 != 0) {
+                submissionBundle.getFiles().put(fastaHeader, STUB_FILE_0);
+              }
+            });
+
+    val sequentialMapper = new PayloadFileMapper(STUB_PAYLOAD_TEMPLATE);
+    val parallelMapper = new PayloadFileMapper(STUB_PAYLOAD_TEMPLATE, List.of(), ";", 1, 4);
+
+    val expected =
+        assertThrows(
+            MissingDataException.class,
+            () -> sequentialMapper.submissionBundleToSubmissionRequests(submissionBundle));
+
+    StepVerifier.create(parallelMapper.mapSubmissionBundleToSubmissionRequests(submissionBundle))
+        .expectErrorSatisfies(
+            thrown -> {
+              val actual = (MissingDataException) thrown;
+              assertThat(actual.getFastaHeaderInRecordMissingInFile())
+                  .containsExactlyElementsOf(expected.getFastaHeaderInRecordMissingInFile());
+              assertThat(actual.getFastaHeaderInFileMissingInTsv())
+                  .containsExactlyInAnyOrderElementsOf(expected.getFastaHeaderInFileMissingInTsv());
+            })
+        .verify();
+
+    // with only the matching records and files both map every record the same
+    submissionBundle.getRecords().removeIf(record -> !record.containsKey("submitter id"));
+    submissionBundle
+        .getRecords()
+        .removeIf(
+            record -> !submissionBundle.getFiles().containsKey(record.get("fasta header name")));
+    submissionBundle
+        .getFiles()
+        .keySet()
+        .retainAll(
+            submissionBundle.getRecords().stream()
+                .map(record -> record.get("fasta header name"))
+                .collect(Collectors.toSet()));
+
+    val expectedRequests = sequentialMapper.submissionBundleToSubmissionRequests(submissionBundle);
+    StepVerifier.create(parallelMapper.mapSubmissionBundleToSubmissionRequests(submissionBundle))
+        .assertNext(
+            actual -> {
+              assertThat(actual).containsOnlyKeys(expectedRequests.keySet());
+              actual.forEach(
+                  (compositeId, uploadRequest) ->
+                      assertThat(uploadRequest.getRecord())
+                          .isEqualTo(expectedRequests.get(compositeId).getRecord()));
+            })
+        .verifyComplete();
+
+    parallelMapper.shutdown();
+  }
+
+  @Test
+  @SneakyThrows
+  void testRecordIndexJoinsSamplesToRecords() {
+    val mapper = new ObjectMapper();
+    val fileMapper = new PayloadFileMapper(STUB_PAYLOAD_TEMPLATE);
+    val recordIndex = fileMapper.indexRecords(STUB_RECORDS, Set.of("asdf.tsv"));
+
+    assertThat(recordIndex.getTotalRecords()).isEqualTo(2);
+    assertThat(recordIndex.getStudyIds()).containsExactly("TEST-PR");
+
+    val sam1Requests = recordIndex.join(STUB_RECORD_0_FASTA_HEADER, STUB_FILE_0);
+    assertThat(sam1Requests).hasSize(1);
+    assertThat(sam1Requests.get(0).getRecord())
+        .isEqualTo(mapper.readValue(STUB_RECORD_0_PAYLOAD, ObjectNode.class));
+    assertThat(sam1Requests.get(0).getOriginalFileNames())
+        .containsExactlyInAnyOrder("asdf.tsv", "the.fasta");
+
+    // not every record has been joined yet
+    assertThrows(MissingDataException.class, recordIndex::checkComplete);
+
+    val sam2Requests = recordIndex.join(STUB_RECORD_1_FASTA_HEADER, STUB_FILE_1);
+    assertThat(sam2Requests.get(0).getRecord())
+        .isEqualTo(mapper.readValue(STUB_RECORD_1_PAYLOAD, ObjectNode.class));
+
+    recordIndex.checkComplete();
+  }
+
+  @Test
+  void testRecordIndexReportsSameErrorsAsBundle() {
+    val records =
+        List.of(
+            STUB_RECORDS.get(0),
+            Map.<String, Object>of(
+                "submitter id", "sam2NotHere", "fasta header name", "notHere", "age", 456));
+
+    val recordIndex =
+        new PayloadFileMapper(STUB_PAYLOAD_TEMPLATE).indexRecords(records, Set.of("asdf.tsv"));
+    STUB_FILE_SAMPLE_MAP.forEach(recordIndex::join);
+
+    val thrown = assertThrows(MissingDataException.class, recordIndex::checkComplete);
+    assertThat(thrown.getFastaHeaderInFileMissingInTsv())
+        .containsExactly(STUB_RECORD_1_FASTA_HEADER);
+    assertThat(thrown.getFastaHeaderInRecordMissingInFile()).containsExactly("notHere");
+
+    val headerOnlyIndex =
+        new PayloadFileMapper(STUB_PAYLOAD_TEMPLATE)
+            .indexRecords(List.of(STUB_RECORDS.get(1)), Set.of("asdf.tsv"));
+    headerOnlyIndex.join(
+        STUB_RECORD_1_FASTA_HEADER,
+        STUB_FILE_1.toBuilder().fileSize(STUB_RECORD_1_FASTA_HEADER.length() + 2).build());
+
+    assertThat(
+            assertThrows(FoundInvalidFilesException.class, headerOnlyIndex::checkComplete)
+                .getIsolateWithEmptyData())
+        .containsExactly(STUB_RECORD_1_FASTA_HEADER);
+  }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.components;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.cancogenvirusseq.muse.components.ComponentTestStubs.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.Resources;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+public class PayloadTemplateTests {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final String TEMPLATE =
+      "{\"studyId\": ${study_id}, \"age\": ${age}, \"literal\": {\"a\": [1, \"b\"]},"
+          + " \"parts\": [${parts}], \"notes\": [${notes}], \"missing\": ${missing}}";
+
+  private final PayloadTemplate payloadTemplate =
+      new PayloadTemplate(TEMPLATE, List.of("parts"), ";");
+
+  @Test
+  @SneakyThrows
+  void testRecordRenderedWithTypedValues() {
+    val actual =
+        payloadTemplate.render(
+            Map.of(
+                "study_id",
+                "TEST-\"STUDY\"\\",
+                "age",
+                44.56,
+                "parts",
+                "nose;throat",
+                "notes",
+                "one;two"));
+
+    val expected =
+        MAPPER.readValue(
+            "{\"studyId\": \"TEST-\\\"STUDY\\\"\\\\\", \"age\": 44.56, \"literal\": {\"a\": [1, \"b\"]},"
+                + " \"parts\": [\"nose\", \"throat\"], \"notes\": [\"one;two\"], \"missing\": null}",
+            ObjectNode.class);
+
+    assertThat(actual).isEqualTo(expected);
+  }
+
+  @Test
+  @SneakyThrows
+  void testEmptyValuesRenderedAsNull() {
+    val actual =
+        payloadTemplate.render(Map.of("study_id", " ", "age", 123, "parts", "", "notes", ""));
+
+    val expected =
+        MAPPER.readValue(
+            "{\"studyId\": null, \"age\": 123, \"literal\": {\"a\": [1, \"b\"]},"
+                + " \"parts\": [null], \"notes\": [null], \"missing\": null}",
+            ObjectNode.class);
+
+    assertThat(actual).isEqualTo(expected);
+  }
+
+  @Test
+  void testRenderedPayloadsAreIndependent() {
+    val first = payloadTemplate.render(Map.of());
+    ((ObjectNode) first.get("literal")).put("a", "changed");
+
+    assertThat(payloadTemplate.render(Map.of()).get("literal").get("a").isArray()).isTrue();
+  }
+
+  @Test
+  @SneakyThrows
+  void testStubTemplateRenderedSameAsStubPayload() {
+    val payloadTemplate = new PayloadTemplate(STUB_PAYLOAD_TEMPLATE, List.of(), ";");
+
+    val actual = payloadTemplate.render(STUB_RECORDS.get(0));
+    // files are added by the PayloadFileMapper once the record is matched to a file
+    val expected = MAPPER.readValue(STUB_RECORD_0_PAYLOAD, ObjectNode.class);
+    expected.remove("files");
+
+    assertThat(actual).isEqualTo(expected);
+  }
+
+  @Test
+  @SneakyThrows
+  void testPayloadTemplateResourceCompiled() {
+    val payloadTemplate =
+        new PayloadTemplate(
+            Resources.toString(Resources.getResource("payload-template"), StandardCharsets.UTF_8),
+            List.of("anatomical part", "purpose of sequencing"),
+            ";");
+
+    val actual =
+        payloadTemplate.render(
+            Map.of("study_id", "TEST-PR", "purpose of sequencing", "Surveillance;Research"));
+
+    assertThat(actual.get("studyId").textValue()).isEqualTo("TEST-PR");
+    assertThat(actual.at("/experiment/purpose_of_sequencing"))
+        .isEqualTo(MAPPER.readTree("[\"Surveillance\", \"Research\"]"));
+    assertThat(actual.at("/sample_collection/anatomical_part"))
+        .isEqualTo(MAPPER.readTree("[null]"));
+  }
+
+  @Test
+  void testErrorOnPlaceholderInString() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new PayloadTemplate("{\"name\": \"sample ${name}\"}", List.of(), ";"));
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.components;
+
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.cancogenvirusseq.muse.model.SubmissionFileContent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Reports the heap retained per queued sample when its content is held as a String compared with
+ * the byte-backed SubmissionFileContent. Only runs when asked for: mvn test -Dbenchmark=true
+ * -Dtest=SubmissionFileContentBenchmark
+ */
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class SubmissionFileContentBenchmark {
+  private static final int SAMPLES = 10_000;
+  private static final int SEQUENCE_LENGTH = 3_000;
+
+  @Test
+  void benchmarkRetainedHeapPerSample() {
+    // ascii only, held by the JVM as a latin-1 String when compact strings are enabled
+    report("ascii header", generateSamples(">hCoV-19/Canada/ON-SAMPLE-%d/2021\n"));
+
+    // a single char outside latin-1 (here in the header) makes the whole String UTF-16
+    report("non latin-1 header", generateSamples(">hCoV-19/Canada/ON-SAMPLE-%d/2021 —\n"));
+  }
+
+  private static void report(String description, List<byte[]> samples) {
+    val stringBytes =
+        retainedBytesPerSample(samples, bytes -> new String(bytes, StandardCharsets.UTF_8));
+    val contentBytes = retainedBytesPerSample(samples, SubmissionFileContent::of);
+
+    log.info(
+        "{} ({} byte samples): String {} bytes/sample, SubmissionFileContent {} bytes/sample, saving {} bytes/sample",
+        description,
+        samples.get(0).length,
+        stringBytes,
+        contentBytes,
+        stringBytes - contentBytes);
+  }
+
+  private static long retainedBytesPerSample(
+      List<byte[]> samples, Function<byte[], Object> toContent) {
+    val before = usedHeapAfterGc();
+
+    val retained = new ArrayList<>(samples.size());
+    for (val sample : samples) {
+      // copy so the retained content never shares the generated array
+      retained.add(toContent.apply(sample.clone()));
+    }
+
+    val after = usedHeapAfterGc();
+    Reference.reachabilityFence(retained);
+
+    return (after - before) / samples.size();
+  }
+
+  private static long usedHeapAfterGc() {
+    val runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static List<byte[]> generateSamples(String headerFormat) {
+    val random = new Random(42);
+    val bases = "ACGTN".toCharArray();
+    val samples = new ArrayList<byte[]>(SAMPLES);
+
+    for (int sample = 0; sample < SAMPLES; sample++) {
+      val content = new StringBuilder(String.format(headerFormat, sample));
+      for (int base = 0; base < SEQUENCE_LENGTH; base++) {
+        content.append(bases[random.nextInt(bases.length)]);
+        if ((base + 1) % 60 == 0) {
+          content.append('\n');
+        }
+      }
+      samples.add(content.toString().trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    return samples;
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.components;
+
+import static org.cancogenvirusseq.muse.components.ComponentTestStubs.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Splitter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.cancogenvirusseq.muse.config.SubmissionProperties;
+import org.cancogenvirusseq.muse.model.SpooledFile;
+import org.cancogenvirusseq.muse.model.SubmissionFile;
+import org.cancogenvirusseq.muse.model.SubmissionUpload;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+import reactor.util.function.Tuple2;
+
+public class SubmissionFileSpoolerTests {
+  private static final DefaultDataBufferFactory DATA_BUFFER_FACTORY =
+      new DefaultDataBufferFactory();
+
+  private static final String FASTA_FILE =
+      "\n" + STUB_FILE_0.getContent().asString() + "\n\n" + STUB_FILE_1.getContent().asString();
+
+  @TempDir Path spoolDirectory;
+
+  @Test
+  void testSmallFileNotSpooled() {
+    val spooledFiles = new ArrayList<SpooledFile>();
+
+    StepVerifier.create(
+            createSpooler(1024L)
+                .processMolecularFileContent(
+                    toDataBuffers(FASTA_FILE, 5), "the.fasta", spooledFiles::add)
+                .collectMap(Tuple2::getT1, Tuple2::getT2))
+        .expectNext(STUB_FILE_SAMPLE_MAP)
+        .verifyComplete();
+
+    assertTrue(spooledFiles.isEmpty());
+  }
+
+  @Test
+  @SneakyThrows
+  void testLargeFileSpooledAndDeletedOnRelease() {
+    val spooledFiles = new ArrayList<SpooledFile>();
+
+    val samples =
+        createSpooler(16L)
+            .processMolecularFileContent(
+                toDataBuffers(FASTA_FILE, 5), "the.fasta", spooledFiles::add)
+            .collectMap(Tuple2::getT1, Tuple2::getT2)
+            .block();
+
+    assertEquals(1, spooledFiles.size());
+    assertEquals(STUB_FILE_SAMPLE_MAP.keySet(), samples.keySet());
+    samples.forEach(
+        (fastaHeader, submissionFile) -> {
+          val expected = STUB_FILE_SAMPLE_MAP.get(fastaHeader);
+          assertEquals(expected.getFileSize(), submissionFile.getFileSize());
+          assertEquals(expected.getFileMd5sum(), submissionFile.getFileMd5sum());
+          assertEquals(expected.getContent().asString(), submissionFile.getContent().asString());
+        });
+
+    // an upload holds its own reference, the file outlives the submission request
+    val spooledFile = spooledFiles.get(0);
+    val content = samples.get(STUB_RECORD_0_FASTA_HEADER).getContent().retain();
+    spooledFile.release();
+    assertTrue(Files.exists(spooledFile.getPath()));
+
+    content.release();
+    assertFalse(Files.exists(spooledFile.getPath()));
+  }
+
+  @Test
+  @SneakyThrows
+  void testSpooledFileScannedAcrossWindows() {
+    val spooledFile = SpooledFile.create(spoolDirectory);
+    spooledFile.write(ByteBuffer.wrap(FASTA_FILE.getBytes(StandardCharsets.UTF_8)));
+
+    // tiny windows so that headers, content and trailing whitespace span several of them
+    val scanner = new SpooledFastaScanner(spooledFile, "the.fasta");
+    val samples = new ArrayList<Tuple2<String, SubmissionFile>>();
+    for (long position = 0; position < spooledFile.size(); position += 4) {
+      samples.addAll(
+          scanner.scan(
+              position, spooledFile.map(position, Math.min(4, spooledFile.size() - position))));
+    }
+    samples.addAll(scanner.complete());
+
+    assertEquals(2, samples.size());
+    samples.forEach(
+        sample -> {
+          val expected = STUB_FILE_SAMPLE_MAP.get(sample.getT1());
+          assertEquals(expected.getFileMd5sum(), sample.getT2().getFileMd5sum());
+          assertEquals(expected.getContent().asString(), sample.getT2().getContent().asString());
+        });
+
+    spooledFile.release();
+  }
+
+  @Test
+  @SneakyThrows
+  void testMidLineHeaderSplitSameSpooledOrProcessed() {
+    val fastaFile = "ignored\n>a>b \nACGT>c\nGG\n\n>d\nAC>e f\nTT\n";
+    val spooledFiles = new ArrayList<SpooledFile>();
+
+    val samples =
+        createSpooler(4L)
+            .processMolecularFileContent(
+                toDataBuffers(fastaFile, 5), "the.fasta", spooledFiles::add)
+            .collectMap(Tuple2::getT1, Tuple2::getT2)
+            .block();
+
+    assertEquals(1, spooledFiles.size());
+    val processed =
+        FastaFileProcessor.processFileStrContent(
+            new SubmissionUpload("the.fasta", FastaFileProcessor.FASTA_TYPE, fastaFile));
+    assertEquals(processed.keySet(), samples.keySet());
+    samples.forEach(
+        (fastaHeader, submissionFile) -> {
+          val expected = processed.get(fastaHeader);
+          assertEquals(expected.getFileMd5sum(), submissionFile.getFileMd5sum());
+          assertEquals(expected.getContent().asString(), submissionFile.getContent().asString());
+        });
+
+    spooledFiles.forEach(SpooledFile::release);
+  }
+
+  @Test
+  @SneakyThrows
+  void testSamplesPastSpillBudgetSpilledAndDeletedOnRelease() {
+    val spooledFiles = new ArrayList<SpooledFile>();
+
+    // budget only fits the first sample, the file itself is small enough not to be spooled
+    val spooler = createSpooler(1024L, STUB_FILE_0.getContent().getSize());
+    val sampleSpill = spooler.newSampleSpill(spooledFiles::add);
+    val samples =
+        spooler
+            .processMolecularFileContent(
+                toDataBuffers(FASTA_FILE, 5), "the.fasta", spooledFiles::add)
+            .concatMap(sampleSpill::spill)
+            .collectMap(Tuple2::getT1, Tuple2::getT2)
+            .block();
+
+    assertEquals(1, spooledFiles.size());
+    assertFalse(samples.get(STUB_RECORD_0_FASTA_HEADER).getContent() instanceof SpooledFile.Slice);
+    assertTrue(samples.get(STUB_RECORD_1_FASTA_HEADER).getContent() instanceof SpooledFile.Slice);
+    samples.forEach(
+        (fastaHeader, submissionFile) -> {
+          val expected = STUB_FILE_SAMPLE_MAP.get(fastaHeader);
+          assertEquals(expected.getFileSize(), submissionFile.getFileSize());
+          assertEquals(expected.getFileMd5sum(), submissionFile.getFileMd5sum());
+          assertEquals(expected.getContent().asString(), submissionFile.getContent().asString());
+        });
+
+    val segment = spooledFiles.get(0);
+    segment.release();
+    assertFalse(Files.exists(segment.getPath()));
+  }
+
+  @Test
+  @SneakyThrows
+  void testLeftoverSpooledFilesRemovedOnInit() {
+    val leftover =
+        Files.createFile(spoolDirectory.resolve("leftover" + SpooledFile.SPOOL_FILE_SUFFIX));
+
+    createSpooler(16L).init();
+
+    assertFalse(Files.exists(leftover));
+  }
+
+  private SubmissionFileSpooler createSpooler(Long spoolThreshold) {
+    return createSpooler(spoolThreshold, Long.MAX_VALUE);
+  }
+
+  private SubmissionFileSpooler createSpooler(Long spoolThreshold, Long spillBudget) {
+    val submissionProperties = new SubmissionProperties();
+    submissionProperties.setSpoolThreshold(spoolThreshold);
+    submissionProperties.setSpillBudget(spillBudget);
+    submissionProperties.setSpoolDirectory(spoolDirectory.toString());
+    return new SubmissionFileSpooler(submissionProperties);
+  }
+
+  private static Flux<DataBuffer> toDataBuffers(String content, int chunkSize) {
+    return Flux.fromIterable(Splitter.fixedLength(chunkSize).split(content))
+        .map(chunk -> DATA_BUFFER_FACTORY.wrap(chunk.getBytes(StandardCharsets.UTF_8)));
+  }
+}
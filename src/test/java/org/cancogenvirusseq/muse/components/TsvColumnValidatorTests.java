@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.components;
+
+import static org.cancogenvirusseq.muse.model.tsv_parser.InvalidField.Reason.EXPECTING_NUMBER_TYPE;
+import static org.cancogenvirusseq.muse.model.tsv_parser.InvalidField.Reason.NOT_ALLOWED_TO_BE_EMPTY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import lombok.val;
+import org.cancogenvirusseq.muse.model.tsv_parser.TsvFieldSchema;
+import org.junit.jupiter.api.Test;
+
+public class TsvColumnValidatorTests {
+  private static final TsvColumnValidator NUMBER_VALIDATOR =
+      TsvColumnValidator.compile(new TsvFieldSchema("age", TsvFieldSchema.ValueType.number, false));
+
+  @Test
+  void testNumbersConverted() {
+    assertEquals(123, NUMBER_VALIDATOR.apply("123"));
+    assertEquals(-7, NUMBER_VALIDATOR.apply("-7"));
+    assertEquals(Integer.MIN_VALUE, NUMBER_VALIDATOR.apply(String.valueOf(Integer.MIN_VALUE)));
+    assertEquals(3000000000L, NUMBER_VALIDATOR.apply("3000000000"));
+    assertEquals(Long.MIN_VALUE, NUMBER_VALIDATOR.apply(String.valueOf(Long.MIN_VALUE)));
+    assertEquals(9223372036854775808d, NUMBER_VALIDATOR.apply("9223372036854775808"));
+    assertEquals(44.56, NUMBER_VALIDATOR.apply("44.56"));
+    assertEquals(-0.5, NUMBER_VALIDATOR.apply("-0.5"));
+  }
+
+  @Test
+  void testInvalidNumbersRejected() {
+    for (val invalid : new String[] {"-", "1.", ".5", "+1", "1e5", "1.2.3", "12a", " 1", "NaN"}) {
+      assertEquals(EXPECTING_NUMBER_TYPE, NUMBER_VALIDATOR.apply(invalid), invalid);
+    }
+  }
+
+  @Test
+  void testEmptyValues() {
+    val required =
+        TsvColumnValidator.compile(
+            new TsvFieldSchema("submitterId", TsvFieldSchema.ValueType.string, true));
+
+    assertEquals(NOT_ALLOWED_TO_BE_EMPTY, required.apply(""));
+    assertEquals("", NUMBER_VALIDATOR.apply(""));
+    assertEquals("Qc-1234", required.apply("Qc-1234"));
+  }
+}
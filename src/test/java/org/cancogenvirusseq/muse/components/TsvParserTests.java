@@ -25,6 +25,8 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import com.google.common.collect.ImmutableList;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import lombok.SneakyThrows;
 import lombok.val;
 import org.cancogenvirusseq.muse.components.security.Scopes;
@@ -34,6 +36,8 @@ import org.cancogenvirusseq.muse.exceptions.submission.InvalidHeadersException;
 import org.cancogenvirusseq.muse.model.tsv_parser.InvalidField;
 import org.cancogenvirusseq.muse.model.tsv_parser.TsvFieldSchema;
 import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
 
 public class TsvParserTests {
 
@@ -46,6 +50,7 @@ public class TsvParserTests {
           new TsvFieldSchema("name", TsvFieldSchema.ValueType.string, false),
           new TsvFieldSchema("age", TsvFieldSchema.ValueType.number, true));
 
+  private final Scopes scopes;
   private final TsvParser parser;
 
   public TsvParserTests() {
@@ -55,7 +60,8 @@ public class TsvParserTests {
     authProperties.getScopes().getStudy().setPrefix("muse.");
     authProperties.getScopes().getStudy().setSuffix(".WRITE");
 
-    this.parser = new TsvParser(TSV_SCHEMA, new Scopes(authProperties));
+    this.scopes = new Scopes(authProperties);
+    this.parser = new TsvParser(TSV_SCHEMA, scopes);
   }
 
   @Test
@@ -147,7 +153,7 @@ public class TsvParserTests {
 
     val actual =
         nullScopePrefixParser
-            .parseAndValidateTsvStrToFlatRecords(tsvStr, List.of("muse.TEST-STUDY.WRITE"))
+            .parseAndValidateTsvStrToFlatRecords(tsvStr, List.of("TEST-STUDY.WRITE"))
             .collect(toUnmodifiableList());
 
     assertThat(actual).hasSameElementsAs(expected);
@@ -180,12 +186,100 @@ public class TsvParserTests {
 
     val actual =
         emptyScopePrefixParser
-            .parseAndValidateTsvStrToFlatRecords(tsvStr, List.of("muse.TEST-STUDY.WRITE"))
+            .parseAndValidateTsvStrToFlatRecords(tsvStr, List.of("TEST-STUDY.WRITE"))
             .collect(toUnmodifiableList());
 
     assertThat(actual).hasSameElementsAs(expected);
   }
 
+  @Test
+  void testTsvLinesParsedToRecords() {
+    val tsvLines =
+        Flux.just(
+            "age\tname\tsubmitterId\tstudy_id\r",
+            "123\tconsensus_sequence\tQc-L00244359\tTEST-STUDY\r",
+            "",
+            "44.56\tconsensus_sequence\tQc-1234\tTEST-STUDY");
+
+    val expected =
+        List.of(
+            Map.<String, Object>of(
+                "submitterId",
+                "Qc-L00244359",
+                "name",
+                "consensus_sequence",
+                "age",
+                123,
+                "study_id",
+                "TEST-STUDY"),
+            Map.<String, Object>of(
+                "submitterId",
+                "Qc-1234",
+                "name",
+                "consensus_sequence",
+                "age",
+                44.56,
+                "study_id",
+                "TEST-STUDY"));
+
+    StepVerifier.create(parser.parseAndValidateTsvLinesToFlatRecords(tsvLines, systemScopes))
+        .assertNext(actual -> assertThat(actual).hasSameElementsAs(expected))
+        .verifyComplete();
+  }
+
+  @Test
+  void testErrorOnInvalidTsvLines() {
+    val tsvLines =
+        Flux.just(
+            "age\tname\tsubmitterId\tstudy_id",
+            "123\tconsensus_sequence\tQc-L00244359\tTEST-STUDY",
+            "",
+            "onetwothree\tconsensus_sequence\tQc-1234\tTEST-STUDY");
+
+    val expectedInvalidField =
+        new InvalidField("age", "onetwothree", InvalidField.Reason.EXPECTING_NUMBER_TYPE, 3);
+
+    StepVerifier.create(parser.parseAndValidateTsvLinesToFlatRecords(tsvLines, systemScopes))
+        .expectErrorSatisfies(
+            thrown ->
+                assertThat(((InvalidFieldsException) thrown).getInvalidFields())
+                    .containsExactly(expectedInvalidField))
+        .verify();
+  }
+
+  @Test
+  void testErrorsReportedInSchemaCheckOrder() {
+    // missing trailing values are empty, empty value errors come before number type errors
+    val tsvLines =
+        Flux.just(
+            "age\tname\tstudy_id\tsubmitterId", "not a number\tconsensus_sequence\tNOT-AUTHORIZED");
+
+    StepVerifier.create(
+            parser.parseAndValidateTsvLinesToFlatRecords(
+                tsvLines, List.of("muse.TEST-STUDY.WRITE")))
+        .expectErrorSatisfies(
+            thrown ->
+                assertThat(((InvalidFieldsException) thrown).getInvalidFields())
+                    .containsExactly(
+                        new InvalidField(
+                            "submitterId", "", InvalidField.Reason.NOT_ALLOWED_TO_BE_EMPTY, 1),
+                        new InvalidField(
+                            "age", "not a number", InvalidField.Reason.EXPECTING_NUMBER_TYPE, 1),
+                        new InvalidField(
+                            "study_id",
+                            "NOT-AUTHORIZED",
+                            InvalidField.Reason.UNAUTHORIZED_FOR_STUDY_UPLOAD,
+                            1)))
+        .verify();
+  }
+
+  @Test
+  void testErrorOnEmptyTsvLines() {
+    StepVerifier.create(parser.parseAndValidateTsvLinesToFlatRecords(Flux.empty(), systemScopes))
+        .expectError(InvalidHeadersException.class)
+        .verify();
+  }
+
   @Test
   void testErrorOnInvalidHeaders() {
     val tsvStr =
@@ -237,4 +331,72 @@ public class TsvParserTests {
 
     assertThat(thrown.getInvalidFields()).contains(expectedInvalidField);
   }
+
+  @Test
+  void testErrorOnStudyOnlyPartOfAuthorizedStudy() {
+    val tsvStr =
+        "age\tname\tsubmitterId\tstudy_id\n" + "123\tconsensus_sequence\tQc-L00244359\tTEST\n";
+
+    val thrown =
+        assertThrows(
+            InvalidFieldsException.class,
+            () ->
+                parser.parseAndValidateTsvStrToFlatRecords(
+                    tsvStr, List.of("muse.TEST-STUDY.WRITE")));
+
+    assertThat(thrown.getInvalidFields())
+        .containsExactly(
+            new InvalidField(
+                "study_id", "TEST", InvalidField.Reason.UNAUTHORIZED_FOR_STUDY_UPLOAD, 1));
+  }
+
+  @Test
+  void testParallelValidationMatchesSequential() {
+    val parallelParser = new TsvParser(TSV_SCHEMA, scopes, 1, 4);
+
+    // enough rows to be split over several chunks, every 7th row has an invalid age
+    val tsvStr =
+        "age\tname\tsubmitterId\tstudy_id\n"
+            + IntStream.rangeClosed(1, 5000)
+                .mapToObj(
+                    i ->
+                        (i % 7 == 0 ? "not a number" : i) + "\tconsensus\tQc-" + i + "\tTEST-STUDY")
+                .collect(Collectors.joining("\n"));
+
+    val expectedInvalidFields =
+        IntStream.rangeClosed(1, 5000)
+            .filter(i -> i % 7 == 0)
+            .mapToObj(
+                i ->
+                    new InvalidField(
+                        "age", "not a number", InvalidField.Reason.EXPECTING_NUMBER_TYPE, i))
+            .collect(toUnmodifiableList());
+
+    val thrown =
+        assertThrows(
+            InvalidFieldsException.class,
+            () -> parallelParser.parseAndValidateTsvStrToFlatRecords(tsvStr, systemScopes));
+    assertThat(thrown.getInvalidFields()).containsExactlyElementsOf(expectedInvalidFields);
+
+    StepVerifier.create(
+            parallelParser.parseAndValidateTsvLinesToFlatRecords(
+                Flux.fromArray(tsvStr.split("\n")), systemScopes))
+        .expectErrorSatisfies(
+            error ->
+                assertThat(((InvalidFieldsException) error).getInvalidFields())
+                    .containsExactlyElementsOf(expectedInvalidFields))
+        .verify();
+
+    val validTsvStr = tsvStr.replace("not a number", "7");
+    assertThat(
+            parallelParser
+                .parseAndValidateTsvStrToFlatRecords(validTsvStr, systemScopes)
+                .collect(toUnmodifiableList()))
+        .containsExactlyElementsOf(
+            parser
+                .parseAndValidateTsvStrToFlatRecords(validTsvStr, systemScopes)
+                .collect(toUnmodifiableList()));
+
+    parallelParser.shutdown();
+  }
 }
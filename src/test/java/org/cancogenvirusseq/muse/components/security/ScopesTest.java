@@ -130,4 +130,42 @@ public class ScopesTest {
     assertThat(scopes.isValidScope.test("test.WRITE")).isTrue();
     assertThat(scopes.isValidScope.test("TEST-STUDY.WRITE")).isTrue();
   }
+
+  @Test
+  public void studyAuthorizationResolvedFromScopes() {
+    val studyAuthorization =
+        scopes.resolveStudyAuthorization(
+            List.of("muse.TEST-STUDY.WRITE", "muse.ABCD.WRITE", "song.OTHER-STUDY.WRITE"));
+
+    assertThat(studyAuthorization.isSystem()).isFalse();
+    assertThat(studyAuthorization.getStudyIds()).containsExactlyInAnyOrder("TEST-STUDY", "ABCD");
+    assertThat(studyAuthorization.isAuthorizedFor("TEST-STUDY")).isTrue();
+    // study ids must match exactly
+    assertThat(studyAuthorization.isAuthorizedFor("ABC")).isFalse();
+    assertThat(studyAuthorization.isAuthorizedFor("OTHER-STUDY")).isFalse();
+  }
+
+  @Test
+  public void studyAuthorizationWithoutPrefixTakesExactId() {
+    val authProperties = new AuthProperties();
+    authProperties.getScopes().setSystem("test.WRITE");
+    authProperties.getScopes().getStudy().setSuffix(".WRITE");
+
+    val studyAuthorization =
+        new Scopes(authProperties)
+            .resolveStudyAuthorization(List.of("TEST-STUDY.WRITE", "song.OTHER-STUDY.WRITE"));
+
+    // another app's prefix is part of the id unless it is configured
+    assertThat(studyAuthorization.getStudyIds())
+        .containsExactlyInAnyOrder("TEST-STUDY", "song.OTHER-STUDY");
+    assertThat(studyAuthorization.isAuthorizedFor("OTHER-STUDY")).isFalse();
+  }
+
+  @Test
+  public void systemScopeAuthorizedForAllStudies() {
+    val studyAuthorization = scopes.resolveStudyAuthorization(List.of("test.WRITE"));
+
+    assertThat(studyAuthorization.isSystem()).isTrue();
+    assertThat(studyAuthorization.isAuthorizedFor("ANY-STUDY")).isTrue();
+  }
 }
@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import bio.overture.aria.client.AriaClient;
+import bio.overture.aria.exceptions.AriaClientException;
+import bio.overture.aria.model.Analysis;
+import bio.overture.aria.model.AnalysisFile;
+import bio.overture.aria.model.ScoreFileSpec;
+import bio.overture.aria.model.SubmitResponse;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.cancogenvirusseq.muse.config.SubmitUploadProperties;
+import org.cancogenvirusseq.muse.model.SubmissionFile;
+import org.cancogenvirusseq.muse.model.UploadEvent;
+import org.cancogenvirusseq.muse.repository.model.Upload;
+import org.cancogenvirusseq.muse.repository.model.UploadCheckpoint;
+import org.cancogenvirusseq.muse.repository.model.UploadStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+public class SongScoreServiceTests {
+  private static final ObjectMapper OBJECT_MAPPER =
+      new ObjectMapper()
+          .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+          .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+
+  final AriaClient ariaClient = mock(AriaClient.class);
+  final UploadService uploadService = mock(UploadService.class);
+  final UploadQueueService uploadQueueService = mock(UploadQueueService.class);
+  final UploadAdmissionService uploadAdmissionService = mock(UploadAdmissionService.class);
+  final SubmitUploadProperties submitUploadProperties = new SubmitUploadProperties();
+
+  final UUID analysisId = UUID.randomUUID();
+
+  SongScoreService songScoreService;
+
+  @BeforeEach
+  void setUp() {
+    submitUploadProperties.setProgressBatching(false);
+    submitUploadProperties.setFairScheduling(false);
+    submitUploadProperties.setResumeMaxAttempts(2);
+    submitUploadProperties.setResumeBackoffSec(0L);
+    submitUploadProperties.setQueuePollIntervalMs(10L);
+
+    when(uploadQueueService.resumedUploadEvents()).thenReturn(Flux.never());
+    when(uploadService.updateUpload(any()))
+        .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+    when(ariaClient.submitPayload(anyString(), anyString()))
+        .thenAnswer(
+            invocation ->
+                Mono.just(
+                    fromJson(
+                        String.format("{\"analysisId\":\"%s\"}", analysisId),
+                        SubmitResponse.class)));
+    when(ariaClient.getAnalysisFileFromSong(anyString(), any()))
+        .thenAnswer(invocation -> Mono.just(fromJson("{}", AnalysisFile.class)));
+    when(ariaClient.initScoreUpload(any(), anyString()))
+        .thenAnswer(invocation -> Mono.just(fromJson("{}", ScoreFileSpec.class)));
+    when(ariaClient.uploadAndFinalize(any(), anyString(), anyString())).thenReturn(Mono.just(true));
+    when(ariaClient.publishAnalysis(anyString(), any()))
+        .thenAnswer(invocation -> Mono.just(fromJson("{}", Analysis.class)));
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (songScoreService != null) {
+      songScoreService.getSubmitUploadDisposable().dispose();
+    }
+  }
+
+  @Test
+  void testNewUploadGoesThroughEveryStep() {
+    val upload = process(makeUpload(null));
+
+    assertCompleted(upload);
+    verify(ariaClient).submitPayload(anyString(), anyString());
+    verify(ariaClient).getAnalysisFileFromSong(anyString(), any());
+    verify(ariaClient).initScoreUpload(any(), anyString());
+    verify(ariaClient).uploadAndFinalize(any(), anyString(), anyString());
+    verify(ariaClient).publishAnalysis(anyString(), any());
+  }
+
+  @Test
+  void testResumedFromSongSubmitted() {
+    val upload = process(makeUpload(UploadCheckpoint.SONG_SUBMITTED));
+
+    assertCompleted(upload);
+    verify(ariaClient, never()).submitPayload(anyString(), anyString());
+    verify(ariaClient).getAnalysisFileFromSong(anyString(), any());
+    verify(ariaClient).initScoreUpload(any(), anyString());
+    verify(ariaClient).uploadAndFinalize(any(), anyString(), anyString());
+    verify(ariaClient).publishAnalysis(anyString(), any());
+  }
+
+  @Test
+  void testResumedFromScoreInitialized() {
+    val resumed = makeUpload(UploadCheckpoint.SCORE_INITIALIZED);
+    resumed.setScoreFileSpec("{}");
+
+    val upload = process(resumed);
+
+    assertCompleted(upload);
+    verify(ariaClient, never()).submitPayload(anyString(), anyString());
+    verify(ariaClient, never()).getAnalysisFileFromSong(anyString(), any());
+    verify(ariaClient, never()).initScoreUpload(any(), anyString());
+    verify(ariaClient).uploadAndFinalize(any(), anyString(), anyString());
+    verify(ariaClient).publishAnalysis(anyString(), any());
+  }
+
+  @Test
+  void testResumedFromScoreUploaded() {
+    val upload = process(makeUpload(UploadCheckpoint.SCORE_UPLOADED));
+
+    assertCompleted(upload);
+    verify(ariaClient, never()).submitPayload(anyString(), anyString());
+    verify(ariaClient, never()).getAnalysisFileFromSong(anyString(), any());
+    verify(ariaClient, never()).initScoreUpload(any(), anyString());
+    verify(ariaClient, never()).uploadAndFinalize(any(), anyString(), anyString());
+    verify(ariaClient).publishAnalysis(anyString(), any());
+  }
+
+  @Test
+  void testResumedFromPublished() {
+    val upload = process(makeUpload(UploadCheckpoint.PUBLISHED));
+
+    assertCompleted(upload);
+    verify(ariaClient, never()).submitPayload(anyString(), anyString());
+    verify(ariaClient, never()).getAnalysisFileFromSong(anyString(), any());
+    verify(ariaClient, never()).initScoreUpload(any(), anyString());
+    verify(ariaClient, never()).uploadAndFinalize(any(), anyString(), anyString());
+    verify(ariaClient, never()).publishAnalysis(anyString(), any());
+  }
+
+  @Test
+  void testOverloadedStepRetriedFromCheckpoint() {
+    val uploadAttempts = new AtomicInteger();
+    when(ariaClient.uploadAndFinalize(any(), anyString(), anyString()))
+        .thenReturn(
+            Mono.defer(
+                () ->
+                    uploadAttempts.incrementAndGet() == 1
+                        ? Mono.error(new IOException("connection reset"))
+                        : Mono.just(true)));
+
+    val upload = process(makeUpload(null));
+
+    assertCompleted(upload);
+    verify(ariaClient).submitPayload(anyString(), anyString());
+    // the retry uploads with the spec recorded by the first attempt
+    verify(ariaClient).initScoreUpload(any(), anyString());
+    assertEquals(2, uploadAttempts.get());
+  }
+
+  @Test
+  void testRejectedStepNotRetried() {
+    when(ariaClient.uploadAndFinalize(any(), anyString(), anyString()))
+        .thenReturn(Mono.error(new IllegalStateException("bad spec")));
+
+    val upload = process(makeUpload(null));
+
+    assertEquals(UploadStatus.ERROR, upload.getStatus());
+    assertEquals(UploadCheckpoint.SCORE_INITIALIZED, upload.getCheckpoint());
+    verify(ariaClient).uploadAndFinalize(any(), anyString(), anyString());
+    verify(ariaClient, never()).publishAnalysis(anyString(), any());
+  }
+
+  @Test
+  void testFailedQueuedUploadParkedOnceAcceptedBySong() {
+    submitUploadProperties.setDurableQueue(true);
+    when(ariaClient.publishAnalysis(anyString(), any()))
+        .thenReturn(Mono.error(new IllegalStateException("not publishable")));
+    when(uploadQueueService.park(any())).thenReturn(Mono.empty());
+    when(uploadQueueService.remove(any())).thenReturn(Mono.empty());
+
+    val upload = makeUpload(null);
+    when(uploadQueueService.claim(anyInt()))
+        .thenReturn(Flux.just(makeUploadEvent(upload)), Flux.empty());
+    startSongScoreService();
+
+    verify(uploadQueueService, timeout(5000)).park(upload.getUploadId());
+    verify(uploadQueueService, never()).remove(any());
+    assertEquals(UploadStatus.ERROR, upload.getStatus());
+    assertEquals(UploadCheckpoint.SCORE_UPLOADED, upload.getCheckpoint());
+  }
+
+  @Test
+  void testFailedQueuedUploadRemovedIfNotAcceptedBySong() {
+    submitUploadProperties.setDurableQueue(true);
+    when(ariaClient.submitPayload(anyString(), anyString()))
+        .thenReturn(Mono.error(new IllegalStateException("invalid payload")));
+    when(uploadQueueService.park(any())).thenReturn(Mono.empty());
+    when(uploadQueueService.remove(any())).thenReturn(Mono.empty());
+
+    val upload = makeUpload(null);
+    when(uploadQueueService.claim(anyInt()))
+        .thenReturn(Flux.just(makeUploadEvent(upload)), Flux.empty());
+    startSongScoreService();
+
+    verify(uploadQueueService, timeout(5000)).remove(upload.getUploadId());
+    verify(uploadQueueService, never()).park(any());
+    assertEquals(UploadStatus.ERROR, upload.getStatus());
+  }
+
+  @Test
+  void testFailedUploadHeldForResumeOnceAcceptedBySong() {
+    when(ariaClient.publishAnalysis(anyString(), any()))
+        .thenReturn(Mono.error(new IllegalStateException("not publishable")));
+
+    val accepted = makeUpload(null);
+    process(accepted);
+    assertEquals(UploadStatus.ERROR, accepted.getStatus());
+    verify(uploadQueueService).holdForResume(argThat(event -> event.getUpload() == accepted));
+
+    when(ariaClient.submitPayload(anyString(), anyString()))
+        .thenReturn(Mono.error(new IllegalStateException("invalid payload")));
+    val notAccepted = makeUpload(null);
+    process(notAccepted);
+    assertEquals(UploadStatus.ERROR, notAccepted.getStatus());
+    verify(uploadQueueService, never())
+        .holdForResume(argThat(event -> event.getUpload() == notAccepted));
+  }
+
+  @Test
+  void testResumedUploadProcessedFromCheckpoint() {
+    val upload = makeUpload(UploadCheckpoint.SCORE_UPLOADED);
+    upload.setStatus(UploadStatus.QUEUED);
+    val uploadEvent = makeUploadEvent(upload);
+    when(uploadQueueService.resumedUploadEvents()).thenReturn(Flux.just(uploadEvent));
+    startSongScoreService();
+
+    verify(uploadAdmissionService, timeout(5000)).release(uploadEvent);
+    verify(uploadAdmissionService).hold(uploadEvent);
+    assertCompleted(upload);
+    verify(ariaClient, never()).uploadAndFinalize(any(), anyString(), anyString());
+    verify(ariaClient).publishAnalysis(anyString(), any());
+  }
+
+  @Test
+  void testOnlyTransportServerAndTooManyRequestsErrorsOverloaded() {
+    assertTrue(SongScoreService.isOverloaded(new IOException()));
+    assertTrue(
+        SongScoreService.isOverloaded(
+            new WebClientRequestException(
+                new IOException(), HttpMethod.POST, URI.create("http://song"), new HttpHeaders())));
+    assertTrue(SongScoreService.isOverloaded(ariaClientException(HttpStatus.SERVICE_UNAVAILABLE)));
+    assertTrue(SongScoreService.isOverloaded(ariaClientException(HttpStatus.TOO_MANY_REQUESTS)));
+    assertTrue(
+        SongScoreService.isOverloaded(
+            WebClientResponseException.create(502, "Bad Gateway", null, null, null)));
+
+    assertFalse(SongScoreService.isOverloaded(ariaClientException(HttpStatus.BAD_REQUEST)));
+    assertFalse(
+        SongScoreService.isOverloaded(
+            WebClientResponseException.create(409, "Conflict", null, null, null)));
+    assertFalse(SongScoreService.isOverloaded(new IllegalStateException()));
+    assertFalse(SongScoreService.isOverloaded(new NullPointerException()));
+  }
+
+  private Upload process(Upload upload) {
+    startSongScoreService();
+
+    val uploadEvent = makeUploadEvent(upload);
+    songScoreService.songScoreSubmitUploadSink().tryEmitNext(uploadEvent).orThrow();
+    // released once the upload is through every stage
+    verify(uploadAdmissionService, timeout(5000)).release(uploadEvent);
+    return upload;
+  }
+
+  private void startSongScoreService() {
+    songScoreService =
+        new SongScoreService(
+            uploadService,
+            uploadQueueService,
+            uploadAdmissionService,
+            null,
+            ariaClient,
+            null,
+            submitUploadProperties,
+            new SimpleMeterRegistry(),
+            OBJECT_MAPPER);
+    songScoreService.init();
+  }
+
+  private void assertCompleted(Upload upload) {
+    assertEquals(UploadStatus.COMPLETE, upload.getStatus());
+    assertEquals(UploadCheckpoint.PUBLISHED, upload.getCheckpoint());
+    assertEquals(analysisId, upload.getAnalysisId());
+    assertNull(upload.getScoreFileSpec());
+  }
+
+  private Upload makeUpload(UploadCheckpoint checkpoint) {
+    return Upload.builder()
+        .uploadId(UUID.randomUUID())
+        .studyId("TEST-STUDY")
+        .submitterSampleId("sample")
+        .submissionId(UUID.randomUUID())
+        .userId(UUID.randomUUID())
+        .status(checkpoint == null ? UploadStatus.QUEUED : UploadStatus.PROCESSING)
+        .originalFilePair(Set.of("test.tsv", "test.fasta"))
+        .analysisId(checkpoint == null ? null : analysisId)
+        .checkpoint(checkpoint)
+        .build();
+  }
+
+  private static UploadEvent makeUploadEvent(Upload upload) {
+    return UploadEvent.builder()
+        .studyId(upload.getStudyId())
+        .upload(upload)
+        .payload("{}")
+        .submissionFile(
+            SubmissionFile.builder()
+                .content(">sample\nACGT\n")
+                .fileSize(13)
+                .fileMd5sum("md5")
+                .fileExtension(".fasta")
+                .dataType("FASTA")
+                .fileType("FASTA")
+                .submittedFileName("sample.fasta")
+                .build())
+        .build();
+  }
+
+  private static AriaClientException ariaClientException(HttpStatus status) {
+    val ariaClientException = mock(AriaClientException.class);
+    when(ariaClientException.getStatus()).thenReturn(status);
+    return ariaClientException;
+  }
+
+  @SneakyThrows
+  private static <T> T fromJson(String json, Class<T> type) {
+    return OBJECT_MAPPER.readValue(json, type);
+  }
+}
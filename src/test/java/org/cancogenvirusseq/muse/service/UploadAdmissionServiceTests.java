@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import lombok.val;
+import org.cancogenvirusseq.muse.config.SubmitUploadProperties;
+import org.cancogenvirusseq.muse.exceptions.submission.SubmissionQueueFullException;
+import org.cancogenvirusseq.muse.model.SubmissionFile;
+import org.cancogenvirusseq.muse.model.UploadEvent;
+import org.cancogenvirusseq.muse.repository.model.Upload;
+import org.cancogenvirusseq.muse.repository.model.UploadStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+public class UploadAdmissionServiceTests {
+
+  final SubmitUploadProperties submitUploadProperties = new SubmitUploadProperties();
+
+  UploadAdmissionService uploadAdmissionService;
+
+  @BeforeEach
+  void setUp() {
+    submitUploadProperties.setMaxQueuedUploads(2);
+    submitUploadProperties.setMaxQueuedBytes(1000L);
+    submitUploadProperties.setDrainRateWindowSec(10);
+    submitUploadProperties.setRetryAfterMinSec(1L);
+    submitUploadProperties.setRetryAfterMaxSec(300L);
+
+    uploadAdmissionService =
+        new UploadAdmissionService(
+            submitUploadProperties, mock(UploadQueueService.class), new SimpleMeterRegistry());
+    uploadAdmissionService.init();
+  }
+
+  @Test
+  void testSubmissionTurnedAwayUntilQueuedUploadsReleased() {
+    val queued = List.of(makeUploadEvent(10), makeUploadEvent(10));
+    admitAndHandOver(queued);
+
+    StepVerifier.create(uploadAdmissionService.admit(admission -> Mono.just("admitted")))
+        .expectErrorSatisfies(
+            throwable -> {
+              val exception = (SubmissionQueueFullException) throwable;
+              // nothing has drained yet
+              assertEquals(300L, exception.getRetryAfterSec());
+              assertEquals("300", exception.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+            })
+        .verify();
+
+    uploadAdmissionService.release(queued.get(0));
+
+    StepVerifier.create(uploadAdmissionService.admit(admission -> Mono.just("admitted")))
+        .expectNext("admitted")
+        .verifyComplete();
+  }
+
+  @Test
+  void testRetryAfterEstimatedFromDrainRate() {
+    val queued =
+        IntStream.range(0, 14).mapToObj(i -> makeUploadEvent(10)).collect(Collectors.toList());
+    submitUploadProperties.setMaxQueuedUploads(0);
+    admitAndHandOver(queued);
+
+    // 10 uploads drained in a 10 second window, 1 per second
+    queued.subList(0, 10).forEach(uploadAdmissionService::release);
+    submitUploadProperties.setMaxQueuedUploads(2);
+
+    // 3 over the max with 4 held and 1 more, drained in 3 seconds
+    StepVerifier.create(uploadAdmissionService.admit(admission -> Mono.just("admitted")))
+        .expectErrorSatisfies(
+            throwable ->
+                assertEquals(3L, ((SubmissionQueueFullException) throwable).getRetryAfterSec()))
+        .verify();
+  }
+
+  @Test
+  void testReservationOverBytesRejectedAndReleasedOnFailure() {
+    admitAndHandOver(List.of(makeUploadEvent(600)));
+
+    StepVerifier.create(
+            uploadAdmissionService.admit(
+                admission -> admission.reserve(List.of(makeUploadEvent(600).getSubmissionFile()))))
+        .expectError(SubmissionQueueFullException.class)
+        .verify();
+
+    // reserved but never handed over, released once the submission fails
+    StepVerifier.create(
+            uploadAdmissionService.admit(
+                admission ->
+                    admission
+                        .reserve(List.of(makeUploadEvent(300).getSubmissionFile()))
+                        .then(Mono.error(new IllegalStateException("failed")))))
+        .expectError(IllegalStateException.class)
+        .verify();
+
+    StepVerifier.create(
+            uploadAdmissionService.admit(
+                admission ->
+                    admission
+                        .reserve(List.of(makeUploadEvent(400).getSubmissionFile()))
+                        .thenReturn("admitted")))
+        .expectNext("admitted")
+        .verifyComplete();
+  }
+
+  @Test
+  void testEmptyQueueAdmitsSubmissionOverLimits() {
+    StepVerifier.create(
+            uploadAdmissionService.admit(
+                admission ->
+                    admission
+                        .reserve(
+                            List.of(
+                                makeUploadEvent(2000).getSubmissionFile(),
+                                makeUploadEvent(2000).getSubmissionFile(),
+                                makeUploadEvent(2000).getSubmissionFile()))
+                        .thenReturn("admitted")))
+        .expectNext("admitted")
+        .verifyComplete();
+  }
+
+  private void admitAndHandOver(List<UploadEvent> uploadEvents) {
+    StepVerifier.create(
+            uploadAdmissionService.admit(
+                admission ->
+                    admission
+                        .reserve(
+                            uploadEvents.stream()
+                                .map(UploadEvent::getSubmissionFile)
+                                .collect(Collectors.toList()))
+                        .then(Mono.fromRunnable(() -> uploadEvents.forEach(admission::handOver)))))
+        .verifyComplete();
+  }
+
+  private static UploadEvent makeUploadEvent(int fileSize) {
+    return UploadEvent.builder()
+        .studyId("TEST-CA")
+        .upload(
+            Upload.builder()
+                .uploadId(UUID.randomUUID())
+                .studyId("TEST-CA")
+                .submitterSampleId("sample")
+                .submissionId(UUID.randomUUID())
+                .userId(UUID.randomUUID())
+                .status(UploadStatus.QUEUED)
+                .originalFilePair(Set.of())
+                .build())
+        .submissionFile(SubmissionFile.builder().fileSize(fileSize).content("").build())
+        .payload("{}")
+        .build();
+  }
+}
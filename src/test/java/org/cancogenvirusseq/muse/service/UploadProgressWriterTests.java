@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import lombok.val;
+import org.cancogenvirusseq.muse.config.SubmitUploadProperties;
+import org.cancogenvirusseq.muse.repository.UploadBatchRepository;
+import org.cancogenvirusseq.muse.repository.model.Upload;
+import org.cancogenvirusseq.muse.repository.model.UploadProgress;
+import org.cancogenvirusseq.muse.repository.model.UploadStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+public class UploadProgressWriterTests {
+
+  final UploadBatchRepository uploadBatchRepository = mock(UploadBatchRepository.class);
+  final SubmitUploadProperties submitUploadProperties = new SubmitUploadProperties();
+
+  final List<List<UploadProgress>> written = new CopyOnWriteArrayList<>();
+
+  UploadProgressWriter uploadProgressWriter;
+
+  @BeforeEach
+  void setUp() {
+    submitUploadProperties.setProgressBatchSize(3);
+    submitUploadProperties.setProgressFlushIntervalMs(50L);
+
+    when(uploadBatchRepository.updateProgress(anyList()))
+        .thenAnswer(
+            invocation -> {
+              List<UploadProgress> batch = invocation.getArgument(0);
+              written.add(batch);
+              return Mono.just(batch.size());
+            });
+
+    uploadProgressWriter =
+        new UploadProgressWriter(
+            uploadBatchRepository, submitUploadProperties, new SimpleMeterRegistry());
+    uploadProgressWriter.init();
+  }
+
+  @AfterEach
+  void tearDown() {
+    uploadProgressWriter.shutdown();
+  }
+
+  @Test
+  void testChangesToAnUploadInABatchCoalesced() {
+    val uploadOne = makeUpload();
+    val uploadTwo = makeUpload();
+
+    // the first change is replaced by the second, both complete once the batch is written
+    uploadOne.setStatus(UploadStatus.PROCESSING);
+    val writes =
+        Mono.when(
+            uploadProgressWriter.write(uploadOne),
+            Mono.defer(
+                () -> {
+                  uploadOne.setStatus(UploadStatus.COMPLETE);
+                  return uploadProgressWriter.write(uploadOne);
+                }),
+            uploadProgressWriter.write(uploadTwo));
+
+    StepVerifier.create(writes).verifyComplete();
+
+    assertEquals(1, written.size());
+    assertEquals(2, written.get(0).size());
+    assertEquals(uploadOne.getUploadId(), written.get(0).get(0).getUploadId());
+    assertEquals(UploadStatus.COMPLETE, written.get(0).get(0).getStatus());
+    assertEquals(UploadStatus.QUEUED, written.get(0).get(1).getStatus());
+  }
+
+  @Test
+  void testBatchWrittenOnceFull() {
+    val uploads = List.of(makeUpload(), makeUpload(), makeUpload(), makeUpload());
+
+    StepVerifier.create(
+            Mono.when(
+                uploads.stream().map(uploadProgressWriter::write).collect(Collectors.toList())))
+        .verifyComplete();
+
+    assertEquals(2, written.size());
+    assertEquals(3, written.get(0).size());
+    assertEquals(1, written.get(1).size());
+  }
+
+  @Test
+  void testFailedBatchFailsItsWrites() {
+    when(uploadBatchRepository.updateProgress(anyList()))
+        .thenReturn(Mono.error(new IllegalStateException("database is down")));
+
+    StepVerifier.create(uploadProgressWriter.write(makeUpload()))
+        .expectError(IllegalStateException.class)
+        .verify();
+  }
+
+  private static Upload makeUpload() {
+    return Upload.builder()
+        .uploadId(UUID.randomUUID())
+        .createdAt(OffsetDateTime.now())
+        .originalFilePair(Set.of())
+        .status(UploadStatus.QUEUED)
+        .studyId("MUSE-TEST")
+        .submissionId(UUID.randomUUID())
+        .submitterSampleId("MuseId")
+        .userId(UUID.randomUUID())
+        .build();
+  }
+}
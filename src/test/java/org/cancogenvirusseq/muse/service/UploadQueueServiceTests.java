@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2021 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cancogenvirusseq.muse.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.cancogenvirusseq.muse.config.SubmitUploadProperties;
+import org.cancogenvirusseq.muse.exceptions.upload.UploadNotResumableException;
+import org.cancogenvirusseq.muse.model.SubmissionFile;
+import org.cancogenvirusseq.muse.model.UploadEvent;
+import org.cancogenvirusseq.muse.repository.UploadQueueRepository;
+import org.cancogenvirusseq.muse.repository.UploadRepository;
+import org.cancogenvirusseq.muse.repository.model.QueuedUpload;
+import org.cancogenvirusseq.muse.repository.model.Upload;
+import org.cancogenvirusseq.muse.repository.model.UploadCheckpoint;
+import org.cancogenvirusseq.muse.repository.model.UploadQueueClaim;
+import org.cancogenvirusseq.muse.repository.model.UploadStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+public class UploadQueueServiceTests {
+
+  final UploadQueueRepository uploadQueueRepository = mock(UploadQueueRepository.class);
+  final UploadRepository uploadRepository = mock(UploadRepository.class);
+  final SubmitUploadProperties submitUploadProperties = new SubmitUploadProperties();
+  final TransactionalOperator transactionalOperator = mock(TransactionalOperator.class);
+
+  UploadQueueService uploadQueueService;
+
+  @BeforeEach
+  void setUp() {
+    submitUploadProperties.setNodeId("node-1");
+    submitUploadProperties.setQueueLeaseSec(30);
+    submitUploadProperties.setQueueMaxAttempts(3);
+
+    when(uploadQueueRepository.deleteById(any())).thenReturn(Mono.empty());
+    when(uploadQueueRepository.park(any())).thenReturn(Mono.empty());
+    when(transactionalOperator.transactional(any(Mono.class)))
+        .thenAnswer(invocation -> invocation.getArgument(0));
+    when(uploadRepository.save(any()))
+        .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+    uploadQueueService = createUploadQueueService();
+    uploadQueueService.init();
+  }
+
+  @Test
+  void testClaimedRowsMappedToUploadEvents() {
+    val first = makeQueuedUpload("STUDY-A", 1);
+    val second = makeQueuedUpload("STUDY-B", 2);
+    givenClaimed(List.of(first, second), List.of(makeUpload(first), makeUpload(second)));
+
+    StepVerifier.create(uploadQueueService.claim(10).collectList())
+        .assertNext(
+            uploadEvents -> {
+              assertEquals(2, uploadEvents.size());
+              assertUploadEventOf(first, uploadEvents.get(0));
+              assertUploadEventOf(second, uploadEvents.get(1));
+            })
+        .verifyComplete();
+  }
+
+  @Test
+  void testClaimLeasedToNodeWithWeightsWhenFair() {
+    submitUploadProperties.setFairScheduling(true);
+    submitUploadProperties.setStudyWeights(Map.of("STUDY-A", 3));
+    submitUploadProperties.setDefaultStudyWeight(2);
+    submitUploadProperties.setClusterMaxInFlight(20);
+    givenClaimed(List.of(), List.of());
+
+    StepVerifier.create(uploadQueueService.claim(7)).verifyComplete();
+
+    val claimCaptor = ArgumentCaptor.forClass(UploadQueueClaim.class);
+    verify(uploadQueueRepository).claim(claimCaptor.capture());
+    val claim = claimCaptor.getValue();
+    assertEquals("node-1", claim.getLeaseOwner());
+    assertEquals(30, claim.getLeaseSec());
+    assertEquals(7, claim.getLimit());
+    assertEquals(20, claim.getMaxLeased());
+    assertEquals(Map.of("STUDY-A", 3), claim.getStudyWeights());
+    assertEquals(2, claim.getDefaultStudyWeight());
+    // nothing claimed, nothing looked up
+    verify(uploadRepository, never()).findAllById(any(Iterable.class));
+  }
+
+  @Test
+  void testClaimFifoAndUncappedByDefault() {
+    submitUploadProperties.setFairScheduling(false);
+    givenClaimed(List.of(), List.of());
+
+    StepVerifier.create(uploadQueueService.claim(7)).verifyComplete();
+
+    val claimCaptor = ArgumentCaptor.forClass(UploadQueueClaim.class);
+    verify(uploadQueueRepository).claim(claimCaptor.capture());
+    assertThat(claimCaptor.getValue().getStudyWeights()).isNull();
+    assertThat(claimCaptor.getValue().getMaxLeased()).isNull();
+  }
+
+  @Test
+  void testDeletedUploadsDropped() {
+    val kept = makeQueuedUpload("STUDY-A", 1);
+    val deleted = makeQueuedUpload("STUDY-A", 1);
+    givenClaimed(List.of(deleted, kept), List.of(makeUpload(kept)));
+
+    StepVerifier.create(uploadQueueService.claim(10).collectList())
+        .assertNext(
+            uploadEvents -> {
+              assertEquals(1, uploadEvents.size());
+              assertUploadEventOf(kept, uploadEvents.get(0));
+            })
+        .verifyComplete();
+    verify(uploadQueueRepository, never()).deleteById(deleted.getUploadId());
+  }
+
+  @Test
+  void testUploadsOverMaxAttemptsFailedAndRemoved() {
+    val retried = makeQueuedUpload("STUDY-A", 3);
+    val exhausted = makeQueuedUpload("STUDY-A", 4);
+    val exhaustedUpload = makeUpload(exhausted);
+    givenClaimed(List.of(retried, exhausted), List.of(makeUpload(retried), exhaustedUpload));
+
+    StepVerifier.create(uploadQueueService.claim(10).collectList())
+        .assertNext(
+            uploadEvents -> {
+              assertEquals(1, uploadEvents.size());
+              assertUploadEventOf(retried, uploadEvents.get(0));
+            })
+        .verifyComplete();
+
+    assertEquals(UploadStatus.ERROR, exhaustedUpload.getStatus());
+    assertThat(exhaustedUpload.getError()).contains("4 attempts");
+    verify(uploadRepository).save(exhaustedUpload);
+    verify(uploadQueueRepository).deleteById(exhausted.getUploadId());
+    verify(uploadQueueRepository, never()).deleteById(retried.getUploadId());
+  }
+
+  @Test
+  void testNoMaxAttempts() {
+    submitUploadProperties.setQueueMaxAttempts(0);
+    val queuedUpload = makeQueuedUpload("STUDY-A", 100);
+    givenClaimed(List.of(queuedUpload), List.of(makeUpload(queuedUpload)));
+
+    StepVerifier.create(uploadQueueService.claim(10)).expectNextCount(1).verifyComplete();
+    verify(uploadQueueRepository, never()).deleteById(any());
+  }
+
+  @Test
+  void testLeasesOnlyReleasedOnStartupForConfiguredNodeId() {
+    when(uploadQueueRepository.releaseLeases(any())).thenReturn(Mono.just(2));
+    submitUploadProperties.setDurableQueue(true);
+
+    val configured = createUploadQueueService();
+    configured.init();
+    configured.shutdown();
+    verify(uploadQueueRepository).releaseLeases("node-1");
+
+    submitUploadProperties.setNodeId(null);
+    val random = createUploadQueueService();
+    random.init();
+    random.shutdown();
+    verify(uploadQueueRepository, never()).releaseLeases(random.getNodeId());
+  }
+
+  @Test
+  @SneakyThrows
+  void testClaimsNotRenewedAreDropped() {
+    val kept = makeQueuedUpload("STUDY-A", 1);
+    val lost = makeQueuedUpload("STUDY-A", 1);
+    givenClaimed(List.of(kept, lost), List.of(makeUpload(kept), makeUpload(lost)));
+
+    val renewals = new CopyOnWriteArrayList<Set<UUID>>();
+    when(uploadQueueRepository.renewLeases(any(), any(), any()))
+        .thenAnswer(
+            invocation -> {
+              renewals.add(Set.copyOf(invocation.<Collection<UUID>>getArgument(2)));
+              // the lease of lost was taken over by another instance
+              return Flux.just(kept.getUploadId());
+            });
+    submitUploadProperties.setDurableQueue(true);
+    submitUploadProperties.setQueueHeartbeatIntervalSec(1);
+    when(uploadQueueRepository.releaseLeases(any())).thenReturn(Mono.just(0));
+
+    val heartbeating = createUploadQueueService();
+    heartbeating.init();
+    try {
+      StepVerifier.create(heartbeating.claim(10)).expectNextCount(2).verifyComplete();
+
+      val deadline = System.currentTimeMillis() + 5000;
+      while (renewals.size() < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+    } finally {
+      heartbeating.shutdown();
+    }
+
+    assertEquals(Set.of(kept.getUploadId(), lost.getUploadId()), renewals.get(0));
+    assertEquals(Set.of(kept.getUploadId()), renewals.get(1));
+  }
+
+  @Test
+  void testUploadsOverMaxAttemptsAcceptedBySongParked() {
+    val exhausted = makeQueuedUpload("STUDY-A", 4);
+    val exhaustedUpload = makeUpload(exhausted);
+    exhaustedUpload.setCheckpoint(UploadCheckpoint.SONG_SUBMITTED);
+    givenClaimed(List.of(exhausted), List.of(exhaustedUpload));
+
+    StepVerifier.create(uploadQueueService.claim(10)).verifyComplete();
+
+    assertEquals(UploadStatus.ERROR, exhaustedUpload.getStatus());
+    verify(uploadQueueRepository).park(exhausted.getUploadId());
+    verify(uploadQueueRepository, never()).deleteById(any());
+  }
+
+  @Test
+  void testParkedUploadResumed() {
+    submitUploadProperties.setDurableQueue(true);
+    val upload = makeUpload(makeQueuedUpload("STUDY-A", 1));
+    upload.setStatus(UploadStatus.ERROR);
+    upload.setError("score is down");
+    upload.setCheckpoint(UploadCheckpoint.SCORE_INITIALIZED);
+    when(uploadRepository.findById(upload.getUploadId())).thenReturn(Mono.just(upload));
+    when(uploadQueueRepository.unpark(upload.getUploadId())).thenReturn(Mono.just(true));
+
+    StepVerifier.create(uploadQueueService.resume(upload.getUploadId(), securityContextOf(upload)))
+        .assertNext(
+            resumed -> {
+              assertEquals(UploadStatus.QUEUED, resumed.getStatus());
+              assertThat(resumed.getError()).isNull();
+              // picks up from where it left off
+              assertEquals(UploadCheckpoint.SCORE_INITIALIZED, resumed.getCheckpoint());
+            })
+        .verifyComplete();
+    verify(uploadRepository).save(upload);
+  }
+
+  @Test
+  void testOnlyParkedUploadsOfTheUserResumed() {
+    submitUploadProperties.setDurableQueue(true);
+    val notAccepted = makeUpload(makeQueuedUpload("STUDY-A", 1));
+    notAccepted.setStatus(UploadStatus.ERROR);
+    val notParked = makeUpload(makeQueuedUpload("STUDY-A", 1));
+    notParked.setStatus(UploadStatus.ERROR);
+    notParked.setCheckpoint(UploadCheckpoint.SONG_SUBMITTED);
+    val otherUsers = makeUpload(makeQueuedUpload("STUDY-A", 1));
+    otherUsers.setStatus(UploadStatus.ERROR);
+    otherUsers.setCheckpoint(UploadCheckpoint.SONG_SUBMITTED);
+    for (val upload : List.of(notAccepted, notParked, otherUsers)) {
+      when(uploadRepository.findById(upload.getUploadId())).thenReturn(Mono.just(upload));
+    }
+    when(uploadQueueRepository.unpark(any())).thenReturn(Mono.just(false));
+
+    StepVerifier.create(
+            uploadQueueService.resume(notAccepted.getUploadId(), securityContextOf(notAccepted)))
+        .verifyError(UploadNotResumableException.class);
+    StepVerifier.create(
+            uploadQueueService.resume(notParked.getUploadId(), securityContextOf(notParked)))
+        .verifyError(UploadNotResumableException.class);
+    StepVerifier.create(
+            uploadQueueService.resume(otherUsers.getUploadId(), securityContextOf(notParked)))
+        .verifyError(UploadNotResumableException.class);
+    verify(uploadRepository, never()).save(any());
+  }
+
+  @Test
+  void testHeldUploadResumedInMemory() {
+    val uploadEvent = makeHeldUploadEvent();
+    val upload = uploadEvent.getUpload();
+    uploadQueueService.holdForResume(uploadEvent);
+
+    StepVerifier.create(uploadQueueService.resumedUploadEvents())
+        .then(
+            () ->
+                StepVerifier.create(
+                        uploadQueueService.resume(upload.getUploadId(), securityContextOf(upload)))
+                    .assertNext(
+                        resumed -> {
+                          assertEquals(UploadStatus.QUEUED, resumed.getStatus());
+                          assertThat(resumed.getError()).isNull();
+                          assertEquals(UploadCheckpoint.SCORE_INITIALIZED, resumed.getCheckpoint());
+                        })
+                    .verifyComplete())
+        // handed back to be processed again, file and all
+        .expectNext(uploadEvent)
+        .thenCancel()
+        .verify();
+
+    // no longer held once resumed
+    StepVerifier.create(uploadQueueService.resume(upload.getUploadId(), securityContextOf(upload)))
+        .verifyError(UploadNotResumableException.class);
+    verify(uploadQueueRepository, never()).unpark(any());
+  }
+
+  @Test
+  void testOnlyLatestHeldUploadsResumableInMemory() {
+    submitUploadProperties.setMaxParkedUploads(1);
+    val evicted = makeHeldUploadEvent();
+    val held = makeHeldUploadEvent();
+    uploadQueueService.holdForResume(evicted);
+    uploadQueueService.holdForResume(held);
+
+    val evictedUpload = evicted.getUpload();
+    StepVerifier.create(
+            uploadQueueService.resume(
+                evictedUpload.getUploadId(), securityContextOf(evictedUpload)))
+        .verifyError(UploadNotResumableException.class);
+    // not the user's
+    StepVerifier.create(
+            uploadQueueService.resume(
+                held.getUpload().getUploadId(), securityContextOf(evictedUpload)))
+        .verifyError(UploadNotResumableException.class);
+    StepVerifier.create(
+            uploadQueueService.resume(
+                held.getUpload().getUploadId(), securityContextOf(held.getUpload())))
+        .expectNextCount(1)
+        .verifyComplete();
+  }
+
+  private UploadEvent makeHeldUploadEvent() {
+    val queuedUpload = makeQueuedUpload("STUDY-A", 1);
+    val upload = makeUpload(queuedUpload);
+    upload.setStatus(UploadStatus.ERROR);
+    upload.setError("score is down");
+    upload.setCheckpoint(UploadCheckpoint.SCORE_INITIALIZED);
+    when(uploadRepository.findById(upload.getUploadId())).thenReturn(Mono.just(upload));
+    return UploadEvent.builder()
+        .studyId(queuedUpload.getStudyId())
+        .upload(upload)
+        .payload(queuedUpload.getPayload())
+        .submissionFile(queuedUpload.getSubmissionFile().toBuilder().content(">s\nACGT\n").build())
+        .build();
+  }
+
+  private UploadQueueService createUploadQueueService() {
+    return new UploadQueueService(
+        uploadQueueRepository, uploadRepository, submitUploadProperties, transactionalOperator);
+  }
+
+  private static SecurityContext securityContextOf(Upload upload) {
+    return new SecurityContextImpl(
+        new TestingAuthenticationToken(upload.getUserId().toString(), null));
+  }
+
+  private void givenClaimed(List<QueuedUpload> queuedUploads, List<Upload> uploads) {
+    when(uploadQueueRepository.claim(any())).thenReturn(Flux.fromIterable(queuedUploads));
+    when(uploadRepository.findAllById(any(Iterable.class))).thenReturn(Flux.fromIterable(uploads));
+  }
+
+  private static void assertUploadEventOf(QueuedUpload queuedUpload, UploadEvent uploadEvent) {
+    assertEquals(queuedUpload.getUploadId(), uploadEvent.getUpload().getUploadId());
+    assertEquals(queuedUpload.getStudyId(), uploadEvent.getStudyId());
+    assertEquals(queuedUpload.getPayload(), uploadEvent.getPayload());
+    assertEquals(queuedUpload.getSubmissionFile(), uploadEvent.getSubmissionFile());
+  }
+
+  private static QueuedUpload makeQueuedUpload(String studyId, Integer attempts) {
+    val uploadId = UUID.randomUUID();
+    return QueuedUpload.builder()
+        .uploadId(uploadId)
+        .studyId(studyId)
+        .payload(String.format("{\"studyId\":\"%s\"}", studyId))
+        .submissionFile(
+            SubmissionFile.builder()
+                .fileSize(4)
+                .fileMd5sum("md5")
+                .fileExtension(".fasta")
+                .dataType("FASTA")
+                .fileType("FASTA")
+                .submittedFileName(uploadId + ".fasta")
+                .build())
+        .attempts(attempts)
+        .build();
+  }
+
+  private static Upload makeUpload(QueuedUpload queuedUpload) {
+    return Upload.builder()
+        .uploadId(queuedUpload.getUploadId())
+        .studyId(queuedUpload.getStudyId())
+        .submitterSampleId("sample")
+        .submissionId(UUID.randomUUID())
+        .userId(UUID.randomUUID())
+        .status(UploadStatus.PROCESSING)
+        .originalFilePair(Set.of())
+        .build();
+  }
+}